@@ -0,0 +1,241 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/*
+ * The native part of org.p2pvpn.tuntap.TunTapLinux.
+ * Build it with "make" in this directory.
+ */
+
+#include <jni.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/ioctl.h>
+#include <net/if.h>
+#include <linux/if_tun.h>
+#include <linux/virtio_net.h>
+
+#define MAX_BATCH 256
+#define MAX_QUEUES 64
+
+/* store the file descriptor and the device name in the TunTapLinux object */
+static void setFdDev(JNIEnv *env, jobject this, int fd, const char *dev) {
+	jclass c = (*env)->GetObjectClass(env, this);
+	(*env)->SetIntField(env, this, (*env)->GetFieldID(env, c, "fd", "I"), fd);
+	(*env)->SetObjectField(env, this, (*env)->GetFieldID(env, c, "dev", "Ljava/lang/String;"),
+			(*env)->NewStringUTF(env, dev));
+}
+
+static int getFd(JNIEnv *env, jobject this) {
+	jclass c = (*env)->GetObjectClass(env, this);
+	return (*env)->GetIntField(env, this, (*env)->GetFieldID(env, c, "fd", "I"));
+}
+
+/* the queueFds array of the TunTapLinux object, NULL if there is none */
+static jintArray getQueueFds(JNIEnv *env, jobject this) {
+	jclass c = (*env)->GetObjectClass(env, this);
+	jfieldID id = (*env)->GetFieldID(env, c, "queueFds", "[I");
+	if (id==NULL) {
+		(*env)->ExceptionClear(env);
+		return NULL;
+	}
+	return (*env)->GetObjectField(env, this, id);
+}
+
+/*
+ * Open a tap device, with several queues and a virtio_net_hdr in front of
+ * every packet, if the kernel supports them.
+ */
+JNIEXPORT jint JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_openTun(JNIEnv *env, jobject this) {
+	static const short flags[] = {
+		IFF_TAP | IFF_NO_PI | IFF_MULTI_QUEUE | IFF_VNET_HDR,
+		IFF_TAP | IFF_NO_PI | IFF_VNET_HDR,
+		IFF_TAP | IFF_NO_PI
+	};
+	struct ifreq ifr;
+	int fd, i, ok = 0;
+
+	if ((fd = open("/dev/net/tun", O_RDWR)) < 0) {
+		puts("error: open");
+		return 1;
+	}
+	for(i=0; !ok && i<sizeof(flags)/sizeof(flags[0]); i++) {
+		memset(&ifr, 0, sizeof(ifr));
+		ifr.ifr_flags = flags[i];
+		ok = ioctl(fd, TUNSETIFF, &ifr) >= 0;
+	}
+	if (!ok) {
+		close(fd);
+		puts("error: ioctl");
+		return 1;
+	}
+	setFdDev(env, this, fd, ifr.ifr_name);
+	return 0;
+}
+
+/*
+ * Enable the checksum offload and, if tso is set, the TCP segmentation
+ * offloads. Returns the size of the virtio_net_hdr, 0 if the device was
+ * opened without it.
+ */
+JNIEXPORT jint JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_enableOffload(JNIEnv *env, jobject this, jboolean tso) {
+	struct ifreq ifr;
+	int fd = getFd(env, this);
+	unsigned int offload = TUN_F_CSUM;
+
+	memset(&ifr, 0, sizeof(ifr));
+	if (ioctl(fd, TUNGETIFF, &ifr) < 0 || !(ifr.ifr_flags & IFF_VNET_HDR)) return 0;
+	if (tso) offload |= TUN_F_TSO4 | TUN_F_TSO6 | TUN_F_TSO_ECN;
+	if (ioctl(fd, TUNSETOFFLOAD, offload) < 0) perror("TUNSETOFFLOAD");
+	return sizeof(struct virtio_net_hdr);
+}
+
+/*
+ * Attach more queues to the device. fds[0] is the first queue, the others
+ * are filled with the new file descriptors, -1 where no queue could be
+ * opened. Returns the number of queues.
+ */
+JNIEXPORT jint JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_openQueues(JNIEnv *env, jobject this, jintArray fds) {
+	struct ifreq ifr;
+	int max = (*env)->GetArrayLength(env, fds);
+	jint buf[MAX_QUEUES];
+	int count = 1;
+	int i;
+
+	if (max>MAX_QUEUES) max = MAX_QUEUES;
+	(*env)->GetIntArrayRegion(env, fds, 0, 1, buf);
+	for(i=1; i<max; i++) buf[i] = -1;
+
+	memset(&ifr, 0, sizeof(ifr));
+	if (ioctl(buf[0], TUNGETIFF, &ifr) >= 0 && (ifr.ifr_flags & IFF_MULTI_QUEUE)) {
+		while (count<max) {
+			int fd = open("/dev/net/tun", O_RDWR);
+			if (fd<0) break;
+			if (ioctl(fd, TUNSETIFF, &ifr) < 0) {
+				close(fd);
+				break;
+			}
+			buf[count++] = fd;
+		}
+	}
+	(*env)->SetIntArrayRegion(env, fds, 1, max-1, buf+1);
+	return count;
+}
+
+JNIEXPORT void JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_close(JNIEnv *env, jobject this) {
+	jintArray fds = getQueueFds(env, this);
+	close(getFd(env, this));
+	if (fds!=NULL) {
+		int count = (*env)->GetArrayLength(env, fds);
+		jint *p = (*env)->GetIntArrayElements(env, fds, NULL);
+		int i;
+		for(i=1; i<count; i++) {
+			if (p[i]>0) close(p[i]);
+			p[i] = -1;
+		}
+		(*env)->ReleaseIntArrayElements(env, fds, p, 0);
+	}
+}
+
+JNIEXPORT void JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_write(JNIEnv *env, jobject this, jbyteArray b, jint len) {
+	int fd = getFd(env, this);
+	jbyte *p = (*env)->GetByteArrayElements(env, b, NULL);
+	if (write(fd, p, len) < 0) perror("write");
+	(*env)->ReleaseByteArrayElements(env, b, p, JNI_ABORT);
+}
+
+JNIEXPORT jint JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_read(JNIEnv *env, jobject this, jbyteArray b) {
+	int fd = getFd(env, this);
+	jbyte *p = (*env)->GetByteArrayElements(env, b, NULL);
+	int len = read(fd, p, (*env)->GetArrayLength(env, b));
+	(*env)->ReleaseByteArrayElements(env, b, p, 0);
+	return len;
+}
+
+JNIEXPORT jint JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_readQueue(JNIEnv *env, jobject this, jint fd, jbyteArray b) {
+	jbyte *p = (*env)->GetByteArrayElements(env, b, NULL);
+	int len = read(fd, p, (*env)->GetArrayLength(env, b));
+	(*env)->ReleaseByteArrayElements(env, b, p, 0);
+	return len;
+}
+
+JNIEXPORT jboolean JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_readFramesSupported(JNIEnv *env, jobject this) {
+	return JNI_TRUE;
+}
+
+/*
+ * Read packets into a direct buffer. The call blocks until the first packet
+ * arrives, further packets are only read while they are available at once.
+ * Every packet gets an equal share of the space between pos and limit, so a
+ * packet is never truncated because the buffer is almost full.
+ */
+JNIEXPORT jint JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_readFramesNative(JNIEnv *env, jobject this,
+		jint fd, jobject frames, jint pos, jint limit, jintArray lengths) {
+	char *buf = (*env)->GetDirectBufferAddress(env, frames);
+	int max = (*env)->GetArrayLength(env, lengths);
+	jint lens[MAX_BATCH];
+	struct pollfd p;
+	int share, count = 0;
+
+	if (buf==NULL || max<=0) return 0;
+	if (max>MAX_BATCH) max = MAX_BATCH;
+	share = (limit-pos) / max;
+	p.fd = fd;
+	p.events = POLLIN;
+
+	while (count<max && limit-pos>=share) {
+		int len;
+		if (count>0 && poll(&p, 1, 0)<=0) break;
+		len = read(fd, buf+pos, limit-pos);
+		if (len<0) {
+			if (errno==EINTR) continue;
+			break;
+		}
+		lens[count++] = len;
+		pos += len;
+	}
+	(*env)->SetIntArrayRegion(env, lengths, 0, count, lens);
+	return count;
+}
+
+/*
+ * Write packets from a direct buffer, one write() per packet (the device
+ * takes one packet per call), but only one JNI call for all of them.
+ */
+JNIEXPORT void JNICALL Java_org_p2pvpn_tuntap_TunTapLinux_writeFramesNative(JNIEnv *env, jobject this,
+		jobject frames, jint pos, jintArray lengths, jint count) {
+	int fd = getFd(env, this);
+	char *buf = (*env)->GetDirectBufferAddress(env, frames);
+	jint lens[MAX_BATCH];
+	int i;
+
+	if (buf==NULL) return;
+	while (count>0) {
+		int n = count<MAX_BATCH ? count : MAX_BATCH;
+		(*env)->GetIntArrayRegion(env, lengths, 0, n, lens);
+		for(i=0; i<n; i++) {
+			if (write(fd, buf+pos, lens[i]) < 0 && errno!=EINVAL) perror("write");
+			pos += lens[i];
+		}
+		count -= n;
+	}
+}
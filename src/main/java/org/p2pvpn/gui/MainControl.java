@@ -37,6 +37,7 @@ import org.p2pvpn.network.ConnectionManager;
 import org.p2pvpn.network.Connector;
 import org.p2pvpn.network.ConnectorListener;
 import org.p2pvpn.network.PeerID;
+import org.p2pvpn.network.SendScheduler.TrafficClass;
 import org.p2pvpn.network.TCPConnection;
 import org.p2pvpn.network.VPNConnector;
 import org.p2pvpn.tools.AdvProperties;
@@ -63,8 +64,14 @@ public class MainControl implements ConnectorListener {
 	private int serverPort;				// the local port
 	private String name;				// the name of this nide
 	private double sendLimit, recLimit;	// bandwidth limit for this node
+	private double peerSendLimit;		// bandwidth limit for every peer
+	private double[] classSendLimits;	// bandwidth limit for every traffic class
 	private int sendBufferSize;			// the size of the send buffer
 	private boolean tcpFlush;			// flush after each packet?
+	private boolean routedMode;			// send IPv4 packets without ethernet header?
+	private boolean redundancyElimination;	// replace content sent before by references?
+	private boolean compress;			// deflate the packets sent to the peers?
+	private int mtu;					// MTU of the virtual network adapter, 0 to keep it
 	private String ip;					// the IP of the virtual network adapter
 	private boolean popupChat;			// should the chat window popup when a message arrives?
 
@@ -94,8 +101,17 @@ public class MainControl implements ConnectorListener {
 		ip = prefs.get("ip", "");
 		sendLimit = prefs.getDouble("sendLimit", 0);
 		recLimit = prefs.getDouble("recLimit", 0);
+		peerSendLimit = prefs.getDouble("peerSendLimit", 0);
+		classSendLimits = new double[TrafficClass.values().length];
+		for(TrafficClass tc : TrafficClass.values()) {
+			classSendLimits[tc.ordinal()] = prefs.getDouble("classSendLimit."+tc.toString().toLowerCase(), 0);
+		}
 		sendBufferSize = prefs.getInt("sendBufferSize", TCPConnection.DEFAULT_MAX_QUEUE);
 		tcpFlush = prefs.getBoolean("tcpFlush", TCPConnection.DEFAULT_TCP_FLUSH);
+		routedMode = prefs.getBoolean("routedMode", false);
+		redundancyElimination = prefs.getBoolean("redundancyElimination", false);
+		compress = prefs.getBoolean("compress", false);
+		mtu = prefs.getInt("mtu", 0);
 
 		popupChat = prefs.getBoolean("popupChat", false);
 		
@@ -188,6 +204,7 @@ public class MainControl implements ConnectorListener {
 					VPNConnector vpnc = VPNConnector.getVPNConnector();
 					vpnc.setRouter(connectionManager.getRouter());
 					tuntap = vpnc.getTunTap();
+					if (mtu>0) vpnc.setMTU(mtu);
 					setIp(ip);
 				} catch (Throwable e) {
 					Logger.getLogger("").log(Level.SEVERE, "", e);
@@ -201,8 +218,15 @@ public class MainControl implements ConnectorListener {
 
 				connectionManager.getSendLimit().setBandwidth(sendLimit);
 				connectionManager.getRecLimit().setBandwidth(recLimit);
+				connectionManager.setPeerSendLimit(peerSendLimit);
+				for(TrafficClass tc : TrafficClass.values()) {
+					connectionManager.getClassLimit(tc).setBandwidth(classSendLimits[tc.ordinal()]);
+				}
 				connectionManager.setSendBufferSize(sendBufferSize);
 				connectionManager.setTCPFlush(tcpFlush);
+				connectionManager.getRouter().setRoutedMode(routedMode);
+				if (redundancyElimination) connectionManager.getRouter().setRedundancyElimination(true);
+				if (compress) connectionManager.getRouter().setCompress(true);
 
 				prefs.put("access", accessCfg.toString());
 				if (networkCfg==null) {
@@ -429,6 +453,28 @@ public class MainControl implements ConnectorListener {
 		prefsFlush();
 	}
 
+	public double getPeerSendLimit() {
+		return peerSendLimit;
+	}
+
+	public void setPeerSendLimit(double peerSendLimit) {
+		this.peerSendLimit = peerSendLimit;
+		if (connectionManager!=null) connectionManager.setPeerSendLimit(peerSendLimit);
+		prefs.putDouble("peerSendLimit", peerSendLimit);
+		prefsFlush();
+	}
+
+	public double getClassSendLimit(TrafficClass tc) {
+		return classSendLimits[tc.ordinal()];
+	}
+
+	public void setClassSendLimit(TrafficClass tc, double limit) {
+		classSendLimits[tc.ordinal()] = limit;
+		if (connectionManager!=null) connectionManager.getClassLimit(tc).setBandwidth(limit);
+		prefs.putDouble("classSendLimit."+tc.toString().toLowerCase(), limit);
+		prefsFlush();
+	}
+
 	public double getSendLimit() {
 		return sendLimit;
 	}
@@ -462,6 +508,61 @@ public class MainControl implements ConnectorListener {
 		prefsFlush();
 	}
 
+	public boolean isRoutedMode() {
+		return routedMode;
+	}
+
+	public void setRoutedMode(boolean routedMode) {
+		this.routedMode = routedMode;
+		if (connectionManager!=null) connectionManager.getRouter().setRoutedMode(routedMode);
+		prefs.putBoolean("routedMode", routedMode);
+		prefsFlush();
+	}
+
+	public boolean isRedundancyElimination() {
+		return redundancyElimination;
+	}
+
+	public void setRedundancyElimination(boolean redundancyElimination) {
+		this.redundancyElimination = redundancyElimination;
+		if (connectionManager!=null) connectionManager.getRouter().setRedundancyElimination(redundancyElimination);
+		prefs.putBoolean("redundancyElimination", redundancyElimination);
+		prefsFlush();
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+		if (connectionManager!=null) connectionManager.getRouter().setCompress(compress);
+		prefs.putBoolean("compress", compress);
+		prefsFlush();
+	}
+
+	public int getMtu() {
+		return mtu;
+	}
+
+	/**
+	 * Set the MTU of the virtual network adapter. All peers should use the
+	 * same MTU; MTUs larger than 10 KB need peers supporting jumbo packets.
+	 * @param mtu the MTU, 0 to keep the MTU of the adapter
+	 */
+	public void setMtu(int mtu) {
+		this.mtu = mtu;
+		if (tuntap!=null && mtu>0) {
+			try {
+				VPNConnector.getVPNConnector().setMTU(mtu);
+			} catch (Exception e) {
+				Logger.getLogger("").log(Level.WARNING, "", e);
+			}
+		}
+		prefs.putInt("mtu", mtu);
+		prefsFlush();
+	}
+
 	public boolean isPopupChat() {
 		return popupChat;
 	}
@@ -316,8 +316,12 @@ private void btnOptionsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
 	optionWindow.setNodeName(mainControl.getName());
 	optionWindow.setPort(mainControl.getServerPort());
 	optionWindow.setIP(mainControl.getIp());
+	optionWindow.setRoutedMode(mainControl.isRoutedMode());
+	optionWindow.setMtu(mainControl.getMtu());
 	optionWindow.setSendLimit(mainControl.getSendLimit());
 	optionWindow.setRecLimit(mainControl.getRecLimit());
+	optionWindow.setRedundancyElimination(mainControl.isRedundancyElimination());
+	optionWindow.setCompress(mainControl.isCompress());
 	optionWindow.setSendBufferSize(mainControl.getSendBufferSize());
 	optionWindow.setTCPFlush(mainControl.isTCPFlush());
 	optionWindow.setPopupChat(mainControl.isPopupChat());
@@ -326,8 +330,12 @@ private void btnOptionsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
 		mainControl.setName(optionWindow.getNodeName());
 		mainControl.setServerPort(optionWindow.getPort());
 		mainControl.setIp(optionWindow.getIP());
+		mainControl.setRoutedMode(optionWindow.isRoutedMode());
+		mainControl.setMtu(optionWindow.getMtu());
 		mainControl.setSendLimit(optionWindow.getSendLimit());
 		mainControl.setRecLimit(optionWindow.getRecLimit());
+		mainControl.setRedundancyElimination(optionWindow.isRedundancyElimination());
+		mainControl.setCompress(optionWindow.isCompress());
 		mainControl.setSendBufferSize(optionWindow.getSendBufferSize());
 		mainControl.setTCPFlush(optionWindow.isTCPFlush());
 		mainControl.setPopupChat(optionWindow.isPopupChat());
@@ -74,11 +74,17 @@ public class OptionWindow extends javax.swing.JDialog {
         jLabel6 = new javax.swing.JLabel();
         spnRecLimit = new javax.swing.JSpinner();
         jLabel7 = new javax.swing.JLabel();
+        chkRedundancyElimination = new javax.swing.JCheckBox();
+        chkCompress = new javax.swing.JCheckBox();
         jPanel4 = new javax.swing.JPanel();
         chkPopupChat = new javax.swing.JCheckBox();
         jPanel2 = new javax.swing.JPanel();
         jLabel3 = new javax.swing.JLabel();
         txtIP = new javax.swing.JTextField();
+        chkRoutedMode = new javax.swing.JCheckBox();
+        jLabel10 = new javax.swing.JLabel();
+        spnMtu = new javax.swing.JSpinner();
+        jLabel11 = new javax.swing.JLabel();
         jPanel3 = new javax.swing.JPanel();
         jLabel8 = new javax.swing.JLabel();
         spnBufferSize = new javax.swing.JSpinner();
@@ -103,16 +109,19 @@ public class OptionWindow extends javax.swing.JDialog {
         spnSendLimit.setToolTipText("0 = no limit");
 
         jLabel5.setText("Max Download");
-        jLabel5.setEnabled(false);
 
         jLabel6.setText("kb/s");
 
         spnRecLimit.setModel(new javax.swing.SpinnerNumberModel(Double.valueOf(0.0d), Double.valueOf(0.0d), null, Double.valueOf(10.0d)));
-        spnRecLimit.setToolTipText("not implemented");
-        spnRecLimit.setEnabled(false);
+        spnRecLimit.setToolTipText("0 = no limit");
 
         jLabel7.setText("kb/s");
-        jLabel7.setEnabled(false);
+
+        chkRedundancyElimination.setText("Redundancy elimination");
+        chkRedundancyElimination.setToolTipText("Replace repeated payload bytes by references; uses up to 8 MB for the caches");
+
+        chkCompress.setText("Compress packets");
+        chkCompress.setToolTipText("The packet sizes may reveal secrets sent through the VPN to an observer");
 
         org.jdesktop.layout.GroupLayout jPanel1Layout = new org.jdesktop.layout.GroupLayout(jPanel1);
         jPanel1.setLayout(jPanel1Layout);
@@ -138,6 +147,12 @@ public class OptionWindow extends javax.swing.JDialog {
                         .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                         .add(jLabel6)))
                 .addContainerGap())
+            .add(jPanel1Layout.createSequentialGroup()
+                .addContainerGap()
+                .add(jPanel1Layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
+                    .add(chkRedundancyElimination)
+                    .add(chkCompress))
+                .addContainerGap(org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
         jPanel1Layout.setVerticalGroup(
             jPanel1Layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
@@ -164,7 +179,11 @@ public class OptionWindow extends javax.swing.JDialog {
                         .add(jLabel6)
                         .addPreferredGap(org.jdesktop.layout.LayoutStyle.UNRELATED)
                         .add(jLabel7)))
-                .addContainerGap(34, Short.MAX_VALUE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.UNRELATED)
+                .add(chkRedundancyElimination)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(chkCompress)
+                .addContainerGap(16, Short.MAX_VALUE))
         );
 
         jTabbedPane1.addTab("Global", jPanel1);
@@ -192,15 +211,34 @@ public class OptionWindow extends javax.swing.JDialog {
 
         jLabel3.setText("VPN IP");
 
+        chkRoutedMode.setText("Routed mode (IPv4 without ethernet header)");
+        chkRoutedMode.setToolTipText("Send IPv4 packets without their ethernet header and route them by IP address");
+
+        jLabel10.setText("MTU");
+
+        spnMtu.setModel(new javax.swing.SpinnerNumberModel(0, 0, 65535, 1));
+        spnMtu.setToolTipText("0 = keep the MTU of the adapter");
+
+        jLabel11.setText("bytes");
+
         org.jdesktop.layout.GroupLayout jPanel2Layout = new org.jdesktop.layout.GroupLayout(jPanel2);
         jPanel2.setLayout(jPanel2Layout);
         jPanel2Layout.setHorizontalGroup(
             jPanel2Layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
             .add(jPanel2Layout.createSequentialGroup()
                 .addContainerGap()
-                .add(jLabel3)
-                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
-                .add(txtIP, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 194, Short.MAX_VALUE)
+                .add(jPanel2Layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
+                    .add(jPanel2Layout.createSequentialGroup()
+                        .add(jLabel3)
+                        .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                        .add(txtIP, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 194, Short.MAX_VALUE))
+                    .add(chkRoutedMode)
+                    .add(jPanel2Layout.createSequentialGroup()
+                        .add(jLabel10)
+                        .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                        .add(spnMtu, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, 90, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
+                        .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                        .add(jLabel11)))
                 .addContainerGap())
         );
         jPanel2Layout.setVerticalGroup(
@@ -210,14 +248,21 @@ public class OptionWindow extends javax.swing.JDialog {
                 .add(jPanel2Layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
                     .add(jLabel3)
                     .add(txtIP, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
-                .addContainerGap(124, Short.MAX_VALUE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(chkRoutedMode)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(jPanel2Layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(jLabel10)
+                    .add(spnMtu, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
+                    .add(jLabel11))
+                .addContainerGap(68, Short.MAX_VALUE))
         );
 
         jTabbedPane1.addTab("Network", jPanel2);
 
         jLabel8.setText("Send buffer size");
 
-        spnBufferSize.setModel(new javax.swing.SpinnerNumberModel(10, 1, 500, 1));
+        spnBufferSize.setModel(new javax.swing.SpinnerNumberModel(500, 1, 5000, 1));
 
         jLabel9.setText("packets");
 
@@ -344,6 +389,38 @@ private void btnResetActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRS
 		return txtIP.getText();
 	}
 
+	public boolean isRoutedMode() {
+		return chkRoutedMode.isSelected();
+	}
+
+	public void setRoutedMode(boolean routedMode) {
+		chkRoutedMode.setSelected(routedMode);
+	}
+
+	public int getMtu() {
+		return (Integer)spnMtu.getModel().getValue();
+	}
+
+	public void setMtu(int mtu) {
+		spnMtu.getModel().setValue(mtu);
+	}
+
+	public boolean isRedundancyElimination() {
+		return chkRedundancyElimination.isSelected();
+	}
+
+	public void setRedundancyElimination(boolean redundancyElimination) {
+		chkRedundancyElimination.setSelected(redundancyElimination);
+	}
+
+	public boolean isCompress() {
+		return chkCompress.isSelected();
+	}
+
+	public void setCompress(boolean compress) {
+		chkCompress.setSelected(compress);
+	}
+
 	public boolean isOk() {
 		return ok;
 	}
@@ -392,9 +469,14 @@ private void btnResetActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRS
     private javax.swing.JButton btnCancel;
     private javax.swing.JButton btnOK;
     private javax.swing.JButton btnReset;
+    private javax.swing.JCheckBox chkCompress;
     private javax.swing.JCheckBox chkPopupChat;
+    private javax.swing.JCheckBox chkRedundancyElimination;
+    private javax.swing.JCheckBox chkRoutedMode;
     private javax.swing.JCheckBox chkTCPFlush;
     private javax.swing.JLabel jLabel1;
+    private javax.swing.JLabel jLabel10;
+    private javax.swing.JLabel jLabel11;
     private javax.swing.JLabel jLabel2;
     private javax.swing.JLabel jLabel3;
     private javax.swing.JLabel jLabel4;
@@ -409,6 +491,7 @@ private void btnResetActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRS
     private javax.swing.JPanel jPanel4;
     private javax.swing.JTabbedPane jTabbedPane1;
     private javax.swing.JSpinner spnBufferSize;
+    private javax.swing.JSpinner spnMtu;
     private javax.swing.JSpinner spnPort;
     private javax.swing.JSpinner spnRecLimit;
     private javax.swing.JSpinner spnSendLimit;
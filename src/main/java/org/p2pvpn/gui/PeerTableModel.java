@@ -43,7 +43,7 @@ public class PeerTableModel implements RoutungTableListener, TableModel {
 	private static final long UPDATE_MS = 500;
 
 	/*
-	 * Table Columns: Name, Id, Direct, IP, MAC, In, Out, ping
+	 * Table Columns: Name, Id, Direct, IP, MAC, In, Out, ping, link tuning
 	 */
 	
 	private ConnectionManager connectionManager;
@@ -105,13 +105,14 @@ public class PeerTableModel implements RoutungTableListener, TableModel {
 		case 5: return String.class;
 		case 6: return String.class;
 		case 7: return String.class;
+		case 8: return String.class;
 		default: return null;
 		}
 	}
 
 	@Override
 	public int getColumnCount() {
-		return 8;
+		return 9;
 	}
 
 	@Override
@@ -125,6 +126,7 @@ public class PeerTableModel implements RoutungTableListener, TableModel {
 		case 5: return "In (kb/s)";
 		case 6: return "Out (kb/s)";
 		case 7: return "Ping (ms)";
+		case 8: return "Link";
 		default: return null;
 		}
 	}
@@ -159,6 +161,9 @@ public class PeerTableModel implements RoutungTableListener, TableModel {
 		case 7:
 			if (conn==null) return "-";
 			return ""+(int)conn.getPingTime().getAverage();
+		case 8:
+			if (conn==null) return "";
+			return conn.getConnection().getLinkTuner().toString();
 		default: return null;
 		}
 	}
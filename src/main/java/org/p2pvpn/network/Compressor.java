@@ -0,0 +1,219 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the packets sent over one TCPConnection, if it pays off.
+ *
+ * Every packet is compressed on its own (deflate, best speed), so a dropped
+ * packet doesn't affect the others. Packets are grouped into flows using
+ * their IP addresses and ports. A flow whose packets don't shrink to
+ * MAX_RATIO (encrypted or already compressed data) is sent uncompressed
+ * for the next SKIP_PACKETS packets before it is sampled again. The send
+ * thread compresses every packet before header compression, aggregation and
+ * redundancy elimination, so the flow of each packet is known.
+ *
+ * Format: COMPRESSED_PACKET, 4 byte original length, deflated packet
+ * @author Wolfgang Ginolas
+ */
+public class Compressor {
+
+	static final byte COMPRESSED_PACKET = 8;
+
+	private static final int HEADER = 5;
+	private static final int MIN_SIZE = 128;		// don't compress smaller packets
+	private static final double MAX_RATIO = 0.9;
+	private static final int SKIP_PACKETS = 64;
+	private static final int FLOWS = 256;			// size of the flow table
+
+	private Deflater deflater;						// used by the send thread
+	private Inflater inflater;						// used by the receive thread
+
+	private int[] flowKeys;							// hash of the flow using a slot
+	private int[] skip;								// packets to send before sampling again
+
+	private volatile long rawBytes;					// size of the compressed packets before compression
+	private volatile long compressedBytes;			// size of the compressed packets
+	private volatile long compressNanos;			// time spent compressing (also unsuccessfully)
+	private volatile long decompressNanos;			// time spent decompressing
+
+	/**
+	 * Create a new Compressor.
+	 */
+	public Compressor() {
+		deflater = new Deflater(Deflater.BEST_SPEED, true);
+		inflater = new Inflater(true);
+		flowKeys = new int[FLOWS];
+		skip = new int[FLOWS];
+		rawBytes = 0;
+		compressedBytes = 0;
+		compressNanos = 0;
+		decompressNanos = 0;
+	}
+
+	/**
+	 * Calculate a hash for the flow a packet belongs to.
+	 * @param b the array
+	 * @param off start of the router packet
+	 * @param len length of the router packet
+	 * @return the hash
+	 */
+	static int flowKey(byte[] b, int off, int len) {
+		int ip = Router.ipOffset(b, off);
+		if (ip<0) return b[off];
+		int end = off+len;
+		int key;
+		int l4;
+		if (ip+20<=end && ((b[ip] >> 4) & 0xF)==4) {
+			key = IPPrefixTable.getIP(b, ip+12)*31 + IPPrefixTable.getIP(b, ip+16);
+			key = key*31 + b[ip+9];
+			l4 = ip + (b[ip] & 0xF)*4;
+		} else if (ip+40<=end && ((b[ip] >> 4) & 0xF)==6) {
+			key = IPPrefixTable.getIP(b, ip+20)*31 + IPPrefixTable.getIP(b, ip+36);
+			key = key*31 + b[ip+6];
+			l4 = ip + 40;
+		} else {
+			return b[off];
+		}
+		if (l4+4<=end) key = key*31 + IPPrefixTable.getIP(b, l4);	// the ports
+		return key;
+	}
+
+	/**
+	 * Compress a packet, if that makes it smaller.
+	 * @param packet the packet, it will be released if it was compressed
+	 * @return the compressed packet or the original one
+	 */
+	public PacketBuffer compress(PacketBuffer packet) {
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
+		int len = packet.getLength();
+		if (len<MIN_SIZE) return packet;
+
+		int key = flowKey(data, off, len);
+		int slot = (key * 0x9E3779B9) >>> 24;
+		if (flowKeys[slot]!=key) {
+			flowKeys[slot] = key;
+			skip[slot] = 0;
+		}
+		if (skip[slot]>0) {
+			skip[slot]--;
+			return packet;
+		}
+
+		long start = System.nanoTime();
+		PacketBuffer result = PacketBuffer.obtain(len);
+		deflater.reset();
+		deflater.setInput(data, off, len);
+		deflater.finish();
+		int clen = deflater.deflate(result.getData(), result.getOffset()+HEADER, (int)(len*MAX_RATIO)-HEADER);
+		boolean success = deflater.finished();
+		compressNanos += System.nanoTime()-start;
+
+		if (!success) {
+			result.release();
+			skip[slot] = SKIP_PACKETS;
+			return packet;
+		}
+
+		byte[] r = result.getData();
+		int o = result.getOffset();
+		r[o] = COMPRESSED_PACKET;
+		r[o+1] = (byte)(len >>> 24);
+		r[o+2] = (byte)(len >>> 16);
+		r[o+3] = (byte)(len >>> 8);
+		r[o+4] = (byte)len;
+		result.setLength(HEADER+clen);
+
+		rawBytes += len;
+		compressedBytes += HEADER+clen;
+		packet.release();
+		return result;
+	}
+
+	/**
+	 * Decompress a packet.
+	 * @param packet the compressed packet, it will be released
+	 * @return the original packet, null if the packet was corrupt
+	 */
+	public PacketBuffer decompress(PacketBuffer packet) {
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
+		if (packet.getLength()<HEADER) {
+			packet.release();
+			return null;
+		}
+		int len = IPPrefixTable.getIP(data, off+1);
+		if (len<=0 || len>TCPConnection.MAX_JUMBO_PACKET_SIZE) {
+			packet.release();
+			return null;
+		}
+
+		long start = System.nanoTime();
+		PacketBuffer result = PacketBuffer.obtain(len);
+		try {
+			inflater.reset();
+			inflater.setInput(data, off+HEADER, packet.getLength()-HEADER);
+			if (inflater.inflate(result.getData(), result.getOffset(), len)!=len) {
+				result.release();
+				result = null;
+			} else {
+				result.setLength(len);
+			}
+		} catch (DataFormatException ex) {
+			result.release();
+			result = null;
+		}
+		decompressNanos += System.nanoTime()-start;
+		packet.release();
+		return result;
+	}
+
+	/**
+	 * @return the number of bytes saved by compression
+	 */
+	public long getSavedBytes() {
+		return rawBytes-compressedBytes;
+	}
+
+	/**
+	 * @return size of the compressed packets before compression
+	 */
+	public long getRawBytes() {
+		return rawBytes;
+	}
+
+	/**
+	 * @return time spent compressing and decompressing in milliseconds
+	 */
+	public double getCpuTime() {
+		return (compressNanos+decompressNanos) / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("saved %d of %d bytes using %.1f ms",
+				getSavedBytes(), getRawBytes(), getCpuTime());
+	}
+}
@@ -38,11 +38,13 @@ import java.util.Enumeration;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.p2pvpn.network.bandwidth.TokenBucket;
 import org.p2pvpn.network.bittorrent.DHT;
 import org.p2pvpn.network.bittorrent.bencode.BencodeString;
+import org.p2pvpn.network.metrics.Metrics;
 import org.p2pvpn.tools.AdvProperties;
 import org.p2pvpn.tools.CryptoUtils;
 import org.p2pvpn.tools.SocketAddrStr;
@@ -75,7 +77,14 @@ public class ConnectionManager implements Runnable {
 	private byte[] networkKey;							// network key used for encryption
 
 	private TokenBucket sendLimit, recLimit;			// maximum bandwidth
+	private volatile double peerSendLimit;				// maximum bandwidth for every peer
+	private TokenBucket[] classLimits;					// maximum bandwidth for every traffic class
 	private Pinger pinger;								// the Pinger
+	private OverloadController overloadController;		// sheds transit traffic when overloaded
+	private Metrics metrics;							// exports the statistics
+	private AtomicLong handshakesStarted;				// P2PConnection handshakes
+	private AtomicLong handshakesCompleted;
+	private AtomicLong handshakesFailed;
 
 	private int sendBufferSize;							// the send buffer size
 	private boolean tcpFlush;							// flush after each packet send?
@@ -91,6 +100,9 @@ public class ConnectionManager implements Runnable {
 		this.serverPort = serverPort;
 		this.accessCfg = accessCfg;
 		scheduledExecutor = Executors.newScheduledThreadPool(10);
+		handshakesStarted = new AtomicLong();
+		handshakesCompleted = new AtomicLong();
+		handshakesFailed = new AtomicLong();
 		localAddr = new PeerID(accessCfg.getPropertyBytes("access.publicKey", null), true);
 		router = new Router(this);
         connector = new Connector(this);
@@ -100,7 +112,20 @@ public class ConnectionManager implements Runnable {
 
 		sendLimit = new TokenBucket(0, SEND_BUCKET_SIZE);
 		recLimit = new TokenBucket(0, SEND_BUCKET_SIZE);
+		peerSendLimit = 0;
+		classLimits = new TokenBucket[SendScheduler.TrafficClass.values().length];
+		for(int i=0; i<classLimits.length; i++) classLimits[i] = new TokenBucket(0, SEND_BUCKET_SIZE);
 		pinger = new Pinger(this);
+		overloadController = new OverloadController(this, router);
+		metrics = new Metrics(this);
+		int metricsPort = Integer.getInteger("p2pvpn.metrics.port", 0);
+		if (metricsPort>0) {
+			try {
+				metrics.startServer(metricsPort);
+			} catch (IOException e) {
+				Logger.getLogger("").log(Level.WARNING, "Could not start the metrics endpoint", e);
+			}
+		}
 
 		calcNetworkKey();
 		
@@ -305,6 +330,7 @@ public class ConnectionManager implements Runnable {
 	public void close() {
 		try {
 			scheduledExecutor.shutdownNow();
+			metrics.close();
 			router.close();
 			if (server!=null) server.close();
 			//TODO close connections
@@ -354,6 +380,48 @@ public class ConnectionManager implements Runnable {
 		return router;
 	}
 
+	public OverloadController getOverloadController() {
+		return overloadController;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the DHT used to find other peers, null if it could not be started
+	 */
+	public DHT getDHT() {
+		return dht;
+	}
+
+	void handshakeStarted() {
+		handshakesStarted.incrementAndGet();
+	}
+
+	void handshakeCompleted() {
+		handshakesCompleted.incrementAndGet();
+	}
+
+	/**
+	 * Called when a P2PConnection was closed before the handshake completed.
+	 */
+	void handshakeFailed() {
+		handshakesFailed.incrementAndGet();
+	}
+
+	public long getHandshakesStarted() {
+		return handshakesStarted.get();
+	}
+
+	public long getHandshakesCompleted() {
+		return handshakesCompleted.get();
+	}
+
+	public long getHandshakesFailed() {
+		return handshakesFailed.get();
+	}
+
     public Connector getConnector() {
         return connector;
     }
@@ -370,6 +438,43 @@ public class ConnectionManager implements Runnable {
 		return recLimit;
 	}
 
+	/**
+	 * Create the bucket limiting the bandwidth to one peer. Its parent
+	 * is the global send limit.
+	 * @return the bucket
+	 */
+	TokenBucket createPeerSendLimit() {
+		return new TokenBucket(peerSendLimit, SEND_BUCKET_SIZE, sendLimit);
+	}
+
+	public double getPeerSendLimit() {
+		return peerSendLimit;
+	}
+
+	/**
+	 * Set the maximum bandwidth used for every single peer.
+	 * @param peerSendLimit the bandwidth in bytes/s, 0 for no limit
+	 */
+	public void setPeerSendLimit(double peerSendLimit) {
+		this.peerSendLimit = peerSendLimit;
+		for(P2PConnection c : router.getConnections()) {
+			c.getConnection().getPeerSendLimit().setBandwidth(peerSendLimit);
+		}
+	}
+
+	/**
+	 * The bandwidth limit for a traffic class, shared by all connections.
+	 * @param tc the traffic class
+	 * @return the bucket
+	 */
+	public TokenBucket getClassLimit(SendScheduler.TrafficClass tc) {
+		return classLimits[tc.ordinal()];
+	}
+
+	TokenBucket[] getClassLimits() {
+		return classLimits;
+	}
+
 	public int getSendBufferSize() {
 		return sendBufferSize;
 	}
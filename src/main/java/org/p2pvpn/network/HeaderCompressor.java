@@ -0,0 +1,314 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import org.p2pvpn.tools.InternetChecksum;
+
+/**
+ * Compresses the ethernet, IPv4 and TCP headers of the data packets sent
+ * to a neighbour (similar to ROHC). Both sides keep a context for every
+ * flow containing the last full header. Packets of a known flow only carry
+ * the fields that change from packet to packet; everything else is taken
+ * from the context.
+ *
+ * A context is only changed by full packets, so a lost compressed packet
+ * doesn't affect the following ones. When the receiver gets a packet for
+ * an unknown or outdated context, it drops the packet and sends a
+ * NACK_PACKET, so the next packet of the flow is sent with its full
+ * header. The full header is also sent every REFRESH packets.
+ *
+ * Full packet: FULL_PACKET, context id, generation, the data packet
+ * Compressed packet: COMPRESSED_PACKET, context id, generation, flags,
+ * IP id (2), TCP sequence (4), ack (4), window (2), flags (1),
+ * checksum (2), [option length (1), options], payload
+ * @author Wolfgang Ginolas
+ */
+public class HeaderCompressor {
+
+	static final byte FULL_PACKET = 9;
+	static final byte COMPRESSED_PACKET = 10;
+	static final byte NACK_PACKET = 11;
+
+	private static final int CONTEXTS = 256;
+	private static final int REFRESH = 256;
+
+	private static final int ETH = 1;					// offsets in a DATA_PACKET
+	private static final int IP = ETH+14;
+	private static final int TCP = IP+20;
+	private static final int BASE_HEADER = TCP+20;		// without TCP options
+
+	private static final int FULL_HEADER = 3;
+	static final int MAX_GROWTH = FULL_HEADER;		// compress() adds at most this many bytes
+	private static final int COMPRESSED_HEADER = 4+2+4+4+2+1+2;
+	private static final int FLAG_OPTIONS = 1;
+
+	// sender
+	private byte[][] txHeader;						// the header of every context
+	private byte[] txGeneration;
+	private int[] txCount;							// packets sent since the last full header
+
+	// receiver
+	private byte[][] rxHeader;
+	private byte[] rxGeneration;
+	private boolean[] rxValid;
+
+	private volatile long savedBytes;				// bytes saved by compressed headers
+	private volatile long compressedPackets;
+	private volatile long fullPackets;
+	private volatile long nacks;					// number of NACKs sent
+
+	/**
+	 * Create a new HeaderCompressor.
+	 */
+	public HeaderCompressor() {
+		txHeader = new byte[CONTEXTS][];
+		txGeneration = new byte[CONTEXTS];
+		txCount = new int[CONTEXTS];
+		rxHeader = new byte[CONTEXTS][];
+		rxGeneration = new byte[CONTEXTS];
+		rxValid = new boolean[CONTEXTS];
+		savedBytes = 0;
+		compressedPackets = 0;
+		fullPackets = 0;
+		nacks = 0;
+	}
+
+	private static int get16(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 8) + (b[off+1] & 0xFF);
+	}
+
+	private static void put16(byte[] b, int off, int val) {
+		b[off] = (byte)(val >> 8);
+		b[off+1] = (byte)val;
+	}
+
+	private static boolean equal(byte[] a, int aOff, byte[] b, int bOff, int len) {
+		for(int i=0; i<len; i++) if (a[aOff+i]!=b[bOff+i]) return false;
+		return true;
+	}
+
+	/**
+	 * Do the fields of a header that are not sent in compressed packets
+	 * match the context?
+	 */
+	private static boolean sameFlow(byte[] h, byte[] b, int off) {
+		return equal(h, ETH, b, off+ETH, 14) &&
+				h[IP]==b[off+IP] && h[IP+1]==b[off+IP+1] &&			// version, length, TOS
+				equal(h, IP+6, b, off+IP+6, 4) &&					// fragment, TTL, protocol
+				equal(h, IP+12, b, off+IP+12, 8) &&					// addresses
+				equal(h, TCP, b, off+TCP, 4);						// ports
+	}
+
+	/**
+	 * Compress the header of a packet taken from the send queue. The caller
+	 * has to make sure the packets are sent in the order they were
+	 * compressed, so they must not be queued, dropped or reordered after
+	 * this call.
+	 * @param packet the packet, its header is changed in place
+	 */
+	public synchronized void compress(PacketBuffer packet) {
+		byte[] b = packet.getData();
+		int off = packet.getOffset();
+		int len = packet.getLength();
+
+		if (len<BASE_HEADER || b[off]!=Router.DATA_PACKET || packet.getOffset()<FULL_HEADER) return;
+		if (b[off+ETH+12]!=0x08 || b[off+ETH+13]!=0x00 || b[off+IP]!=0x45 || b[off+IP+9]!=6) return;
+		if ((get16(b, off+IP+6) & 0x3FFF)!=0) return;							// a fragment
+		int tcpLen = ((b[off+TCP+12] >> 4) & 0xF)*4;
+		if (tcpLen<20 || TCP+tcpLen>len || get16(b, off+IP+2)!=len-IP) return;	// options or padding
+		if ((b[off+TCP+13] & 0x20)!=0) return;									// URG
+		if ((b[off+TCP+12] & 0x0F)!=0) return;									// reserved, AE (NS)
+
+		int hash = IPPrefixTable.getIP(b, off+IP+12)*31 + IPPrefixTable.getIP(b, off+IP+16);
+		hash = hash*31 + IPPrefixTable.getIP(b, off+TCP);
+		int cid = (hash * 0x9E3779B9) >>> 24;
+
+		byte[] h = txHeader[cid];
+		if (h==null || !sameFlow(h, b, off) || txCount[cid]>=REFRESH) {
+			int hlen = TCP+tcpLen;
+			if (h==null || h.length!=hlen) h = txHeader[cid] = new byte[hlen];
+			System.arraycopy(b, off, h, 0, hlen);
+			txGeneration[cid]++;
+			txCount[cid] = 0;
+
+			int p = packet.prepend(FULL_HEADER);
+			b[p] = FULL_PACKET;
+			b[p+1] = (byte)cid;
+			b[p+2] = txGeneration[cid];
+			fullPackets++;
+			return;
+		}
+		txCount[cid]++;
+
+		int optLen = tcpLen-20;
+		boolean sendOptions = optLen!=h.length-BASE_HEADER || !equal(h, BASE_HEADER, b, off+BASE_HEADER, optLen);
+		int clen = COMPRESSED_HEADER + (sendOptions ? 1+optLen : 0);
+		int p = off+TCP+tcpLen-clen;				// the compressed header ends where the payload starts
+
+		// copy the changing fields before they are overwritten (they are all in front of p)
+		int ipId = get16(b, off+IP+4);
+		int win = get16(b, off+TCP+14);
+		int flags = b[off+TCP+13];
+		int csum = get16(b, off+TCP+16);
+		int seq = IPPrefixTable.getIP(b, off+TCP+4);
+		int ack = IPPrefixTable.getIP(b, off+TCP+8);
+		if (sendOptions) System.arraycopy(b, off+BASE_HEADER, b, p+COMPRESSED_HEADER+1, optLen);
+
+		b[p] = COMPRESSED_PACKET;
+		b[p+1] = (byte)cid;
+		b[p+2] = txGeneration[cid];
+		b[p+3] = (byte)(sendOptions ? FLAG_OPTIONS : 0);
+		put16(b, p+4, ipId);
+		put16(b, p+6, seq >>> 16);
+		put16(b, p+8, seq);
+		put16(b, p+10, ack >>> 16);
+		put16(b, p+12, ack);
+		put16(b, p+14, win);
+		b[p+16] = (byte)flags;
+		put16(b, p+17, csum);
+		if (sendOptions) b[p+COMPRESSED_HEADER] = (byte)optLen;
+
+		packet.strip(p-off);
+		savedBytes += p-off;
+		compressedPackets++;
+	}
+
+	/**
+	 * Handle a FULL_PACKET.
+	 * @param packet the packet, it will be changed into a normal data packet
+	 */
+	public void receiveFull(PacketBuffer packet) {
+		byte[] b = packet.getData();
+		int off = packet.getOffset();
+		if (packet.getLength()<FULL_HEADER+BASE_HEADER) return;
+		int cid = b[off+1] & 0xFF;
+		packet.strip(FULL_HEADER);
+		off += FULL_HEADER;
+
+		int hlen = TCP+((b[off+TCP+12] >> 4) & 0xF)*4;
+		if (hlen>packet.getLength()) {
+			rxValid[cid] = false;
+			return;
+		}
+		byte[] h = rxHeader[cid];
+		if (h==null || h.length!=hlen) h = rxHeader[cid] = new byte[hlen];
+		System.arraycopy(b, off, h, 0, hlen);
+		rxGeneration[cid] = b[off-FULL_HEADER+2];
+		rxValid[cid] = true;
+	}
+
+	/**
+	 * Restore a COMPRESSED_PACKET.
+	 * @param packet the packet, it will be released
+	 * @return the data packet, or null if the context is unknown (the caller
+	 * has to send createNack() then)
+	 */
+	public PacketBuffer decompress(PacketBuffer packet) {
+		byte[] b = packet.getData();
+		int off = packet.getOffset();
+		int len = packet.getLength();
+		int cid = len>=COMPRESSED_HEADER ? b[off+1] & 0xFF : 0;
+		byte[] h = rxHeader[cid];
+		if (len<COMPRESSED_HEADER || h==null || !rxValid[cid] || rxGeneration[cid]!=b[off+2]) {
+			packet.release();
+			return null;
+		}
+
+		int optOff, optLen, payload;
+		if ((b[off+3] & FLAG_OPTIONS)!=0) {
+			optLen = b[off+COMPRESSED_HEADER] & 0xFF;
+			optOff = off+COMPRESSED_HEADER+1;
+			payload = optOff+optLen;
+		} else {
+			optLen = h.length-BASE_HEADER;
+			optOff = -1;
+			payload = off+COMPRESSED_HEADER;
+		}
+		int payloadLen = off+len-payload;
+		if (payloadLen<0 || (optLen & 3)!=0 || optLen>40) {
+			packet.release();
+			return null;
+		}
+
+		PacketBuffer result = PacketBuffer.obtain(BASE_HEADER+optLen+payloadLen);
+		byte[] r = result.getData();
+		int o = result.getOffset();
+		System.arraycopy(h, 0, r, o, BASE_HEADER);
+		if (optOff<0) System.arraycopy(h, BASE_HEADER, r, o+BASE_HEADER, optLen);
+		else System.arraycopy(b, optOff, r, o+BASE_HEADER, optLen);
+		System.arraycopy(b, payload, r, o+BASE_HEADER+optLen, payloadLen);
+
+		put16(r, o+IP+2, 20+20+optLen+payloadLen);
+		System.arraycopy(b, off+4, r, o+IP+4, 2);								// IP id
+		put16(r, o+IP+10, 0);
+		InternetChecksum.store(r, o+IP, 20, 0, o+IP+10);
+		System.arraycopy(b, off+6, r, o+TCP+4, 8);								// seq, ack
+		System.arraycopy(b, off+14, r, o+TCP+14, 2);							// window
+		r[o+TCP+12] = (byte)(((20+optLen)/4) << 4);
+		r[o+TCP+13] = b[off+16];
+		System.arraycopy(b, off+17, r, o+TCP+16, 2);							// checksum
+		put16(r, o+TCP+18, 0);
+
+		result.setLength(BASE_HEADER+optLen+payloadLen);
+		packet.release();
+		return result;
+	}
+
+	/**
+	 * Create a packet telling the sender that a context is unknown.
+	 * @param cid the context id of the packet that couldn't be restored
+	 * @return the NACK_PACKET
+	 */
+	public byte[] createNack(byte cid) {
+		nacks++;
+		return new byte[] {NACK_PACKET, cid};
+	}
+
+	/**
+	 * Handle a NACK_PACKET: send the next packet of the flow with its full header.
+	 * @param packet the packet, it will be released
+	 */
+	public synchronized void receiveNack(PacketBuffer packet) {
+		if (packet.getLength()>=2) txHeader[packet.getData()[packet.getOffset()+1] & 0xFF] = null;
+		packet.release();
+	}
+
+	public long getSavedBytes() {
+		return savedBytes;
+	}
+
+	public long getCompressedPackets() {
+		return compressedPackets;
+	}
+
+	public long getFullPackets() {
+		return fullPackets;
+	}
+
+	public long getNacks() {
+		return nacks;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d compressed, %d full headers, %d NACKs, saved %d bytes",
+				compressedPackets, fullPackets, nacks, savedBytes);
+	}
+}
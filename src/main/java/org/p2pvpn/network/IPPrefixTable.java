@@ -0,0 +1,177 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import java.util.StringTokenizer;
+
+/**
+ * Maps IPv4 addresses to the mac addresses of the peers using a longest
+ * prefix match. Host addresses are found using a hash table, networks are
+ * searched in order of their prefix length. A table is filled once and
+ * only read afterwards, so it can be used by several threads.
+ * @author Wolfgang Ginolas
+ */
+public class IPPrefixTable {
+
+	private int[] hostKeys;				// open addressing hash table for /32 entries
+	private MacAddress[] hostMacs;
+	private int hostCount;
+
+	private int[] networks;				// all other entries, longest prefix first
+	private int[] masks;
+	private MacAddress[] networkMacs;
+	private int networkCount;
+
+	/**
+	 * Create an empty table.
+	 */
+	public IPPrefixTable() {
+		hostKeys = new int[16];
+		hostMacs = new MacAddress[16];
+		hostCount = 0;
+		networks = new int[4];
+		masks = new int[4];
+		networkMacs = new MacAddress[4];
+		networkCount = 0;
+	}
+
+	/**
+	 * Parse an IPv4 address.
+	 * @param s the address using the format "a.b.c.d"
+	 * @return the address, or 0 if it could not be parsed
+	 */
+	public static int parseIP(String s) {
+		StringTokenizer st = new StringTokenizer(s, ".");
+		if (st.countTokens()!=4) return 0;
+		int result = 0;
+		try {
+			while (st.hasMoreTokens()) {
+				int b = Integer.parseInt(st.nextToken());
+				if (b<0 || b>255) return 0;
+				result = (result << 8) | b;
+			}
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+		return result;
+	}
+
+	/**
+	 * Read an IPv4 address from an array.
+	 * @param b the array
+	 * @param off the offset
+	 * @return the address
+	 */
+	public static int getIP(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off+1] & 0xFF) << 16) |
+				((b[off+2] & 0xFF) << 8) | (b[off+3] & 0xFF);
+	}
+
+	/**
+	 * Add an entry.
+	 * @param prefix the prefix using the format "a.b.c.d" or "a.b.c.d/len"
+	 * @param mac the mac address of the peer
+	 */
+	public void add(String prefix, MacAddress mac) {
+		int len = 32;
+		int slash = prefix.indexOf('/');
+		if (slash>=0) {
+			try {
+				len = Integer.parseInt(prefix.substring(slash+1));
+			} catch (NumberFormatException e) {
+				return;
+			}
+			prefix = prefix.substring(0, slash);
+		}
+		int ip = parseIP(prefix);
+		if (ip==0 || len<1 || len>32) return;
+
+		if (len==32) {
+			addHost(ip, mac);
+		} else {
+			addNetwork(ip, -1 << (32-len), mac);
+		}
+	}
+
+	private static int hash(int ip, int size) {
+		return (ip * 0x9E3779B9 >>> 8) & (size-1);
+	}
+
+	private void addHost(int ip, MacAddress mac) {
+		if (2*(hostCount+1) > hostKeys.length) {
+			int[] oldKeys = hostKeys;
+			MacAddress[] oldMacs = hostMacs;
+			hostKeys = new int[2*oldKeys.length];
+			hostMacs = new MacAddress[2*oldKeys.length];
+			hostCount = 0;
+			for(int i=0; i<oldKeys.length; i++) {
+				if (oldMacs[i]!=null) addHost(oldKeys[i], oldMacs[i]);
+			}
+		}
+		int i = hash(ip, hostKeys.length);
+		while (hostMacs[i]!=null && hostKeys[i]!=ip) i = (i+1) & (hostKeys.length-1);
+		if (hostMacs[i]==null) hostCount++;
+		hostKeys[i] = ip;
+		hostMacs[i] = mac;
+	}
+
+	private void addNetwork(int ip, int mask, MacAddress mac) {
+		if (networkCount==networks.length) {
+			int[] n = new int[2*networkCount];
+			int[] m = new int[2*networkCount];
+			MacAddress[] ms = new MacAddress[2*networkCount];
+			System.arraycopy(networks, 0, n, 0, networkCount);
+			System.arraycopy(masks, 0, m, 0, networkCount);
+			System.arraycopy(networkMacs, 0, ms, 0, networkCount);
+			networks = n;
+			masks = m;
+			networkMacs = ms;
+		}
+		// keep the longest prefixes first (a longer prefix has a smaller unsigned complement)
+		int i = networkCount;
+		while (i>0 && (~masks[i-1] & 0xFFFFFFFFL) > (~mask & 0xFFFFFFFFL)) {
+			networks[i] = networks[i-1];
+			masks[i] = masks[i-1];
+			networkMacs[i] = networkMacs[i-1];
+			i--;
+		}
+		networks[i] = ip & mask;
+		masks[i] = mask;
+		networkMacs[i] = mac;
+		networkCount++;
+	}
+
+	/**
+	 * Find the peer for an address.
+	 * @param ip the address
+	 * @return the mac address of the peer, null if there is no matching entry
+	 */
+	public MacAddress lookup(int ip) {
+		int i = hash(ip, hostKeys.length);
+		while (hostMacs[i]!=null) {
+			if (hostKeys[i]==ip) return hostMacs[i];
+			i = (i+1) & (hostKeys.length-1);
+		}
+		for(i=0; i<networkCount; i++) {
+			if ((ip & masks[i]) == networks[i]) return networkMacs[i];
+		}
+		return null;
+	}
+}
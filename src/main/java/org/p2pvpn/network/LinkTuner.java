@@ -0,0 +1,222 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sizes the buffers of one TCPConnection from the bandwidth-delay product
+ * of the link.
+ *
+ * The bandwidth is the recent maximum of the measured bandwidth (it decays
+ * slowly, so an idle period doesn't shrink the buffers at once), the delay
+ * is the ping time of the P2PConnection. The socket buffers are set to
+ * BUFFER_BDPS times the BDP. They are left to the operating system (which
+ * may tune them itself) as long as its default is large enough. The send
+ * queue holds QUEUE_BDPS times the BDP in packets, limited by the
+ * configured send buffer size.
+ *
+ * TCP_NODELAY is set, because the send thread already collects packets and
+ * flushes only when the queue is empty. Nagle's algorithm is only used when
+ * there are many small flushes, which would send many small segments.
+ * @author Wolfgang Ginolas
+ */
+public class LinkTuner {
+
+	private static final long TUNE_MS = 1000;
+	private static final double BW_DECAY = 0.95;		// per tune, for the bandwidth maximum
+	private static final double MIN_RTT_MS = 1;
+	private static final double BUFFER_BDPS = 2;		// socket buffer size in BDPs
+	private static final double QUEUE_BDPS = 1;			// send queue size in BDPs
+	private static final int MIN_BUFFER = 64 * 1024;
+	private static final int MAX_BUFFER = 16 * 1024 * 1024;
+	private static final int MIN_QUEUE = 32;			// packets
+	private static final int NAGLE_FLUSH_SIZE = 512;	// use Nagle when flushes are smaller on average
+	private static final int NAGLE_FLUSH_RATE = 1000;	// and more frequent (per second)
+
+	private ConnectionManager connectionManager;	// the ConnectionManager
+	private TCPConnection connection;				// the tuned connection
+	private Socket socket;							// the socket of the connection
+
+	private int defaultSendBuffer;					// SO_SNDBUF chosen by the operating system
+	private int defaultReceiveBuffer;				// SO_RCVBUF chosen by the operating system
+
+	private double maxBwOut, maxBwIn;				// recent maximum bandwidth in bytes/s
+	private volatile double rtt;					// the round trip time in ms
+	private long lastFlushes;						// flushes at the last tune
+	private long lastTune;							// time of the last tune
+
+	private volatile int sendBuffer;				// the current SO_SNDBUF
+	private volatile int receiveBuffer;				// the current SO_RCVBUF
+	private volatile boolean noDelay;				// the current TCP_NODELAY
+	private volatile int queueLimit;				// the current send queue size in packets
+
+	/**
+	 * Create a new LinkTuner and start tuning.
+	 * @param connectionManager the ConnectionManager
+	 * @param connection the TCPConnection
+	 * @param socket the socket of the connection
+	 */
+	public LinkTuner(ConnectionManager connectionManager, TCPConnection connection, Socket socket) {
+		this.connectionManager = connectionManager;
+		this.connection = connection;
+		this.socket = socket;
+		maxBwOut = 0;
+		maxBwIn = 0;
+		rtt = MIN_RTT_MS;
+		lastFlushes = 0;
+		lastTune = System.nanoTime();
+		queueLimit = connectionManager.getSendBufferSize();
+		try {
+			defaultSendBuffer = socket.getSendBufferSize();
+			defaultReceiveBuffer = socket.getReceiveBufferSize();
+			socket.setTcpNoDelay(true);
+		} catch (SocketException e) {
+			Logger.getLogger("").log(Level.WARNING, "", e);
+		}
+		sendBuffer = defaultSendBuffer;
+		receiveBuffer = defaultReceiveBuffer;
+		noDelay = true;
+
+		scheduleTune();
+	}
+
+	/**
+	 * Schedule the next tune.
+	 */
+	private void scheduleTune() {
+		connectionManager.getScheduledExecutor().schedule(new Runnable() {
+			public void run() {
+				tune();
+			}
+		}, TUNE_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Calculate a socket buffer size.
+	 * @param bdp the bandwidth-delay product in bytes
+	 * @param def the default buffer size of the operating system
+	 * @return the buffer size
+	 */
+	private static int bufferSize(double bdp, int def) {
+		double size = Math.min(BUFFER_BDPS*bdp, MAX_BUFFER);
+		if (size<=def) return def;
+		return Math.max(MIN_BUFFER, Integer.highestOneBit((int)size-1) << 1);
+	}
+
+	/**
+	 * Measure the link and adjust the buffers.
+	 */
+	private void tune() {
+		if (socket.isClosed()) return;
+		try {
+			long now = System.nanoTime();
+			double seconds = (now-lastTune) / 1e9;
+			long flushes = connection.getFlushes();
+			double flushRate = (flushes-lastFlushes) / seconds;
+			lastTune = now;
+			lastFlushes = flushes;
+
+			double bwOut = connection.getBwOut().getBandwidth();
+			maxBwOut = Math.max(bwOut, maxBwOut*BW_DECAY);
+			maxBwIn = Math.max(connection.getBwIn().getBandwidth(), maxBwIn*BW_DECAY);
+			P2PConnection p2p = connection.getListener();
+			if (p2p!=null) rtt = Math.max(p2p.getPingTime().getAverage(), MIN_RTT_MS);
+
+			double bdpOut = maxBwOut * rtt / 1000;
+			double bdpIn = maxBwIn * rtt / 1000;
+
+			int snd = bufferSize(bdpOut, defaultSendBuffer);
+			if (snd!=sendBuffer) {
+				socket.setSendBufferSize(snd);
+				sendBuffer = snd;
+			}
+			int rcv = bufferSize(bdpIn, defaultReceiveBuffer);
+			if (rcv!=receiveBuffer) {
+				socket.setReceiveBufferSize(rcv);
+				receiveBuffer = rcv;
+			}
+			boolean nd = !(flushRate>NAGLE_FLUSH_RATE && bwOut/flushRate<NAGLE_FLUSH_SIZE);
+			if (nd!=noDelay) {
+				socket.setTcpNoDelay(nd);
+				noDelay = nd;
+			}
+
+			double packetSize = connection.getPacketSizes().getMean();
+			int max = connectionManager.getSendBufferSize();
+			if (packetSize>0) {
+				queueLimit = (int)Math.min(max, Math.max(MIN_QUEUE, QUEUE_BDPS*bdpOut/packetSize));
+			} else {
+				queueLimit = max;
+			}
+		} catch (SocketException e) {
+			return;
+		} catch (Throwable e) {
+			Logger.getLogger("").log(Level.WARNING, "", e);
+		}
+		scheduleTune();
+	}
+
+	/**
+	 * @return the send queue size in packets
+	 */
+	public int getQueueLimit() {
+		return queueLimit;
+	}
+
+	/**
+	 * @return the current SO_SNDBUF
+	 */
+	public int getSendBuffer() {
+		return sendBuffer;
+	}
+
+	/**
+	 * @return the current SO_RCVBUF
+	 */
+	public int getReceiveBuffer() {
+		return receiveBuffer;
+	}
+
+	/**
+	 * @return is TCP_NODELAY set?
+	 */
+	public boolean isNoDelay() {
+		return noDelay;
+	}
+
+	/**
+	 * @return the round trip time used for the BDP in milliseconds
+	 */
+	public double getRtt() {
+		return rtt;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("queue %d, sndbuf %dK, rcvbuf %dK, rtt %.0f ms%s",
+				getQueueLimit(), getSendBuffer()/1024, getReceiveBuffer()/1024, getRtt(),
+				isNoDelay() ? ", nodelay" : "");
+	}
+}
@@ -103,6 +103,20 @@ public class MacAddress {
 		return result;
 	}
 
+	/**
+	 * Store the address in an array.
+	 * @param b the array
+	 * @param off the offset
+	 */
+	public void getAddress(byte[] b, int off) {
+		long a = address;
+		
+		for(int i=5; i>=0; i--) {
+			b[off+i] = (byte)(a & 0xFF);
+			a >>= 8;
+		}
+	}
+
 	/**
 	 * Is this mac address an broadcast address?
 	 * @return is this mac address an broadcast address?
@@ -110,6 +124,31 @@ public class MacAddress {
 	public boolean isBroadcast() {
 		return 0 != (address & 0x010000000000l);
 	}
+
+	/**
+	 * Is the mac address stored in the array an broadcast address?
+	 * @param address the byte array
+	 * @param off the offset
+	 * @return is this mac address an broadcast address?
+	 */
+	public static boolean isBroadcast(byte[] address, int off) {
+		return 0 != (address[off] & 0x01);
+	}
+
+	/**
+	 * Compare this address with 6 bytes in the array.
+	 * @param address the byte array
+	 * @param off the offset
+	 * @return are the addresses equal?
+	 */
+	public boolean matches(byte[] address, int off) {
+		long a = this.address;
+		for(int i=5; i>=0; i--) {
+			if (address[off+i] != (byte)(a & 0xFF)) return false;
+			a >>= 8;
+		}
+		return true;
+	}
 	
 	@Override
 	public int hashCode() {
@@ -0,0 +1,290 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.p2pvpn.tools.InternetChecksum;
+
+/**
+ * Finds the multicast groups joined by the local host by looking at the
+ * IGMP and MLD reports read from the virtual network adapter. The groups
+ * are published in the "vpn.mcast" entry of the peer database, so other
+ * peers only send us the multicast frames we asked for.
+ *
+ * There is no multicast router in the VPN, so the VPNConnector sends a
+ * general query every QUERY_INTERVAL to keep the reports coming. A group
+ * is removed when it wasn't reported for GROUP_TIMEOUT.
+ * @author Wolfgang Ginolas
+ */
+public class MulticastSnooper {
+
+	public static final long QUERY_INTERVAL = 125*1000;
+	private static final long GROUP_TIMEOUT = 2*QUERY_INTERVAL + 10*1000;
+
+	private static final int ETH_HLEN = 14;
+	private static final int IPV6_HLEN = 40;
+
+	private static final int IGMP = 2;
+	private static final int IGMP_QUERY = 0x11;
+	private static final int IGMPV1_REPORT = 0x12;
+	private static final int IGMPV2_REPORT = 0x16;
+	private static final int IGMPV2_LEAVE = 0x17;
+	private static final int IGMPV3_REPORT = 0x22;
+
+	private static final int ICMPV6 = 58;
+	private static final int MLD_QUERY = 130;
+	private static final int MLDV1_REPORT = 131;
+	private static final int MLDV1_DONE = 132;
+	private static final int MLDV2_REPORT = 143;
+
+	private static final int MODE_IS_INCLUDE = 1;
+	private static final int CHANGE_TO_INCLUDE = 3;
+	private static final int ALLOW_NEW_SOURCES = 5;
+	private static final int BLOCK_OLD_SOURCES = 6;
+
+	// source mac address of the queries, link local address fe80::ff:fe00:1
+	private static final byte[] QUERIER_MAC = {0x02, 0, 0, 0, 0, 0x01};
+
+	private Map<MacAddress, Long> groups;		// joined groups and the time they expire
+
+	/**
+	 * Create a new MulticastSnooper.
+	 */
+	public MulticastSnooper() {
+		groups = new HashMap<MacAddress, Long>();
+	}
+
+	private static int get16(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 8) + (b[off+1] & 0xFF);
+	}
+
+	private static void put16(byte[] b, int off, int val) {
+		b[off] = (byte)(val >> 8);
+		b[off+1] = (byte)val;
+	}
+
+	/**
+	 * Should frames sent to this address be sent to all peers? This is
+	 * true for the broadcast address, the link local multicast groups
+	 * (224.0.0.x, ff02::x, solicited node addresses) and all non IP groups.
+	 * @param b the array
+	 * @param off start of the mac address
+	 * @return send the frame to all peers?
+	 */
+	public static boolean isFlooded(byte[] b, int off) {
+		if (b[off]==0x01 && b[off+1]==0x00 && b[off+2]==0x5E) {
+			return b[off+3]==0 && b[off+4]==0;
+		}
+		if (b[off]==0x33 && b[off+1]==0x33) {
+			return (b[off+2]==0 && b[off+3]==0 && b[off+4]==0) || (b[off+2] & 0xFF)==0xFF;
+		}
+		return true;
+	}
+
+	private static MacAddress ipv4Group(byte[] b, int off) {
+		byte[] m = {0x01, 0x00, 0x5E, (byte)(b[off+1] & 0x7F), b[off+2], b[off+3]};
+		return new MacAddress(m);
+	}
+
+	private static MacAddress ipv6Group(byte[] b, int off) {
+		byte[] m = {0x33, 0x33, b[off+12], b[off+13], b[off+14], b[off+15]};
+		return new MacAddress(m);
+	}
+
+	/**
+	 * Look for IGMP and MLD reports in a frame read from the virtual network
+	 * adapter.
+	 * @param b the array
+	 * @param off start of the frame
+	 * @param len length of the frame
+	 * @return did the list of joined groups change?
+	 */
+	public boolean snoop(byte[] b, int off, int len) {
+		if (len<ETH_HLEN+20) return false;
+		int type = get16(b, off+12);
+		int ip = off+ETH_HLEN;
+		int end = off+len;
+
+		if (type==0x0800 && b[ip+9]==IGMP) {
+			int igmp = ip + (b[ip] & 0xF)*4;
+			if (igmp+8>end) return false;
+			switch (b[igmp] & 0xFF) {
+			case IGMPV1_REPORT:
+			case IGMPV2_REPORT: return join(ipv4Group(b, igmp+4));
+			case IGMPV2_LEAVE: return leave(ipv4Group(b, igmp+4));
+			case IGMPV3_REPORT:
+				boolean changed = false;
+				int rec = igmp+8;
+				for(int n=get16(b, igmp+6); n>0 && rec+8<=end; n--) {
+					changed |= record(b[rec] & 0xFF, get16(b, rec+2), ipv4Group(b, rec+4));
+					rec += 8 + 4*get16(b, rec+2) + 4*(b[rec+1] & 0xFF);
+				}
+				return changed;
+			}
+		} else if (type==0x86DD && len>=ETH_HLEN+IPV6_HLEN+8) {
+			int next = b[ip+6] & 0xFF;
+			int icmp = ip+IPV6_HLEN;
+			if (next==0) {											// MLD uses a hop-by-hop header
+				next = b[icmp] & 0xFF;
+				icmp += ((b[icmp+1] & 0xFF)+1)*8;
+			}
+			if (next!=ICMPV6 || icmp+24>end) return false;
+			switch (b[icmp] & 0xFF) {
+			case MLDV1_REPORT: return join(ipv6Group(b, icmp+8));
+			case MLDV1_DONE: return leave(ipv6Group(b, icmp+8));
+			case MLDV2_REPORT:
+				boolean changed = false;
+				int rec = icmp+8;
+				for(int n=get16(b, icmp+6); n>0 && rec+20<=end; n--) {
+					changed |= record(b[rec] & 0xFF, get16(b, rec+2), ipv6Group(b, rec+4));
+					rec += 20 + 16*get16(b, rec+2) + 4*(b[rec+1] & 0xFF);
+				}
+				return changed;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Handle an IGMPv3/MLDv2 group record.
+	 */
+	private boolean record(int type, int sources, MacAddress group) {
+		if (type==BLOCK_OLD_SOURCES) return false;
+		if (sources==0 && (type==MODE_IS_INCLUDE || type==CHANGE_TO_INCLUDE)) return leave(group);
+		if (sources==0 && type==ALLOW_NEW_SOURCES) return false;
+		return join(group);
+	}
+
+	private synchronized boolean join(MacAddress group) {
+		return groups.put(group, System.currentTimeMillis()+GROUP_TIMEOUT)==null;
+	}
+
+	private synchronized boolean leave(MacAddress group) {
+		return groups.remove(group)!=null;
+	}
+
+	/**
+	 * Remove the groups that weren't reported for some time.
+	 * @return did the list of joined groups change?
+	 */
+	public synchronized boolean expire() {
+		long now = System.currentTimeMillis();
+		boolean changed = false;
+		Iterator<Long> i = groups.values().iterator();
+		while (i.hasNext()) {
+			if (i.next()<now) {
+				i.remove();
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return the joined groups in the format used for "vpn.mcast"
+	 */
+	public synchronized String getGroups() {
+		Set<String> s = new TreeSet<String>();
+		for(MacAddress m : groups.keySet()) s.add(m.toString());
+		StringBuilder result = new StringBuilder();
+		for(String m : s) {
+			if (result.length()>0) result.append(' ');
+			result.append(m);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Create an IGMPv2 general query (source 0.0.0.0, like a querier
+	 * without an address).
+	 * @return the frame
+	 */
+	public static PacketBuffer createIGMPQuery() {
+		PacketBuffer packet = PacketBuffer.obtain();
+		byte[] b = packet.getData();
+		int off = packet.getOffset();
+		int ip = off+ETH_HLEN;
+		int igmp = ip+24;
+
+		byte[] dest = {0x01, 0x00, 0x5E, 0, 0, 0x01};
+		System.arraycopy(dest, 0, b, off, 6);
+		System.arraycopy(QUERIER_MAC, 0, b, off+6, 6);
+		put16(b, off+12, 0x0800);
+
+		for(int i=ip; i<igmp+8; i++) b[i] = 0;
+		b[ip] = 0x46;									// 24 byte header with router alert
+		put16(b, ip+2, 24+8);
+		b[ip+8] = 1;									// TTL
+		b[ip+9] = IGMP;
+		b[ip+16] = (byte)224; b[ip+19] = 1;				// 224.0.0.1
+		b[ip+20] = (byte)0x94; b[ip+21] = 4;			// router alert
+		InternetChecksum.store(b, ip, 24, 0, ip+10);
+
+		b[igmp] = IGMP_QUERY;
+		b[igmp+1] = 100;								// max response time 10s
+		InternetChecksum.store(b, igmp, 8, 0, igmp+2);
+
+		packet.setLength(ETH_HLEN+24+8);
+		return packet;
+	}
+
+	/**
+	 * Create an MLDv1 general query.
+	 * @return the frame
+	 */
+	public static PacketBuffer createMLDQuery() {
+		PacketBuffer packet = PacketBuffer.obtain();
+		byte[] b = packet.getData();
+		int off = packet.getOffset();
+		int ip = off+ETH_HLEN;
+		int hbh = ip+IPV6_HLEN;
+		int icmp = hbh+8;
+
+		byte[] dest = {0x33, 0x33, 0, 0, 0, 0x01};
+		System.arraycopy(dest, 0, b, off, 6);
+		System.arraycopy(QUERIER_MAC, 0, b, off+6, 6);
+		put16(b, off+12, 0x86DD);
+
+		for(int i=ip; i<icmp+24; i++) b[i] = 0;
+		b[ip] = 0x60;
+		put16(b, ip+4, 8+24);
+		b[ip+6] = 0;									// hop-by-hop header
+		b[ip+7] = 1;									// hop limit
+		b[ip+8] = (byte)0xFE; b[ip+9] = (byte)0x80;		// source fe80::ff:fe00:1
+		b[ip+19] = (byte)0xFF; b[ip+20] = (byte)0xFE; b[ip+23] = 1;
+		b[ip+24] = (byte)0xFF; b[ip+25] = 0x02; b[ip+39] = 1;	// destination ff02::1
+
+		b[hbh] = ICMPV6;
+		b[hbh+2] = 5; b[hbh+3] = 2;						// router alert (MLD)
+		b[hbh+6] = 1;									// PadN
+
+		b[icmp] = (byte)MLD_QUERY;
+		put16(b, icmp+4, 10000);						// max response delay 10s
+		int pseudo = InternetChecksum.sum(b, ip+8, 32, 24 + ICMPV6);
+		InternetChecksum.store(b, icmp, 24, pseudo, icmp+2);
+
+		packet.setLength(ETH_HLEN+IPV6_HLEN+8+24);
+		return packet;
+	}
+}
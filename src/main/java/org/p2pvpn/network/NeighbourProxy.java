@@ -0,0 +1,240 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.p2pvpn.tools.InternetChecksum;
+
+/**
+ * Answers ARP requests and IPv6 neighbour solicitations of the local host,
+ * so they don't have to be broadcasted to all peers.
+ *
+ * IPv4 addresses are resolved using the "vpn.ip" of the peers. Addresses
+ * of other hosts (e.g. bridged into the VPN) are learned from the ARP packets
+ * received from the network and kept for CACHE_TIME. IPv6 solicitations are
+ * only answered for link local addresses derived from the mac address of
+ * a peer (EUI-64).
+ * @author Wolfgang Ginolas
+ */
+public class NeighbourProxy {
+
+	private static final long CACHE_TIME = 60*1000;		// keep learned addresses for 60 seconds
+	private static final int MAX_CACHE_SIZE = 1024;
+
+	private static final int ETH_TYPE = 12;
+	private static final int ETH_HLEN = 14;
+
+	private static final int ARP_LEN = 28;
+	private static final int ARP_OPER = 6;
+	private static final int ARP_SHA = 8;
+	private static final int ARP_SPA = 14;
+	private static final int ARP_THA = 18;
+	private static final int ARP_TPA = 24;
+	private static final int ARP_REQUEST = 1;
+	private static final int ARP_REPLY = 2;
+
+	private static final int IPV6_HLEN = 40;
+	private static final int IPV6_SRC = 8;
+	private static final int IPV6_DEST = 24;
+	private static final int ICMPV6 = 58;
+	private static final int ICMPV6_NS = 135;
+	private static final int ICMPV6_NA = 136;
+	private static final int NA_LEN = 32;			// advertisement with target link-layer address option
+
+	private class Entry {
+		MacAddress mac;
+		long expires;
+	}
+
+	private Map<Integer, Entry> cache;				// learned addresses
+
+	/**
+	 * Create a new NeighbourProxy.
+	 */
+	public NeighbourProxy() {
+		cache = new HashMap<Integer, Entry>();
+	}
+
+	private static int get16(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 8) + (b[off+1] & 0xFF);
+	}
+
+	private static void put16(byte[] b, int off, int val) {
+		b[off] = (byte)(val >> 8);
+		b[off+1] = (byte)val;
+	}
+
+	private static boolean isArp(byte[] b, int off, int len) {
+		return len>=ETH_HLEN+ARP_LEN && get16(b, off+ETH_TYPE)==0x0806 &&
+				get16(b, off+ETH_HLEN)==1 && get16(b, off+ETH_HLEN+2)==0x0800 &&
+				b[off+ETH_HLEN+4]==6 && b[off+ETH_HLEN+5]==4;
+	}
+
+	/**
+	 * Learn the addresses of an ARP packet received from the network.
+	 * @param b the array
+	 * @param off start of the frame
+	 * @param len length of the frame
+	 */
+	public void learn(byte[] b, int off, int len) {
+		if (!isArp(b, off, len)) return;
+		int arp = off+ETH_HLEN;
+		int ip = IPPrefixTable.getIP(b, arp+ARP_SPA);
+		if (ip==0 || MacAddress.isBroadcast(b, arp+ARP_SHA)) return;
+
+		long now = System.currentTimeMillis();
+		synchronized (cache) {
+			Entry e = cache.get(ip);
+			if (e==null) {
+				if (cache.size()>=MAX_CACHE_SIZE) {
+					Iterator<Entry> i = cache.values().iterator();
+					while (i.hasNext()) {
+						if (i.next().expires<now) i.remove();
+					}
+					if (cache.size()>=MAX_CACHE_SIZE) return;
+				}
+				e = new Entry();
+				cache.put(ip, e);
+			}
+			e.mac = new MacAddress(b, arp+ARP_SHA);
+			e.expires = now+CACHE_TIME;
+		}
+	}
+
+	private MacAddress lookupCache(int ip) {
+		synchronized (cache) {
+			Entry e = cache.get(ip);
+			if (e==null) return null;
+			if (e.expires<System.currentTimeMillis()) {
+				cache.remove(ip);
+				return null;
+			}
+			return e.mac;
+		}
+	}
+
+	/**
+	 * Answer a frame read from the virtual network adapter, if it is an
+	 * ARP request or neighbour solicitation for a known address.
+	 * @param router the Router, used to find the peers
+	 * @param packet the frame
+	 * @return the reply, or null if the frame has to be sent to the peers
+	 */
+	public PacketBuffer answer(Router router, PacketBuffer packet) {
+		byte[] b = packet.getData();
+		int off = packet.getOffset();
+		int len = packet.getLength();
+
+		if (isArp(b, off, len)) return answerArp(router, b, off);
+		if (len>=ETH_HLEN+IPV6_HLEN+24 && get16(b, off+ETH_TYPE)==0x86DD) {
+			return answerNS(router, b, off);
+		}
+		return null;
+	}
+
+	private PacketBuffer answerArp(Router router, byte[] b, int off) {
+		int arp = off+ETH_HLEN;
+		if (get16(b, arp+ARP_OPER)!=ARP_REQUEST) return null;
+		int spa = IPPrefixTable.getIP(b, arp+ARP_SPA);
+		int tpa = IPPrefixTable.getIP(b, arp+ARP_TPA);
+		// leave gratuitous ARP and address conflict detection to the peers
+		if (spa==0 || spa==tpa) return null;
+
+		MacAddress mac = router.findMacForIP(tpa);
+		if (mac==null) mac = lookupCache(tpa);
+		if (mac==null || mac.equals(router.getMyMAC())) return null;
+
+		PacketBuffer reply = PacketBuffer.obtain();
+		byte[] r = reply.getData();
+		int o = reply.getOffset();
+		int ra = o+ETH_HLEN;
+
+		System.arraycopy(b, arp+ARP_SHA, r, o, 6);					// ethernet destination
+		mac.getAddress(r, o+6);										// ethernet source
+		System.arraycopy(b, off+ETH_TYPE, r, o+ETH_TYPE, 2);
+		System.arraycopy(b, arp, r, ra, ARP_OPER);					// hardware and protocol type
+		put16(r, ra+ARP_OPER, ARP_REPLY);
+		mac.getAddress(r, ra+ARP_SHA);
+		System.arraycopy(b, arp+ARP_TPA, r, ra+ARP_SPA, 4);
+		System.arraycopy(b, arp+ARP_SHA, r, ra+ARP_THA, 10);		// sender hardware and protocol address
+		reply.setLength(ETH_HLEN+ARP_LEN);
+		return reply;
+	}
+
+	private PacketBuffer answerNS(Router router, byte[] b, int off) {
+		int ip = off+ETH_HLEN;
+		int icmp = ip+IPV6_HLEN;
+		if (b[ip+6]!=ICMPV6 || (b[ip+7] & 0xFF)!=255) return null;
+		if ((b[icmp] & 0xFF)!=ICMPV6_NS || b[icmp+1]!=0) return null;
+
+		boolean unspecified = true;
+		for(int i=0; i<16; i++) if (b[ip+IPV6_SRC+i]!=0) unspecified = false;
+		if (unspecified) return null;									// duplicate address detection
+
+		int target = icmp+8;
+		if ((b[target] & 0xFF)!=0xFE || (b[target+1] & 0xC0)!=0x80) return null;
+		for(int i=2; i<8; i++) if (b[target+i]!=0) return null;
+		if ((b[target+11] & 0xFF)!=0xFF || (b[target+12] & 0xFF)!=0xFE) return null;
+
+		byte[] m = new byte[6];
+		m[0] = (byte)(b[target+8] ^ 0x02);
+		m[1] = b[target+9];
+		m[2] = b[target+10];
+		m[3] = b[target+13];
+		m[4] = b[target+14];
+		m[5] = b[target+15];
+		MacAddress mac = new MacAddress(m);
+		if (!router.isPeerMac(mac) || mac.equals(router.getMyMAC())) return null;
+
+		PacketBuffer reply = PacketBuffer.obtain();
+		byte[] r = reply.getData();
+		int o = reply.getOffset();
+		int rip = o+ETH_HLEN;
+		int ricmp = rip+IPV6_HLEN;
+
+		System.arraycopy(b, off+6, r, o, 6);						// ethernet destination
+		mac.getAddress(r, o+6);
+		put16(r, o+ETH_TYPE, 0x86DD);
+
+		r[rip] = 0x60;
+		r[rip+1] = 0; r[rip+2] = 0; r[rip+3] = 0;
+		put16(r, rip+4, NA_LEN);
+		r[rip+6] = ICMPV6;
+		r[rip+7] = (byte)255;
+		System.arraycopy(b, target, r, rip+IPV6_SRC, 16);
+		System.arraycopy(b, ip+IPV6_SRC, r, rip+IPV6_DEST, 16);
+
+		r[ricmp] = (byte)ICMPV6_NA;
+		r[ricmp+1] = 0;
+		r[ricmp+4] = 0x60;											// solicited, override
+		r[ricmp+5] = 0; r[ricmp+6] = 0; r[ricmp+7] = 0;
+		System.arraycopy(b, target, r, ricmp+8, 16);
+		r[ricmp+24] = 2;											// target link-layer address
+		r[ricmp+25] = 1;
+		mac.getAddress(r, ricmp+26);
+
+		int pseudo = InternetChecksum.sum(r, rip+IPV6_SRC, 32, NA_LEN + ICMPV6);
+		InternetChecksum.store(r, ricmp, NA_LEN, pseudo, ricmp+2);
+		reply.setLength(ETH_HLEN+IPV6_HLEN+NA_LEN);
+		return reply;
+	}
+}
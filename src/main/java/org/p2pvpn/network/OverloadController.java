@@ -0,0 +1,350 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the load of this peer and sheds the traffic it forwards for
+ * other peers before the traffic of the local users.
+ *
+ * The load is the largest of three signals, each scaled so that 1 means
+ * saturated: the CPU usage of the busiest packet path thread (a single
+ * one saturates long before all cores are busy) or of the whole process,
+ * the delay and fill level of the send queues and the delay of the global
+ * bandwidth limits. Only the threads registered with addPacketThread()
+ * count, so the JIT, the garbage collector or the GUI don't look like
+ * overload. The load follows a rising signal quickly (a single busy tick
+ * isn't enough to stop relaying) and decays slowly. Above SHED_LOAD bulk transit
+ * packets are ECN marked or dropped with a probability that reaches 1 at
+ * full load, interactive transit packets are only shed above NO_RELAY_LOAD.
+ * Control packets and local traffic are never shed.
+ *
+ * The willingness to relay is published as "net.relay" in the peer
+ * database, so the other peers route around this peer while it is
+ * overloaded.
+ * @author Wolfgang Ginolas
+ */
+public class OverloadController {
+
+	public static final String RELAY_KEY = "net.relay";
+	public static final int RELAY_FULL = 100;
+	public static final int RELAY_REDUCED = 50;
+	public static final int RELAY_NONE = 0;
+
+	private static final long TICK_MS = 250;
+	private static final double RISE = 0.5;			// weight of a new sample when the load rises
+	private static final double DECAY = 0.1;			// weight of a new sample when the load falls
+	private static final double CPU_LOW = 0.7;			// CPU usage where the CPU signal starts
+	private static final double CPU_HIGH = 0.95;		// CPU usage treated as saturated
+	private static final double QUEUE_LOW = 0.5;		// queue fill level where the queue signal starts
+	private static final long MAX_DELAY_NS = 50*1000*1000;	// delay treated as saturated
+	private static final double SHED_LOAD = 0.5;		// start shedding bulk transit packets
+	private static final double REDUCED_LOAD = 0.6;	// advertise RELAY_REDUCED
+	private static final double NO_RELAY_LOAD = 0.9;	// advertise RELAY_NONE
+	private static final double HYSTERESIS = 0.2;		// the load has to fall this much below a threshold
+	private static final long MIN_HOLD_MS = 10*1000;	// before the willingness is raised again
+
+	// the ids of the threads reading and writing packets
+	private static final Set<Long> packetThreads = Collections.synchronizedSet(new HashSet<Long>());
+
+	private ConnectionManager connectionManager;	// the ConnectionManager
+	private Router router;							// the Router
+	private Random random;							// used for random numbers
+	private OperatingSystemMXBean os;				// used to measure the CPU usage
+	private ThreadMXBean threads;					// used to measure the CPU usage of every thread
+
+	private long lastCpuTime;						// process CPU time at the last tick
+	private Map<Long, Long> lastThreadCpuTimes;		// packet thread id -> CPU time at the last tick
+	private long lastTick;							// time of the last tick
+
+	private volatile double load;					// the current load, 0 to 1
+	private volatile int relay;						// the advertised willingness to relay
+	private long relayChanged;						// when the willingness was changed
+
+	private AtomicLong shedPackets;					// transit packets dropped
+	private AtomicLong markedPackets;				// transit packets ECN marked
+
+	/**
+	 * Create a new OverloadController.
+	 * @param connectionManager the ConnectionManager
+	 * @param router the Router
+	 */
+	public OverloadController(ConnectionManager connectionManager, Router router) {
+		this.connectionManager = connectionManager;
+		this.router = router;
+		random = new Random();
+		os = ManagementFactory.getOperatingSystemMXBean();
+		threads = ManagementFactory.getThreadMXBean();
+		lastCpuTime = getProcessCpuTime();
+		lastThreadCpuTimes = new HashMap<Long, Long>();
+		lastTick = System.nanoTime();
+		load = 0;
+		relay = RELAY_FULL;
+		relayChanged = 0;
+		shedPackets = new AtomicLong();
+		markedPackets = new AtomicLong();
+
+		scheduleTick();
+	}
+
+	/**
+	 * Schedule the next measurement.
+	 */
+	private void scheduleTick() {
+		connectionManager.getScheduledExecutor().schedule(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, TICK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Measure the load and update the advertised willingness to relay.
+	 */
+	private void tick() {
+		try {
+			double sample = Math.max(cpuSignal(), Math.max(queueSignal(), limitSignal()));
+			double l = load;
+			load = l + (sample>l ? RISE : DECAY)*(sample-l);
+			updateRelay();
+		} catch (Throwable e) {
+			Logger.getLogger("").log(Level.WARNING, "", e);
+		}
+		scheduleTick();
+	}
+
+	/**
+	 * Count the CPU usage of the calling thread for the CPU signal. Called
+	 * by the threads which read and write the packets of the adapter and
+	 * the connections. Dead threads are forgotten at the next tick.
+	 */
+	public static void addPacketThread() {
+		packetThreads.add(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Scale a value linearly to the range 0 to 1.
+	 * @param v the value
+	 * @param low this and smaller values are mapped to 0
+	 * @param high this and larger values are mapped to 1
+	 * @return the scaled value
+	 */
+	private static double scale(double v, double low, double high) {
+		return Math.max(0, Math.min(1, (v-low) / (high-low)));
+	}
+
+	/**
+	 * @return the CPU time used by this process in nanoseconds, -1 if unknown
+	 */
+	private long getProcessCpuTime() {
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/**
+	 * The highest CPU usage of a single packet thread since the last tick.
+	 * @param elapsed nanoseconds since the last tick
+	 * @return the usage of the busiest thread (1 = one core), 0 if the
+	 * thread CPU time is not available
+	 */
+	private double maxThreadUsage(long elapsed) {
+		if (!threads.isThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled()) return 0;
+		Long[] ids;
+		synchronized (packetThreads) {
+			ids = packetThreads.toArray(new Long[packetThreads.size()]);
+		}
+		Map<Long, Long> cpuTimes = new HashMap<Long, Long>();
+		long max = 0;
+		for(long id : ids) {
+			long cpuTime = threads.getThreadCpuTime(id);
+			if (cpuTime<0) {								// the thread has died
+				packetThreads.remove(id);
+				continue;
+			}
+			cpuTimes.put(id, cpuTime);
+			Long last = lastThreadCpuTimes.get(id);
+			if (last!=null) max = Math.max(max, cpuTime-last);
+		}
+		lastThreadCpuTimes = cpuTimes;
+		return elapsed>0 ? (double)max / elapsed : 0;
+	}
+
+	/**
+	 * The CPU usage since the last tick: the larger of the busiest packet
+	 * thread and the whole process, relative to one and all cores. The system load
+	 * average is used, when the process CPU time is not available.
+	 * @return the CPU signal
+	 */
+	private double cpuSignal() {
+		int cpus = os.getAvailableProcessors();
+		long now = System.nanoTime();
+		long cpuTime = getProcessCpuTime();
+		double usage;
+		if (cpuTime>=0 && lastCpuTime>=0 && now>lastTick) {
+			usage = (double)(cpuTime-lastCpuTime) / (now-lastTick) / cpus;
+		} else {
+			usage = os.getSystemLoadAverage() / cpus;
+		}
+		usage = Math.max(usage, maxThreadUsage(now-lastTick));
+		lastCpuTime = cpuTime;
+		lastTick = now;
+		return scale(usage, CPU_LOW, CPU_HIGH);
+	}
+
+	/**
+	 * The worst send queue of all neighbours, measured by the delay of
+	 * the flows CoDel is dropping from and the fill level.
+	 * @return the queue signal
+	 */
+	private double queueSignal() {
+		double result = 0;
+		for(P2PConnection c : router.getConnections()) {
+			TCPConnection t = c.getConnection();
+			double max = t.getLinkTuner().getQueueLimit();
+			int size;
+			synchronized (t.getSendQueue()) {
+				size = t.getSendQueue().size();
+			}
+			result = Math.max(result, scale(t.getCongestion(), 0, MAX_DELAY_NS));
+			result = Math.max(result, scale(size/max, QUEUE_LOW, 1));
+		}
+		return result;
+	}
+
+	/**
+	 * The pressure on the global bandwidth limits: how long a packet has
+	 * to wait for tokens.
+	 * @return the limit signal
+	 */
+	private double limitSignal() {
+		long delay = Math.max(connectionManager.getSendLimit().getDelay(),
+				connectionManager.getRecLimit().getDelay());
+		return scale(delay, 0, MAX_DELAY_NS);
+	}
+
+	/**
+	 * Lower the advertised willingness to relay at once when the load
+	 * rises, raise it only after the load fell well below the threshold
+	 * and MIN_HOLD_MS passed, so the peer database isn't flooded with
+	 * updates.
+	 */
+	private void updateRelay() {
+		double l = load;
+		int r = relay;
+		if (l>=NO_RELAY_LOAD) r = RELAY_NONE;
+		else if (l>=REDUCED_LOAD && r==RELAY_FULL) r = RELAY_REDUCED;
+		else if (l<REDUCED_LOAD-HYSTERESIS) r = RELAY_FULL;
+		else if (l<NO_RELAY_LOAD-HYSTERESIS && r==RELAY_NONE) r = RELAY_REDUCED;
+
+		long now = System.currentTimeMillis();
+		if (r==relay || (r>relay && now-relayChanged<MIN_HOLD_MS)) return;
+		Logger.getLogger("").log(Level.INFO, String.format(
+				"relay willingness %d -> %d (load %.2f)", relay, r, l));
+		relay = r;
+		relayChanged = now;
+		router.setLocalPeerInfo(RELAY_KEY, ""+r);
+	}
+
+	/**
+	 * Decide if a packet forwarded for another peer has to be shed. Bulk
+	 * packets which support ECN are marked instead.
+	 * @param tc the traffic class of the packet
+	 * @param packet the packet
+	 * @return drop the packet?
+	 */
+	boolean shedTransit(SendScheduler.TrafficClass tc, PacketBuffer packet) {
+		double p;
+		switch (tc) {
+			case BULK: p = scale(load, SHED_LOAD, 1); break;
+			case INTERACTIVE: p = scale(load, NO_RELAY_LOAD, 1); break;
+			default: return false;
+		}
+		if (p<=0 || random.nextDouble()>=p) return false;
+		if (tc==SendScheduler.TrafficClass.BULK && SendScheduler.mark(packet)) {
+			markedPackets.incrementAndGet();
+			return false;
+		}
+		shedPackets.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Parse the willingness to relay published by a peer.
+	 * @param value the value of "net.relay", may be null
+	 * @return the willingness, RELAY_FULL if unknown
+	 */
+	static int parseRelay(String value) {
+		if (value==null) return RELAY_FULL;
+		try {
+			return Math.max(RELAY_NONE, Math.min(RELAY_FULL, Integer.parseInt(value.trim())));
+		} catch (NumberFormatException e) {
+			return RELAY_FULL;
+		}
+	}
+
+	/**
+	 * @return the current load, 0 to 1
+	 */
+	public double getLoad() {
+		return load;
+	}
+
+	/**
+	 * @return the advertised willingness to relay
+	 */
+	public int getRelay() {
+		return relay;
+	}
+
+	/**
+	 * @return the number of dropped transit packets
+	 */
+	public long getShedPackets() {
+		return shedPackets.get();
+	}
+
+	/**
+	 * @return the number of ECN marked transit packets
+	 */
+	public long getMarkedPackets() {
+		return markedPackets.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("load %.2f, relay %d, shed %d, marked %d",
+				getLoad(), getRelay(), getShedPackets(), getMarkedPackets());
+	}
+}
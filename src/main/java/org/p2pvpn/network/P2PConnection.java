@@ -21,12 +21,19 @@ package org.p2pvpn.network;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
+import org.p2pvpn.network.bandwidth.Histogram;
 import org.p2pvpn.network.bandwidth.SlidingAverage;
+import org.p2pvpn.network.metrics.FlightEvent;
 import org.p2pvpn.tools.AdvProperties;
 import org.p2pvpn.tools.CryptoUtils;
 
@@ -53,8 +60,15 @@ public class P2PConnection {
 	private AdvProperties remoteAccess;				// the remote access invitation
 	private long remoteExpiryDate;					// the remote date of expiry
 	private Router router;							// the router
+	private long handshakeStart;					// when the handshake started
+	private volatile boolean timedOut;				// did the handshake time out?
 
 	private SlidingAverage pingTime;				// the latency for this connection
+	private Histogram pingHistogram;				// all measured latencies in ms
+	private volatile Set<String> remoteFeatures;	// the features the remote peer supports
+	private volatile int remoteRelay;				// the willingness of the remote peer to relay
+	private ConcurrentHashMap<MacAddress, Long> pausedUntil;	// destinations the peer asked us to hold back
+	private ConcurrentHashMap<MacAddress, Long> pauseSent;		// when we asked the peer to hold back
 
 
 	/**
@@ -66,16 +80,24 @@ public class P2PConnection {
 			TCPConnection connection) {
 
 		pingTime = new SlidingAverage(PING_BUCKET_LEN, 0);
+		pingHistogram = new Histogram();
 		this.connectionManager = connectionManager;
 		this.connection = connection;
 
 		remoteAddr = null;
+		remoteFeatures = Collections.emptySet();
+		remoteRelay = OverloadController.RELAY_FULL;
+		pausedUntil = new ConcurrentHashMap<MacAddress, Long>();
+		pauseSent = new ConcurrentHashMap<MacAddress, Long>();
 		
 		connection.setListener(this);
 		
 		AdvProperties access = connectionManager.getAccessCfg().filter("access", false);
 		connection.send(access.asBytes(), true);
 		state = P2PConnState.WAIT_FOR_ACCESS;
+		handshakeStart = System.nanoTime();
+		timedOut = false;
+		connectionManager.handshakeStarted();
 
 		schedTimeout = 
 			connectionManager.getScheduledExecutor().schedule(new Runnable() {
@@ -100,6 +122,7 @@ public class P2PConnection {
 		if (state!=P2PConnState.CONNECTED) {
 			Logger.getLogger("").log(Level.INFO, "Timeout in handshake with "+connection.toString()+
 					" in state: "+state);
+			timedOut = true;
 			connection.close();
 		}
 	}
@@ -109,14 +132,29 @@ public class P2PConnection {
 	 */
 	public void connectionClosed() {
 		Logger.getLogger("").log(Level.INFO, "P2P connection to "+connection+" lost");
+		if (state!=P2PConnState.CONNECTED) {
+			connectionManager.handshakeFailed();
+			if (FlightEvent.HANDSHAKE.isEnabled()) {
+				String outcome = (timedOut ? "timeout in " : "closed in ")+state.toString().toLowerCase();
+				FlightEvent.HANDSHAKE.commit(connection, outcome, System.nanoTime()-handshakeStart);
+			}
+		}
 		if (router!=null) router.connectionClosed(this);
 	}
 
 	/**
 	 * Called, when a packat arrived.
-	 * @param packet the packet
+	 * @param buffer the packet
 	 */
-	public void receive(byte[] packet) {
+	public void receive(PacketBuffer buffer) {
+		if (state == P2PConnState.CONNECTED) {
+			if (router!=null) router.receive(this, buffer);
+			else buffer.release();
+			return;
+		}
+
+		byte[] packet = buffer.toByteArray();
+		buffer.release();
 		try {
 			switch (state) {
 				case WAIT_FOR_ACCESS: {
@@ -175,12 +213,13 @@ public class P2PConnection {
 					state = P2PConnState.CONNECTED;
 					Logger.getLogger("").log(Level.INFO, "new connection to "+connection.getRemoteHost()+" ("+remoteAddr+")");
 					schedTimeout.cancel(false);
+					connectionManager.handshakeCompleted();
+					if (FlightEvent.HANDSHAKE.isEnabled()) {
+						FlightEvent.HANDSHAKE.commit(connection, "completed", System.nanoTime()-handshakeStart);
+					}
 					connectionManager.newP2PConnection(this);
 					break;
 				}
-				case CONNECTED:
-					router.receive(this, packet);
-					break;
 			}
 		} catch (Throwable t) {
 			Logger.getLogger("").log(Level.WARNING, "closing connection to +"+remoteAddr, t);
@@ -197,6 +236,57 @@ public class P2PConnection {
 		if (state == P2PConnState.CONNECTED) connection.send(packet, highPriority);
 	}
 
+	/**
+	 * Send a packet. The packet is released when it can't be sent.
+	 * @param packet the packet
+	 * @param highPriority does this packet habe ah high priority?
+	 */
+	public void send(PacketBuffer packet, boolean highPriority) {
+		if (state == P2PConnState.CONNECTED) connection.send(packet, highPriority);
+		else packet.release();
+	}
+
+	/**
+	 * The remote peer asked us to hold back bulk packets for a destination,
+	 * because its queue to the next hop is congested.
+	 * @param dest the destination
+	 * @param ns the time to hold back in nanoseconds
+	 */
+	public void pause(MacAddress dest, long ns) {
+		pausedUntil.put(dest, System.nanoTime()+ns);
+	}
+
+	/**
+	 * @param dest the destination
+	 * @return nanoseconds to hold back bulk packets for the destination, 0 if none
+	 */
+	public long getPause(MacAddress dest) {
+		if (pausedUntil.isEmpty()) return 0;
+		Long until = pausedUntil.get(dest);
+		if (until==null) return 0;
+		long pause = until-System.nanoTime();
+		if (pause<=0) {
+			pausedUntil.remove(dest, until);
+			return 0;
+		}
+		return pause;
+	}
+
+	/**
+	 * Check if we should ask the remote peer to hold back packets for a
+	 * destination. We ask at most once in the given time.
+	 * @param dest the destination
+	 * @param ns the time the peer should hold back
+	 * @return send the request now?
+	 */
+	boolean pauseDue(MacAddress dest, long ns) {
+		long now = System.nanoTime();
+		Long last = pauseSent.get(dest);
+		if (last!=null && now-last<ns) return false;
+		pauseSent.put(new MacAddress(dest.getAddress()), now);
+		return true;
+	}
+
 	/**
 	 * @return did the remote invitation expire?
 	 */
@@ -215,7 +305,62 @@ public class P2PConnection {
 		connection.close();
 	}
 
+	/**
+	 * Set the features the remote peer supports. Also sets the largest packet
+	 * size of the connection and the use of aggregation and compression.
+	 * @param features space separated list of features, may be null
+	 */
+	public void setRemoteFeatures(String features) {
+		Set<String> result = new HashSet<String>();
+		if (features!=null) {
+			StringTokenizer st = new StringTokenizer(features);
+			while (st.hasMoreTokens()) result.add(st.nextToken());
+		}
+		remoteFeatures = result;
+		connection.setMaxPacketSize(result.contains(Router.FEATURE_JUMBO) ?
+				TCPConnection.MAX_JUMBO_PACKET_SIZE : TCPConnection.MAX_PACKET_SIZE);
+		connection.setAggregate(result.contains(Router.FEATURE_AGGREGATE));
+		connection.setCompress(result.contains(Router.FEATURE_DEFLATE) &&
+				connectionManager.getRouter().isCompress());
+		connection.setHeaderCompression(result.contains(Router.FEATURE_HEADER_COMPRESSION));
+		connection.setRedundancyElimination(result.contains(Router.FEATURE_REDUNDANCY_ELIMINATION) &&
+				connectionManager.getRouter().isRedundancyElimination());
+	}
+
+	/**
+	 * @param feature the feature
+	 * @return does the remote peer support this feature?
+	 */
+	public boolean supports(String feature) {
+		return remoteFeatures.contains(feature);
+	}
+
+	/**
+	 * Set the willingness of the remote peer to relay packets for us.
+	 * @param relay OverloadController.RELAY_NONE to RELAY_FULL
+	 */
+	public void setRemoteRelay(int relay) {
+		remoteRelay = relay;
+	}
+
+	public int getRemoteRelay() {
+		return remoteRelay;
+	}
+
 	public SlidingAverage getPingTime() {
 		return pingTime;
 	}
+
+	public Histogram getPingHistogram() {
+		return pingHistogram;
+	}
+
+	/**
+	 * Use a measured latency for the ping statistics.
+	 * @param ms the latency in milliseconds
+	 */
+	public void addPingTime(long ms) {
+		pingTime.putVaule(ms);
+		pingHistogram.record(ms);
+	}
 }
@@ -0,0 +1,236 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import org.p2pvpn.tuntap.VirtioNetHeader;
+
+/**
+ * A packet stored in a reusable byte array. Some space in front of the
+ * packet (the headroom) is kept free, so the Router can add its header
+ * without copying the packet.
+ *
+ * Whoever receives a PacketBuffer owns it and has to call release() when
+ * the packet is not needed anymore.
+ * @author Wolfgang Ginolas
+ */
+public class PacketBuffer {
+
+	// the Router header, an ethernet header and the virtio_net_hdr of the adapter
+	public static final int HEADROOM = 16 + VirtioNetHeader.SIZE;
+
+	private static final int MAX_POOL_SIZE = 256;
+
+	private static final PacketBuffer[] pool = new PacketBuffer[MAX_POOL_SIZE];
+	private static int poolSize = 0;
+	private static volatile int capacity = HEADROOM + TCPConnection.MAX_PACKET_SIZE;
+
+	private byte[] data;			// the array holding the packet
+	private int offset;				// start of the packet
+	private int length;				// length of the packet
+	private boolean pooled;			// return this buffer to the pool?
+	private boolean free;			// is this buffer currently in the pool?
+	private long timestamp;			// when the packet was queued (System.nanoTime())
+	private long traceStart;		// when a traced packet was read, 0 if it isn't traced
+	private long traceTime;			// end of the last stage of a traced packet
+
+	private PacketBuffer(byte[] data, int offset, int length, boolean pooled) {
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		this.pooled = pooled;
+		this.free = false;
+	}
+
+	/**
+	 * @return the size of the largest packet a pooled buffer can hold
+	 */
+	public static int getMaxPacketSize() {
+		return capacity - HEADROOM;
+	}
+
+	/**
+	 * Change the size of the pooled buffers. Smaller buffers still in the
+	 * pool are thrown away when they are obtained.
+	 * @param size the size of the largest packet a buffer has to hold
+	 */
+	public static void setMaxPacketSize(int size) {
+		capacity = HEADROOM + size;
+	}
+
+	/**
+	 * Get an empty buffer from the pool. The packet starts after the headroom.
+	 * @return the buffer
+	 */
+	public static PacketBuffer obtain() {
+		PacketBuffer b = null;
+		synchronized (pool) {
+			if (poolSize>0) {
+				poolSize--;
+				b = pool[poolSize];
+				pool[poolSize] = null;
+			}
+		}
+		if (b==null || b.data.length<capacity) {
+			return new PacketBuffer(new byte[capacity], HEADROOM, 0, true);
+		}
+
+		b.free = false;
+		b.offset = HEADROOM;
+		b.length = 0;
+		b.traceStart = 0;
+		return b;
+	}
+
+	/**
+	 * Get an empty buffer that can hold at least size bytes. Buffers
+	 * larger than the pooled ones are allocated and not put into the pool.
+	 * @param size the size of the packet
+	 * @return the buffer
+	 */
+	public static PacketBuffer obtain(int size) {
+		if (size<=capacity-HEADROOM) return obtain();
+		return new PacketBuffer(new byte[HEADROOM+size], HEADROOM, 0, false);
+	}
+
+	/**
+	 * Get a buffer from the pool containing a copy of the given bytes.
+	 * @param b the array
+	 * @param off start of the packet
+	 * @param len length of the packet
+	 * @return the buffer
+	 */
+	public static PacketBuffer copyOf(byte[] b, int off, int len) {
+		PacketBuffer result = obtain(len);
+		System.arraycopy(b, off, result.data, result.offset, len);
+		result.length = len;
+		return result;
+	}
+
+	/**
+	 * Wrap an existing array. The buffer has no headroom and won't
+	 * be put into the pool.
+	 * @param packet the packet
+	 * @return the buffer
+	 */
+	public static PacketBuffer wrap(byte[] packet) {
+		return new PacketBuffer(packet, 0, packet.length, false);
+	}
+
+	/**
+	 * Return the buffer to the pool.
+	 */
+	public void release() {
+		if (!pooled) return;
+		synchronized (pool) {
+			if (free) return;
+			free = true;
+			if (poolSize<MAX_POOL_SIZE) {
+				pool[poolSize] = this;
+				poolSize++;
+			}
+		}
+	}
+
+	/**
+	 * Add a header in front of the packet.
+	 * @param len length of the header
+	 * @return the offset of the header
+	 */
+	public int prepend(int len) {
+		if (len>offset) throw new IllegalStateException("Not enough headroom");
+		offset -= len;
+		length += len;
+		return offset;
+	}
+
+	/**
+	 * Remove a header from the packet.
+	 * @param len length of the header
+	 */
+	public void strip(int len) {
+		offset += len;
+		length -= len;
+	}
+
+	/**
+	 * @return a copy of the packet in a new array
+	 */
+	public byte[] toByteArray() {
+		byte[] result = new byte[length];
+		System.arraycopy(data, offset, result, 0, length);
+		return result;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public void setLength(int length) {
+		this.length = length;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Trace this packet through the pipeline, see PacketTracer.
+	 * @param now the current time (System.nanoTime())
+	 */
+	public void startTrace(long now) {
+		traceStart = now;
+		traceTime = now;
+	}
+
+	public boolean isTraced() {
+		return traceStart!=0;
+	}
+
+	public long getTraceStart() {
+		return traceStart;
+	}
+
+	public long getTraceTime() {
+		return traceTime;
+	}
+
+	public void setTraceTime(long traceTime) {
+		this.traceTime = traceTime;
+	}
+
+	/**
+	 * @return the number of bytes that can be added after the packet
+	 */
+	public int getTailroom() {
+		return data.length - offset - length;
+	}
+}
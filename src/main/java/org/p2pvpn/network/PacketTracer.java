@@ -0,0 +1,133 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import org.p2pvpn.network.bandwidth.Histogram;
+
+/**
+ * Measures how long sampled packets spend in each stage of the pipeline
+ * of one TCPConnection.
+ *
+ * One of every getSampleInterval() packets read by each thread from the
+ * virtual network adapter or from a socket is traced. The interval can be
+ * set with the system property p2pvpn.trace.sample (0 disables tracing),
+ * the default is cheap enough to stay on.
+ *
+ * Send stages: TAP_READ from the adapter read to the Router, ROUTE until
+ * the packet is queued, QUEUE until it is taken from the send queue,
+ * PROCESS for aggregation, redundancy elimination and compression, ENCRYPT
+ * and WRITE (including the wait for the bandwidth limit).
+ * Receive stages: READ of the packet from the socket (including the wait
+ * for the bandwidth limit), DECRYPT and DELIVER to the adapter or the
+ * send queue of the next hop.
+ * @author Wolfgang Ginolas
+ */
+public class PacketTracer {
+
+	public enum Stage {TAP_READ, ROUTE, QUEUE, PROCESS, ENCRYPT, WRITE, READ, DECRYPT, DELIVER};
+
+	private static volatile int sampleInterval = Integer.getInteger("p2pvpn.trace.sample", 1000);
+	// packets since the last sample, counted by every reading thread on its own
+	private static final ThreadLocal<int[]> counter = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	private Histogram[] stages;			// the stage latencies in microseconds
+
+	/**
+	 * Create a new PacketTracer.
+	 */
+	public PacketTracer() {
+		stages = new Histogram[Stage.values().length];
+		for(int i=0; i<stages.length; i++) stages[i] = new Histogram();
+	}
+
+	/**
+	 * Decide if the next packet is traced. The reading threads don't share
+	 * the counter, so they don't fight over its cache line.
+	 * @return trace it?
+	 */
+	static boolean sample() {
+		int n = sampleInterval;
+		if (n<=0) return false;
+		int[] c = counter.get();
+		if (++c[0]<n) return false;
+		c[0] = 0;
+		return true;
+	}
+
+	/**
+	 * @return one of this many packets is traced, 0 if tracing is disabled
+	 */
+	public static int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * Set the sampling rate.
+	 * @param n trace one of this many packets, 0 to disable tracing
+	 */
+	public static void setSampleInterval(int n) {
+		sampleInterval = n;
+	}
+
+	/**
+	 * Record the time a packet spent in a stage.
+	 * @param stage the stage
+	 * @param ns the time in nanoseconds
+	 */
+	void record(Stage stage, long ns) {
+		stages[stage.ordinal()].record(ns / 1000);
+	}
+
+	/**
+	 * @param stage the stage
+	 * @return the latencies of the stage in microseconds
+	 */
+	public Histogram getHistogram(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	/**
+	 * @return was any packet traced?
+	 */
+	public boolean hasSamples() {
+		for(Histogram h : stages) {
+			if (h.getCount()>0) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for(Stage s : Stage.values()) {
+			Histogram h = stages[s.ordinal()];
+			if (h.getCount()==0) continue;
+			if (result.length()>0) result.append(", ");
+			result.append(String.format("%s p50 %d us, p99 %d us",
+					s.toString().toLowerCase(), h.getPercentile(50), h.getPercentile(99)));
+		}
+		return result.toString();
+	}
+}
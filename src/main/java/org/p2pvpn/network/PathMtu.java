@@ -0,0 +1,195 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import org.p2pvpn.tools.InternetChecksum;
+
+/**
+ * Functions to keep the packets of the local host small enough for
+ * the tunnel: TCP MSS clamping and ICMP "packet too big" messages.
+ * @author Wolfgang Ginolas
+ */
+public class PathMtu {
+
+	private static final int ETH_HLEN = 14;
+	private static final int IPV6_HLEN = 40;
+	private static final int IP_PROTO_ICMP = 1;
+	private static final int IP_PROTO_TCP = 6;
+	private static final int IP_PROTO_ICMPV6 = 58;
+	private static final int TCP_SYN = 0x02;
+	private static final int TCP_OPT_MSS = 2;
+
+	private static final int IPV4_MIN_MTU = 576;
+	private static final int IPV6_MIN_MTU = 1280;
+
+	private static int get16(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 8) + (b[off+1] & 0xFF);
+	}
+
+	private static void put16(byte[] b, int off, int val) {
+		b[off] = (byte)(val >> 8);
+		b[off+1] = (byte)val;
+	}
+
+	/**
+	 * Lower the MSS option of a TCP SYN packet, so the segments of the
+	 * connection fit into the given MTU. The TCP checksum is updated.
+	 * @param b the array
+	 * @param off start of the ethernet frame
+	 * @param len length of the frame
+	 * @param mtu the maximum size of IP packets
+	 */
+	public static void clampMss(byte[] b, int off, int len, int mtu) {
+		if (len<ETH_HLEN+20) return;
+		int type = get16(b, off+12);
+		int ip = off+ETH_HLEN;
+		int tcp, mss;
+
+		if (type==0x0800) {
+			if (b[ip+9]!=IP_PROTO_TCP || (get16(b, ip+6) & 0x1FFF)!=0) return;	// not the first fragment
+			tcp = ip + (b[ip] & 0xF)*4;
+			mss = mtu-40;
+		} else if (type==0x86DD) {
+			if (len<ETH_HLEN+IPV6_HLEN || b[ip+6]!=IP_PROTO_TCP) return;
+			tcp = ip+IPV6_HLEN;
+			mss = mtu-60;
+		} else {
+			return;
+		}
+		if (tcp+20>off+len || (b[tcp+13] & TCP_SYN)==0) return;
+
+		int end = Math.min(tcp + ((b[tcp+12] >> 4) & 0xF)*4, off+len);
+		int opt = tcp+20;
+		while (opt<end && b[opt]!=0) {
+			if (b[opt]==1) {							// NOP
+				opt++;
+				continue;
+			}
+			if (opt+1>=end || (b[opt+1] & 0xFF)<2) return;
+			if (b[opt]==TCP_OPT_MSS && b[opt+1]==4 && opt+4<=end) {
+				int old = get16(b, opt+2);
+				if (old>mss) {
+					put16(b, opt+2, mss);
+					InternetChecksum.update(b, tcp+16, old, mss);
+				}
+				return;
+			}
+			opt += b[opt+1] & 0xFF;
+		}
+	}
+
+	/**
+	 * Create an ICMP "fragmentation needed" or ICMPv6 "packet too big"
+	 * message for a frame that is too large for the tunnel. The message
+	 * appears to come from the destination of the frame.
+	 * @param b the array
+	 * @param off start of the ethernet frame
+	 * @param len length of the frame (the frame may be truncated)
+	 * @param mtu the maximum size of IP packets
+	 * @return the message, or null if none should be sent
+	 */
+	public static PacketBuffer createTooBig(byte[] b, int off, int len, int mtu) {
+		if (len<ETH_HLEN+IPV6_HLEN) return null;
+		int type = get16(b, off+12);
+		int ip = off+ETH_HLEN;
+
+		if (type==0x0800) {
+			if ((b[ip+6] & 0x40)==0) return null;			// don't fragment not set
+			if ((b[ip+16] & 0xF0)==0xE0) return null;		// multicast destination
+			if ((b[off] & 1)!=0 || IPPrefixTable.getIP(b, ip+16)==-1) return null;	// broadcast
+			int hlen = (b[ip] & 0xF)*4;
+			if (b[ip+9]==IP_PROTO_ICMP && ip+hlen<off+len) {
+				int t = b[ip+hlen] & 0xFF;
+				if (t!=0 && t!=8) return null;				// never answer an error with an error
+			}
+			return createICMP(b, off, len, mtu);
+		} else if (type==0x86DD) {
+			if ((b[ip+24] & 0xFF)==0xFF) return null;		// multicast destination
+			if (b[ip+6]==IP_PROTO_ICMPV6 && (b[ip+IPV6_HLEN] & 0x80)==0) return null;
+			return createICMPv6(b, off, len, mtu);
+		}
+		return null;
+	}
+
+	private static void ethernetHeader(byte[] b, int off, byte[] r, int o) {
+		System.arraycopy(b, off+6, r, o, 6);
+		System.arraycopy(b, off, r, o+6, 6);
+		System.arraycopy(b, off+12, r, o+12, 2);
+	}
+
+	private static PacketBuffer createICMP(byte[] b, int off, int len, int mtu) {
+		PacketBuffer reply = PacketBuffer.obtain();
+		byte[] r = reply.getData();
+		int o = reply.getOffset();
+		int ip = off+ETH_HLEN;
+		int rip = o+ETH_HLEN;
+		int icmp = rip+20;
+		int quote = Math.min(len-ETH_HLEN, IPV4_MIN_MTU-20-8);
+
+		ethernetHeader(b, off, r, o);
+		for(int i=rip; i<icmp+8; i++) r[i] = 0;
+		r[rip] = 0x45;
+		put16(r, rip+2, 20+8+quote);
+		r[rip+8] = 64;
+		r[rip+9] = IP_PROTO_ICMP;
+		System.arraycopy(b, ip+16, r, rip+12, 4);
+		System.arraycopy(b, ip+12, r, rip+16, 4);
+		InternetChecksum.store(r, rip, 20, 0, rip+10);
+
+		r[icmp] = 3;										// destination unreachable
+		r[icmp+1] = 4;										// fragmentation needed
+		put16(r, icmp+6, mtu);
+		System.arraycopy(b, ip, r, icmp+8, quote);
+		InternetChecksum.store(r, icmp, 8+quote, 0, icmp+2);
+
+		reply.setLength(ETH_HLEN+20+8+quote);
+		return reply;
+	}
+
+	private static PacketBuffer createICMPv6(byte[] b, int off, int len, int mtu) {
+		PacketBuffer reply = PacketBuffer.obtain();
+		byte[] r = reply.getData();
+		int o = reply.getOffset();
+		int ip = off+ETH_HLEN;
+		int rip = o+ETH_HLEN;
+		int icmp = rip+IPV6_HLEN;
+		int quote = Math.min(len-ETH_HLEN, IPV6_MIN_MTU-IPV6_HLEN-8);
+
+		ethernetHeader(b, off, r, o);
+		r[rip] = 0x60;
+		r[rip+1] = 0; r[rip+2] = 0; r[rip+3] = 0;
+		put16(r, rip+4, 8+quote);
+		r[rip+6] = IP_PROTO_ICMPV6;
+		r[rip+7] = 64;
+		System.arraycopy(b, ip+24, r, rip+8, 16);
+		System.arraycopy(b, ip+8, r, rip+24, 16);
+
+		r[icmp] = 2;										// packet too big
+		r[icmp+1] = 0;
+		put16(r, icmp+4, mtu >>> 16);
+		put16(r, icmp+6, mtu);
+		System.arraycopy(b, ip, r, icmp+8, quote);
+		int pseudo = InternetChecksum.sum(r, rip+8, 32, 8+quote + IP_PROTO_ICMPV6);
+		InternetChecksum.store(r, icmp, 8+quote, pseudo, icmp+2);
+
+		reply.setLength(ETH_HLEN+IPV6_HLEN+8+quote);
+		return reply;
+	}
+}
@@ -80,7 +80,7 @@ public class Pinger implements InternalPacketListener {
 				if (time-i.getSendTime() > MAX_PING_TIME_MS) {
 					iter.remove();
 					P2PConnection c = router.getP2PConnection(i.getMac());
-					if (c!=null) c.getPingTime().putVaule(MAX_PING_TIME_MS);
+					if (c!=null) c.addPingTime(MAX_PING_TIME_MS);
 				}
 			}
 		}
@@ -155,7 +155,7 @@ public class Pinger implements InternalPacketListener {
 				P2PConnection c = router.getP2PConnection(info.getMac());
 				//System.out.println("ping reply from "+info.getMac());
 				if (c!=null) {
-					c.getPingTime().putVaule(time - info.getSendTime());
+					c.addPingTime(time - info.getSendTime());
 				}
 			}
 		}
@@ -0,0 +1,409 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import java.util.Random;
+
+/**
+ * Replaces content sent over one TCPConnection before by short references
+ * (redundancy elimination).
+ *
+ * Packets are split into chunks at content defined boundaries (gear hash),
+ * so the same data is split the same way, regardless of its position in
+ * the packet. Both sides keep the chunks in a cache of CACHE_SIZE bytes,
+ * which is filled in the same order: the sender adds every chunk it sends
+ * literally, the receiver every literal chunk it gets. A chunk that is
+ * still in the cache is sent as its position in the cache.
+ *
+ * The caches only stay the same as long as every encoded packet arrives.
+ * The packets are numbered; when the receiver misses one, it drops the
+ * packets until the sender starts a new epoch with empty caches.
+ *
+ * Format: ENCODED_PACKET, epoch, 2 byte sequence number, then records:
+ * literal data (2 byte length &lt; 0x8000, the data) or references
+ * (0x80 | length &gt;&gt; 8, length &amp; 0xFF, 3 byte position).
+ * RESET_PACKET, epoch: the receiver can't decode the given epoch.
+ * @author Wolfgang Ginolas
+ */
+public class RedundancyEliminator {
+
+	static final byte ENCODED_PACKET = 12;
+	static final byte RESET_PACKET = 13;
+
+	private static final int HEADER = 4;
+	private static final int LITERAL = 2;
+	private static final int REFERENCE = 5;
+	private static final int MAX_LITERAL = 0x7FFF;
+	private static final int MIN_SIZE = 256;		// don't encode smaller packets
+	private static final int MIN_CHUNK = 32;		// smaller chunks are never cached
+	private static final int MAX_CHUNK = 512;
+	private static final int BOUNDARY_MASK = 0xFE000000;	// a boundary about every 128 bytes
+	private static final int CACHE_SIZE = 4 * 1024 * 1024;	// per direction, at most 16 MB
+	private static final int INDEX_BITS = 16;
+	private static final int RESET_INTERVAL = 64;	// repeat the reset after this many dropped packets
+
+	private static final int[] GEAR = new int[256];
+	static {
+		Random random = new Random(0x2F3A9B1DL);		// both sides have to use the same table
+		for(int i=0; i<GEAR.length; i++) GEAR[i] = random.nextInt();
+	}
+
+	private byte[] sendCache;						// allocated when it is needed
+	private int sendPos;							// the next chunk is stored here
+	private long[] indexHash;						// hash of the cached chunks
+	private int[] indexPos;							// position of the cached chunks
+	private int[] indexLen;							// length of the cached chunks
+	private int sendEpoch;
+	private int sendSeq;
+
+	private byte[] recCache;
+	private int recPos;
+	private int recEpoch;
+	private int recSeq;
+	private boolean recValid;						// false after a lost packet
+	private boolean resetDue;						// send a reset?
+	private int dropped;							// packets dropped since the last reset
+
+	private volatile long rawBytes;					// size of the encoded packets before encoding
+	private volatile long encodedBytes;				// size of the encoded packets
+	private volatile long chunks;					// cacheable chunks sent
+	private volatile long hits;						// chunks sent as reference
+	private volatile int resets;					// number of reset epochs
+
+	/**
+	 * Create a new RedundancyEliminator. The caches are allocated when they
+	 * are used first.
+	 */
+	public RedundancyEliminator() {
+		sendCache = null;
+		recCache = null;
+		sendEpoch = 0;
+		sendSeq = 0;
+		recEpoch = 0;
+		recSeq = 0;
+		recValid = true;
+		resetDue = false;
+		rawBytes = 0;
+		encodedBytes = 0;
+		chunks = 0;
+		hits = 0;
+		resets = 0;
+	}
+
+	/**
+	 * Find the end of the chunk starting at the given position.
+	 * @param b the array
+	 * @param pos start of the chunk
+	 * @param end end of the data
+	 * @return the end of the chunk
+	 */
+	private static int chunkEnd(byte[] b, int pos, int end) {
+		int max = Math.min(pos+MAX_CHUNK, end);
+		int h = 0;
+		for(int i=pos+MIN_CHUNK; i<max; i++) {
+			h = (h << 1) + GEAR[b[i] & 0xFF];
+			if ((h & BOUNDARY_MASK)==0) return i+1;
+		}
+		return max;
+	}
+
+	private static long hash(byte[] b, int off, int len) {
+		long h = 0xCBF29CE484222325L;
+		for(int i=off; i<off+len; i++) h = (h ^ (b[i] & 0xFF)) * 0x100000001B3L;
+		return h;
+	}
+
+	/**
+	 * Store a chunk in a cache.
+	 * @param cache the cache
+	 * @param pos the current position in the cache
+	 * @param b the array
+	 * @param off start of the chunk
+	 * @param len length of the chunk
+	 * @return the position of the chunk
+	 */
+	private static int store(byte[] cache, int pos, byte[] b, int off, int len) {
+		if (pos+len>cache.length) pos = 0;
+		System.arraycopy(b, off, cache, pos, len);
+		return pos;
+	}
+
+	private static boolean equal(byte[] a, int aOff, byte[] b, int bOff, int len) {
+		for(int i=0; i<len; i++) {
+			if (a[aOff+i]!=b[bOff+i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write a literal run.
+	 * @param r the array of the result
+	 * @param pos position of the record in r
+	 * @param b the array with the data
+	 * @param off start of the data
+	 * @param len length of the data
+	 * @return position after the record
+	 */
+	private static int literal(byte[] r, int pos, byte[] b, int off, int len) {
+		if (len==0) return pos;
+		r[pos] = (byte)(len >> 8);
+		r[pos+1] = (byte)len;
+		System.arraycopy(b, off, r, pos+LITERAL, len);
+		return pos+LITERAL+len;
+	}
+
+	/**
+	 * Encode a packet. All packets which are not too small are encoded,
+	 * because the chunks have to be cached, even if nothing is saved.
+	 * @param packet the packet, it will be released if it was encoded
+	 * @return the encoded packet or the original one
+	 */
+	public synchronized PacketBuffer encode(PacketBuffer packet) {
+		int len = packet.getLength();
+		if (len<MIN_SIZE) return packet;
+		if (sendCache==null) {
+			sendCache = new byte[CACHE_SIZE];
+			indexHash = new long[1 << INDEX_BITS];
+			indexPos = new int[1 << INDEX_BITS];
+			indexLen = new int[1 << INDEX_BITS];
+			sendPos = 0;
+		}
+
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
+		int end = off+len;
+		PacketBuffer result = PacketBuffer.obtain(HEADER + len + LITERAL*(2+len/MAX_LITERAL));
+		byte[] r = result.getData();
+		int pos = result.getOffset();
+		r[pos] = ENCODED_PACKET;
+		r[pos+1] = (byte)sendEpoch;
+		r[pos+2] = (byte)(sendSeq >> 8);
+		r[pos+3] = (byte)sendSeq;
+		pos += HEADER;
+		sendSeq = (sendSeq+1) & 0xFFFF;
+
+		int run = off;									// start of the current literal run
+		int chunk = off;
+		while (chunk<end) {
+			int cEnd = chunkEnd(data, chunk, end);
+			int cLen = cEnd-chunk;
+			if (cEnd-run>MAX_LITERAL) {
+				pos = literal(r, pos, data, run, chunk-run);
+				run = chunk;
+			}
+			if (cLen>=MIN_CHUNK) {
+				chunks++;
+				long h = hash(data, chunk, cLen);
+				int slot = (int)(h >>> (64-INDEX_BITS));
+				int cPos = indexPos[slot];
+				if (indexHash[slot]==h && indexLen[slot]==cLen &&
+						equal(sendCache, cPos, data, chunk, cLen)) {
+					hits++;
+					pos = literal(r, pos, data, run, chunk-run);
+					r[pos] = (byte)(0x80 | (cLen >> 8));
+					r[pos+1] = (byte)cLen;
+					r[pos+2] = (byte)(cPos >> 16);
+					r[pos+3] = (byte)(cPos >> 8);
+					r[pos+4] = (byte)cPos;
+					pos += REFERENCE;
+					run = cEnd;
+				} else {
+					cPos = store(sendCache, sendPos, data, chunk, cLen);
+					sendPos = cPos+cLen;
+					indexHash[slot] = h;
+					indexPos[slot] = cPos;
+					indexLen[slot] = cLen;
+				}
+			}
+			chunk = cEnd;
+		}
+		pos = literal(r, pos, data, run, end-run);
+
+		result.setLength(pos-result.getOffset());
+		rawBytes += len;
+		encodedBytes += result.getLength();
+		packet.release();
+		return result;
+	}
+
+	/**
+	 * Decode a packet.
+	 * @param packet the encoded packet, it will be released
+	 * @return the original packet, null if it can't be decoded. In this case
+	 * createReset() should be called.
+	 */
+	public synchronized PacketBuffer decode(PacketBuffer packet) {
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
+		int end = off+packet.getLength();
+		if (packet.getLength()<HEADER) {
+			packet.release();
+			return null;
+		}
+		int epoch = data[off+1] & 0xFF;
+		int seq = ((data[off+2] & 0xFF) << 8) + (data[off+3] & 0xFF);
+
+		if (epoch!=recEpoch) {
+			if (seq==0) {							// the sender started a new epoch
+				recEpoch = epoch;
+				recSeq = 0;
+				recPos = 0;
+				recValid = true;
+			} else {
+				recEpoch = epoch;
+				invalidate();
+			}
+		} else if (recValid && seq!=recSeq) {
+			invalidate();
+		}
+		if (!recValid) {
+			dropped++;
+			if (dropped % RESET_INTERVAL == 0) resetDue = true;
+			packet.release();
+			return null;
+		}
+		if (recCache==null) recCache = new byte[CACHE_SIZE];
+
+		// check the records and calculate the length
+		int len = 0;
+		int pos = off+HEADER;
+		while (pos<end) {
+			if ((data[pos] & 0x80)==0) {
+				if (pos+LITERAL>end) break;
+				int l = ((data[pos] & 0xFF) << 8) + (data[pos+1] & 0xFF);
+				pos += LITERAL+l;
+				len += l;
+			} else {
+				if (pos+REFERENCE>end) break;
+				int l = ((data[pos] & 0x7F) << 8) + (data[pos+1] & 0xFF);
+				int p = ((data[pos+2] & 0xFF) << 16) + ((data[pos+3] & 0xFF) << 8) + (data[pos+4] & 0xFF);
+				if (l<MIN_CHUNK || l>MAX_CHUNK || p+l>CACHE_SIZE) break;
+				pos += REFERENCE;
+				len += l;
+			}
+		}
+		if (pos!=end || len>TCPConnection.MAX_JUMBO_PACKET_SIZE) {
+			invalidate();
+			packet.release();
+			return null;
+		}
+
+		PacketBuffer result = PacketBuffer.obtain(len);
+		byte[] r = result.getData();
+		int rPos = result.getOffset();
+		pos = off+HEADER;
+		while (pos<end) {
+			if ((data[pos] & 0x80)==0) {
+				int l = ((data[pos] & 0xFF) << 8) + (data[pos+1] & 0xFF);
+				pos += LITERAL;
+				int runEnd = pos+l;
+				while (pos<runEnd) {					// cache the chunks like the sender
+					int cEnd = chunkEnd(data, pos, runEnd);
+					if (cEnd-pos>=MIN_CHUNK) {
+						recPos = store(recCache, recPos, data, pos, cEnd-pos) + cEnd-pos;
+					}
+					pos = cEnd;
+				}
+				System.arraycopy(data, runEnd-l, r, rPos, l);
+				rPos += l;
+			} else {
+				int l = ((data[pos] & 0x7F) << 8) + (data[pos+1] & 0xFF);
+				int p = ((data[pos+2] & 0xFF) << 16) + ((data[pos+3] & 0xFF) << 8) + (data[pos+4] & 0xFF);
+				System.arraycopy(recCache, p, r, rPos, l);
+				rPos += l;
+				pos += REFERENCE;
+			}
+		}
+		result.setLength(len);
+		recSeq = (seq+1) & 0xFFFF;
+		packet.release();
+		return result;
+	}
+
+	/**
+	 * The receive cache is out of sync, drop packets until the sender
+	 * starts a new epoch.
+	 */
+	private void invalidate() {
+		recValid = false;
+		resetDue = true;
+		dropped = 0;
+	}
+
+	/**
+	 * Create a reset packet, if the remote peer has to start a new epoch.
+	 * @return the packet or null
+	 */
+	public synchronized PacketBuffer createReset() {
+		if (!resetDue) return null;
+		resetDue = false;
+		PacketBuffer reset = PacketBuffer.obtain();
+		byte[] r = reset.getData();
+		r[reset.getOffset()] = RESET_PACKET;
+		r[reset.getOffset()+1] = (byte)recEpoch;
+		reset.setLength(2);
+		return reset;
+	}
+
+	/**
+	 * Handle a reset packet: start a new epoch with an empty cache, if the
+	 * remote peer can't decode the current one.
+	 * @param packet the reset packet, it will be released
+	 */
+	public synchronized void receiveReset(PacketBuffer packet) {
+		if (packet.getLength()>=2 && (packet.getData()[packet.getOffset()+1] & 0xFF)==sendEpoch) {
+			sendEpoch = (sendEpoch+1) & 0xFF;
+			sendSeq = 0;
+			sendPos = 0;
+			if (indexHash!=null) {
+				for(int i=0; i<indexHash.length; i++) indexLen[i] = 0;
+			}
+			resets++;
+		}
+		packet.release();
+	}
+
+	/**
+	 * @return the number of bytes saved
+	 */
+	public long getSavedBytes() {
+		return rawBytes-encodedBytes;
+	}
+
+	/**
+	 * @return size of the encoded packets before encoding
+	 */
+	public long getRawBytes() {
+		return rawBytes;
+	}
+
+	/**
+	 * @return the part of the cacheable chunks which were found in the cache
+	 */
+	public double getHitRate() {
+		return chunks==0 ? 0 : (double)hits/chunks;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%.1f%% of %d chunks found, saved %d of %d bytes, %d resets",
+				100*getHitRate(), chunks, getSavedBytes(), getRawBytes(), resets);
+	}
+}
@@ -23,6 +23,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -35,10 +36,14 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.p2pvpn.network.metrics.FlightEvent;
 import org.p2pvpn.tools.VersionizedMap;
+import org.p2pvpn.tuntap.VirtioNetHeader;
 
 /**
  * All packets are running throug the Router. Packages are received from the
@@ -50,24 +55,80 @@ public class Router implements RoutungTableListener {
 	private static final long SYNC_TIME = 5; // seconds
 	private static final long CONN_TIMEOUT_MS = 60 * 1000;
 	
-	private static final byte DATA_PACKET = 0;
-	private static final byte DATA_BROADCAST_PACKET = 1;
+	static final byte DATA_PACKET = 0;
+	static final byte DATA_BROADCAST_PACKET = 1;
 	private static final byte ASK_DB = 2;
 	private static final byte SEND_DB = 3;
 	private static final byte INTERNAL_PACKET = 4;
+	static final byte DATA_GSO_PACKET = 5;
+	static final byte IP_PACKET = 6;
+	static final byte AGGREGATE_PACKET = 7;		// built by TCPConnection
+	// 8: Compressor.COMPRESSED_PACKET, 9-11: HeaderCompressor, 12-13: RedundancyEliminator
+	private static final byte PAUSE_PACKET = 14;	// hold back bulk packets for a destination
+
+	public static final String FEATURE_GSO = "gso";
+	public static final String FEATURE_IP = "ip";
+	public static final String FEATURE_JUMBO = "jumbo";		// accepts packets up to MAX_JUMBO_PACKET_SIZE
+	public static final String FEATURE_AGGREGATE = "aggregate";
+	public static final String FEATURE_DEFLATE = "deflate";		// only when enabled
+	public static final String FEATURE_HEADER_COMPRESSION = "hc";
+	public static final String FEATURE_REDUNDANCY_ELIMINATION = "re";	// only when enabled
+	public static final String FEATURE_PAUSE = "pause";
+
+	// the features supported by this version, stored as "net.features" in the peer database
+	private static final String FEATURES = FEATURE_GSO+" "+FEATURE_IP+" "+FEATURE_JUMBO+" "+
+			FEATURE_AGGREGATE+" "+FEATURE_HEADER_COMPRESSION+" "+FEATURE_PAUSE;
+
+	private static final long MAX_PAUSE_NS = 100*1000*1000;	// longest time a neighbour is asked to hold back
+
+	private static final int ETHERNET_HEADER = 14;
+	private static final byte ETHERTYPE_IPV4_HIGH = 0x08;
+	private static final byte ETHERTYPE_IPV4_LOW = 0x00;
+	private static final int IPV4_SRC = 12;		// offset of the addresses in the IPv4 header
+	private static final int IPV4_DEST = 16;
 
 	public static final byte INTERNAL_PORT_CHAT = -1;
 	public static final byte INTERNAL_PORT_PING = 1;
+
+	// used to look up routes without creating a new MacAddress for every packet
+	private static final ThreadLocal<MacAddress> destMac = new ThreadLocal<MacAddress>() {
+		@Override
+		protected MacAddress initialValue() {
+			return new MacAddress(new byte[6]);
+		}
+	};
 	
 	private ConnectionManager connectionManager;	// the ConnectioionManager
 	private VPNConnector vpnConnector;				// the VpnConnector
 
 	private Map<PeerID, P2PConnection> connections;	// all connections
 	private Map<PeerID, VersionizedMap<String, String>> peers;	// all peers
-	private Map<MacAddress, P2PConnection[]> routeCache;		// cached routes
+	private Map<MacAddress, P2PConnection[]> routeCache;		// cached routes, read without locking
+	private volatile IPPrefixTable ipTable;		// maps "vpn.ip" and "vpn.routes" to mac addresses
+	private volatile IPPrefixTable hostTable;	// maps only "vpn.ip" to mac addresses
+	private volatile Set<MacAddress> peerMacs;	// the mac addresses of all peers
+	private volatile Map<MacAddress, MacAddress[]> mcastMembers;	// multicast group -> subscribed peers
+	private volatile MacAddress[] mcastFlood;	// peers which don't publish "vpn.mcast"
+
+	private volatile MacAddress myMAC;	// local mac address
+	private volatile boolean gotMacFromTun;	// was the mac address received from the und interface?
+	private volatile boolean routedMode;	// send IPv4 packets without ethernet header?
+	private volatile boolean redundancyElimination;	// offer redundancy elimination to the peers?
+	private volatile boolean compress;		// offer the deflate compression to the peers?
+
+	private AtomicLong pausesSent;			// pause requests sent to neighbours
+	private AtomicLong pauseMarks;			// packets ECN marked because of a pause
+	private AtomicLong pauseDrops;			// packets dropped because of a pause
+	/** decides which unmarkable packets are dropped, one per receive thread */
+	private static final ThreadLocal<Random> pauseRandom = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
 
-	private MacAddress myMAC;			// local mac address
-	private boolean gotMacFromTun;		// was the mac address received from the und interface?
+	private AtomicLong syncPacketsSent, syncBytesSent;			// ASK_DB and SEND_DB packets
+	private AtomicLong syncPacketsReceived, syncBytesReceived;
 
 	private Vector<RoutungTableListener> tableListeners; // listeners of the peer list
 
@@ -81,10 +142,23 @@ public class Router implements RoutungTableListener {
 		this.connectionManager = connectionManager;
 		tableListeners = new Vector<RoutungTableListener>();
 		connections = new HashMap<PeerID, P2PConnection>();
-		routeCache = new HashMap<MacAddress, P2PConnection[]>();
+		routeCache = new ConcurrentHashMap<MacAddress, P2PConnection[]>();
+		ipTable = new IPPrefixTable();
+		hostTable = new IPPrefixTable();
+		peerMacs = new HashSet<MacAddress>();
+		mcastMembers = new HashMap<MacAddress, MacAddress[]>();
+		mcastFlood = new MacAddress[0];
 		internalListeners = new HashMap<Byte, InternalPacketListener>();
 		peers = new HashMap<PeerID, VersionizedMap<String, String>>();
+		syncPacketsSent = new AtomicLong();
+		syncBytesSent = new AtomicLong();
+		syncPacketsReceived = new AtomicLong();
+		syncBytesReceived = new AtomicLong();
+		pausesSent = new AtomicLong();
+		pauseMarks = new AtomicLong();
+		pauseDrops = new AtomicLong();
 		peers.put(connectionManager.getLocalAddr(), new VersionizedMap<String, String>());
+		peers.get(connectionManager.getLocalAddr()).put("net.features", FEATURES);
 		setRandomMac();
 		gotMacFromTun = false;
 		
@@ -95,6 +169,22 @@ public class Router implements RoutungTableListener {
 		}, SYNC_TIME, TimeUnit.SECONDS);
 	}
 
+	/**
+	 * Find the IP header of a data packet.
+	 * @param b the array
+	 * @param off start of the router packet
+	 * @return start of the IP header, -1 if this is no data packet
+	 */
+	static int ipOffset(byte[] b, int off) {
+		switch (b[off]) {
+			case DATA_PACKET: return off+1+ETHERNET_HEADER;
+			case DATA_BROADCAST_PACKET: return off+1+6+ETHERNET_HEADER;
+			case DATA_GSO_PACKET: return off+1+VirtioNetHeader.SIZE+ETHERNET_HEADER;
+			case IP_PACKET: return off+1;
+			default: return -1;
+		}
+	}
+
 	/**
 	 * Add a listener for the peer list.
 	 * @param l the listener
@@ -143,11 +233,24 @@ public class Router implements RoutungTableListener {
 	}
 
 	/**
-	 * Calculate a route to another peer wothout caching.
+	 * Calculate a route to another peer wothout caching. Peers which are
+	 * not willing to relay are avoided, if there is another route.
 	 * @param macDest the osther peer
 	 * @return list of naighbours  with the shortest connection to the destination
 	 */
 	private P2PConnection[] findRouteInt(MacAddress macDest) {
+		P2PConnection[] result = findRouteInt(macDest, true);
+		if (result.length==0) result = findRouteInt(macDest, false);
+		return result;
+	}
+
+	/**
+	 * Calculate a route to another peer wothout caching.
+	 * @param macDest the osther peer
+	 * @param avoidOverloaded don't route through peers which are not willing to relay
+	 * @return list of naighbours  with the shortest connection to the destination
+	 */
+	private P2PConnection[] findRouteInt(MacAddress macDest, boolean avoidOverloaded) {
 		if (macDest.equals(myMAC)) return new P2PConnection[0];
 		
 		// find Address
@@ -162,6 +265,9 @@ public class Router implements RoutungTableListener {
 		while (!queue.isEmpty() && !dist.containsKey(connectionManager.getLocalAddr())) {
 			PeerID a = queue.remove();
 			int d = dist.get(a);
+
+			if (avoidOverloaded && !a.equals(dest) && OverloadController.parseRelay(
+					getPeerInfo(a, OverloadController.RELAY_KEY))==OverloadController.RELAY_NONE) continue;
 			
 			String conn = getPeerInfo(a, "connectedTo");
 			if (conn!=null) {
@@ -197,19 +303,15 @@ public class Router implements RoutungTableListener {
 
 	/**
 	 * Calculate a route to another peer with caching.
-	 * @param macDest the osther peer
+	 * @param macDest the osther peer (the object is not stored, so it may be reused)
 	 * @return list of naighbours  with the shortest connection to the destination
 	 */
 	private P2PConnection[] findRoute(MacAddress macDest) {
-		P2PConnection[] result;
-		synchronized (this) {
-			result = routeCache.get(macDest);
-		}
+		P2PConnection[] result = routeCache.get(macDest);
 		
-		if (result==null) result = findRouteInt(macDest);
-
-		synchronized (this) {
-			routeCache.put(macDest, result);
+		if (result==null) {
+			result = findRouteInt(macDest);
+			routeCache.put(new MacAddress(macDest.getAddress()), result);
 		}
 		return result;
 	}
@@ -258,6 +360,8 @@ public class Router implements RoutungTableListener {
 	 * Update the peer list after the network topology changed.
 	 */
 	private synchronized void updatePeers() {
+		long start = System.nanoTime();
+		int removed = 0;
 		Set<PeerID> reachable = new HashSet<PeerID>();
 
 		routeCache.clear();
@@ -268,7 +372,10 @@ public class Router implements RoutungTableListener {
 		
 		while(as.hasNext()) {
 			PeerID a = as.next();
-			if (!reachable.contains(a)) as.remove();
+			if (!reachable.contains(a)) {
+				as.remove();
+				removed++;
+			}
 		}
 		
 		for(PeerID a : reachable) {
@@ -276,6 +383,99 @@ public class Router implements RoutungTableListener {
 				peers.put(a, new VersionizedMap<String, String>());
 			}
 		}
+
+		updateIPTable();
+		if (FlightEvent.TOPOLOGY.isEnabled()) {
+			FlightEvent.TOPOLOGY.commit(peers.size(), removed, System.nanoTime()-start);
+		}
+	}
+
+	/**
+	 * Create a new IPPrefixTable from the peer database.
+	 */
+	private synchronized void updateIPTable() {
+		IPPrefixTable table = new IPPrefixTable();
+		IPPrefixTable hosts = new IPPrefixTable();
+		Set<MacAddress> macs = new HashSet<MacAddress>();
+		Map<MacAddress, Set<MacAddress>> members = new HashMap<MacAddress, Set<MacAddress>>();
+		Set<MacAddress> flood = new HashSet<MacAddress>();
+		for(Map.Entry<PeerID, VersionizedMap<String, String>> e : peers.entrySet()) {
+			VersionizedMap<String, String> db = e.getValue();
+			String mac = db.get("vpn.mac");
+			if (mac==null) continue;
+			MacAddress m = new MacAddress(mac);
+			macs.add(m);
+
+			String routes = db.get("vpn.routes");
+			if (routes!=null) {
+				StringTokenizer st = new StringTokenizer(routes);
+				while (st.hasMoreTokens()) table.add(st.nextToken(), m);
+			}
+			String ip = db.get("vpn.ip");
+			if (ip!=null) {
+				table.add(ip, m);
+				hosts.add(ip, m);
+			}
+
+			if (e.getKey().equals(connectionManager.getLocalAddr())) continue;
+			String groups = db.get("vpn.mcast");
+			if (groups==null) {
+				flood.add(m);
+			} else {
+				StringTokenizer st = new StringTokenizer(groups);
+				while (st.hasMoreTokens()) {
+					MacAddress g = new MacAddress(st.nextToken());
+					Set<MacAddress> s = members.get(g);
+					if (s==null) {
+						s = new HashSet<MacAddress>();
+						members.put(g, s);
+					}
+					s.add(m);
+				}
+			}
+		}
+		ipTable = table;
+		hostTable = hosts;
+		peerMacs = macs;
+
+		Map<MacAddress, MacAddress[]> mcast = new HashMap<MacAddress, MacAddress[]>();
+		for(Map.Entry<MacAddress, Set<MacAddress>> e : members.entrySet()) {
+			mcast.put(e.getKey(), e.getValue().toArray(new MacAddress[0]));
+		}
+		mcastMembers = mcast;
+		mcastFlood = flood.toArray(new MacAddress[0]);
+	}
+
+	/**
+	 * Count a sent ASK_DB or SEND_DB packet.
+	 * @param size the size of the packet
+	 */
+	private void countSyncSent(int size) {
+		syncPacketsSent.incrementAndGet();
+		syncBytesSent.addAndGet(size);
+	}
+
+	public long getSyncPacketsSent() {
+		return syncPacketsSent.get();
+	}
+
+	public long getSyncBytesSent() {
+		return syncBytesSent.get();
+	}
+
+	public long getSyncPacketsReceived() {
+		return syncPacketsReceived.get();
+	}
+
+	public long getSyncBytesReceived() {
+		return syncBytesReceived.get();
+	}
+
+	/**
+	 * @return the number of cached routes
+	 */
+	public int getRouteCacheSize() {
+		return routeCache.size();
 	}
 
 	/**
@@ -293,6 +493,7 @@ public class Router implements RoutungTableListener {
 				outO.writeObject(peers.get(a));
 			}
 			outO.flush();
+			countSyncSent(outB.size());
 			connection.send(outB.toByteArray(), true);
 		} catch (IOException ex) {
 		}
@@ -316,6 +517,9 @@ public class Router implements RoutungTableListener {
 	 * Request the databases of all peers.
 	 */
 	private void syncDB() {
+		long start = System.nanoTime();
+		int messages = 0;
+		long bytes = 0;
 		try {
 			Set<PeerID> peerSet;
 
@@ -347,13 +551,19 @@ public class Router implements RoutungTableListener {
 						outO.writeObject(a);
 						outO.writeLong(version);
 						outO.flush();
+						countSyncSent(outB.size());
 						c.send(outB.toByteArray(), true);
+						messages++;
+						bytes += outB.size();
 					} catch (IOException ex) {
 					}
 				}
 			}
 		} catch (Throwable e) {
 		}
+		if (FlightEvent.SYNC.isEnabled()) {
+			FlightEvent.SYNC.commit(messages, bytes, System.nanoTime()-start);
+		}
 		
 		connectionManager.getScheduledExecutor().schedule(new Runnable() {
 			public void run() {
@@ -400,6 +610,12 @@ public class Router implements RoutungTableListener {
 	 */
     private void dbChanged(PeerID a) {
     	notifyListeners(false);
+
+		P2PConnection c = getConnection(a);
+		if (c!=null) {
+			c.setRemoteFeatures(getPeerInfo(a, "net.features"));
+			c.setRemoteRelay(OverloadController.parseRelay(getPeerInfo(a, OverloadController.RELAY_KEY)));
+		}
         
         // check for local IPs
         if (!a.equals(connectionManager.getLocalAddr())) {
@@ -481,6 +697,12 @@ public class Router implements RoutungTableListener {
 			}
 			connections.put(connection.getRemoteAddr(), connection);
 		}
+		if (FlightEvent.LINK.isEnabled()) {
+			FlightEvent.LINK.commit(connection.getRemoteAddr(), connection.getConnection(), true);
+		}
+		connection.setRemoteFeatures(getPeerInfo(connection.getRemoteAddr(), "net.features"));
+		connection.setRemoteRelay(OverloadController.parseRelay(
+				getPeerInfo(connection.getRemoteAddr(), OverloadController.RELAY_KEY)));
 		connection.setRouter(this);
 		notifyListeners(true);
 	}
@@ -490,8 +712,12 @@ public class Router implements RoutungTableListener {
 	 * @param connection the connection
 	 */
 	public void connectionClosed(P2PConnection connection) {
+		boolean wasUp;
 		synchronized (this) {
-			connections.remove(connection.getRemoteAddr());
+			wasUp = connections.remove(connection.getRemoteAddr())==connection;
+		}
+		if (wasUp && FlightEvent.LINK.isEnabled()) {
+			FlightEvent.LINK.commit(connection.getRemoteAddr(), connection.getConnection(), false);
 		}
 		notifyListeners(true);
 	}
@@ -530,20 +756,62 @@ public class Router implements RoutungTableListener {
 	/**
 	 * Called when a packad arrived
 	 * @param connection the connection which recheived this packet
-	 * @param packet the packet
+	 * @param buffer the packet
 	 */
-	public void receive(P2PConnection connection, byte[] packet) {
+	public void receive(P2PConnection connection, PacketBuffer buffer) {
+		int type = buffer.getData()[buffer.getOffset()];
+		if (type==DATA_PACKET || type==DATA_BROADCAST_PACKET || type==DATA_GSO_PACKET) {
+			handleDataPacket(connection, type, buffer);
+			return;
+		}
+		if (type==IP_PACKET) {
+			handleIPPacket(connection, buffer);
+			return;
+		}
+		if (type==PAUSE_PACKET) {
+			if (buffer.getLength()>=1+6+4) {
+				byte[] data = buffer.getData();
+				int off = buffer.getOffset();
+				long us = IPPrefixTable.getIP(data, off+1+6) & 0xFFFFFFFFL;
+				connection.pause(new MacAddress(data, off+1), Math.min(us*1000, MAX_PAUSE_NS));
+			}
+			buffer.release();
+			return;
+		}
+		if (type==AGGREGATE_PACKET) {
+			handleAggregatePacket(connection, buffer);
+			return;
+		}
+		if (type==Compressor.COMPRESSED_PACKET) {
+			PacketBuffer inner = connection.getConnection().getCompressor().decompress(buffer);
+			if (inner!=null) {
+				if (inner.getData()[inner.getOffset()]!=Compressor.COMPRESSED_PACKET) receive(connection, inner);
+				else inner.release();
+			}
+			return;
+		}
+		if (type==HeaderCompressor.FULL_PACKET || type==HeaderCompressor.COMPRESSED_PACKET ||
+				type==HeaderCompressor.NACK_PACKET) {
+			handleHeaderCompression(connection, type, buffer);
+			return;
+		}
+		if (type==RedundancyEliminator.ENCODED_PACKET || type==RedundancyEliminator.RESET_PACKET) {
+			handleRedundancyElimination(connection, type, buffer);
+			return;
+		}
+
+		byte[] packet = buffer.toByteArray();
+		buffer.release();
 		ByteArrayInputStream inB = new ByteArrayInputStream(packet);
 
 		try {
-			int type = inB.read();
+			inB.read();
+			if (type==ASK_DB || type==SEND_DB) {
+				syncPacketsReceived.incrementAndGet();
+				syncBytesReceived.addAndGet(packet.length);
+			}
 			
 			switch (type) {
-				case DATA_PACKET:
-				case DATA_BROADCAST_PACKET: {
-					handleDataPacket(type, packet);
-					break;
-				}
 				case ASK_DB: {
 					ObjectInputStream inO = new ObjectInputStream(inB);
 					PeerID a = (PeerID)inO.readObject();
@@ -588,28 +856,31 @@ public class Router implements RoutungTableListener {
 
 	/**
 	 * Handle a data packet
+	 * @param from the connection the packet was received from
 	 * @param type the type of the packet
 	 * @param packet the packet
 	 */
-	private void handleDataPacket(int type, byte[] packet) {
-		MacAddress dest = new MacAddress(packet, 0+1);
+	private void handleDataPacket(P2PConnection from, int type, PacketBuffer packet) {
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
+		int destOff = off+1;
+		if (type==DATA_GSO_PACKET) destOff += VirtioNetHeader.SIZE;
 		
-		if (dest.equals(myMAC)) {
-			//System.out.println("Data-Packet from "+new MacAddress(packet, 6+1)+" for me");
-			byte[] subPacket;
-
+		if (myMAC.matches(data, destOff)) {
 			if (type==DATA_BROADCAST_PACKET) {
-                            subPacket = new byte[packet.length-1-6];
-                            System.arraycopy(packet, 1+6, subPacket, 0, subPacket.length);
+				packet.strip(1+6);
 			} else {
-                            subPacket = new byte[packet.length-1];
-                            System.arraycopy(packet, 1, subPacket, 0, subPacket.length);
-                        }
+				packet.strip(1);
+			}
 
-			if (vpnConnector!=null) vpnConnector.receive(subPacket);
+			if (vpnConnector==null) packet.release();
+			else if (type==DATA_GSO_PACKET) vpnConnector.receiveGso(packet);
+			else vpnConnector.receive(packet);
 		} else {
-			//System.out.println("Data-Packet from "+new MacAddress(packet, 6+1)+" for "+dest);
-			sendInt(dest, packet, false);
+			MacAddress dest = destMac.get();
+			dest.setAddress(data, destOff);
+			if (type==DATA_GSO_PACKET) sendGso(from, dest, packet);
+			else sendInt(from, dest, packet, false);
 		}
 	}
 
@@ -620,19 +891,190 @@ public class Router implements RoutungTableListener {
 	 * @param highPriority has this packet a high priority?
 	 */
 	private void sendInt(MacAddress dest, byte[] packet, boolean highPriority) {
+		sendInt(dest, PacketBuffer.wrap(packet), highPriority);
+	}
+
+	/**
+	 * Send an packet. The packet is released when there is no route.
+	 * @param dest the destination
+	 * @param packet the packet
+	 * @param highPriority has this packet a high priority?
+	 */
+	private void sendInt(MacAddress dest, PacketBuffer packet, boolean highPriority) {
+		sendInt(null, dest, packet, highPriority);
+	}
+
+	/**
+	 * Send or forward an packet. The packet is released when there is no
+	 * route or it was held back.
+	 * @param from the connection the packet was received from, null for local packets
+	 * @param dest the destination
+	 * @param packet the packet
+	 * @param highPriority has this packet a high priority?
+	 */
+	private void sendInt(P2PConnection from, MacAddress dest, PacketBuffer packet, boolean highPriority) {
+		P2PConnection c = findNextHop(dest);
+		if (c!=null && admit(from, c, dest, packet)) {
+			c.send(packet, highPriority);
+		} else {
+			if (c==null) recordDrop(null, "no route", packet);
+			packet.release();
+		}
+	}
+
+	/**
+	 * Decide if a packet is sent to the next hop. Transit packets are shed
+	 * first when this peer is overloaded.
+	 *
+	 * Hop-by-hop backpressure for bulk packets: When the queue to the next
+	 * hop is congested, the neighbour which sent the packet is asked to hold
+	 * back packets for this destination for as long as the queue delay.
+	 * While the next hop asks us to hold back, bulk packets for the
+	 * destination are ECN marked here. Packets which can't be marked are
+	 * dropped with a probability growing with the remaining pause up to
+	 * MAX_PAUSE_NS, so flows without ECN slow down without starving. The
+	 * request is passed
+	 * on upstream, so the packets don't waste bandwidth on the way to the
+	 * congested hop.
+	 * @param from the connection the packet was received from, null for local packets
+	 * @param next the next hop
+	 * @param dest the destination
+	 * @param packet the packet
+	 * @return send the packet?
+	 */
+	private boolean admit(P2PConnection from, P2PConnection next, MacAddress dest, PacketBuffer packet) {
+		SendScheduler.TrafficClass tc = SendScheduler.classify(packet.getData(), packet.getOffset(), packet.getLength());
+		if (from!=null && connectionManager.getOverloadController().shedTransit(tc, packet)) {
+			recordDrop(next, "overload", packet);
+			return false;
+		}
+		if (tc!=SendScheduler.TrafficClass.BULK) return true;
+
+		long pause = next.getPause(dest);
+		if (pause>0) {
+			if (from!=null) sendPause(from, dest, pause);
+			if (SendScheduler.mark(packet)) {
+				pauseMarks.incrementAndGet();
+				return true;
+			}
+			if (pauseRandom.get().nextDouble()*MAX_PAUSE_NS >= pause) return true;
+			pauseDrops.incrementAndGet();
+			recordDrop(next, "pause", packet);
+			return false;
+		}
+		if (from!=null) {
+			long delay = next.getConnection().getCongestion();		// updated once per tick
+			if (delay>0) sendPause(from, dest, Math.min(delay, MAX_PAUSE_NS));
+		}
+		return true;
+	}
+
+	/**
+	 * Record a dropped packet for the flight recorder.
+	 * @param next the next hop, null if there is none
+	 * @param reason why the packet was dropped
+	 * @param packet the packet
+	 */
+	private static void recordDrop(P2PConnection next, String reason, PacketBuffer packet) {
+		if (FlightEvent.DROP.isEnabled()) {
+			FlightEvent.DROP.commit(next==null ? "router" : next.getConnection(), reason, packet.getLength());
+		}
+	}
+
+	/**
+	 * Ask a neighbour to hold back bulk packets for a destination.
+	 * Format: PAUSE_PACKET, destination mac, 4 byte time in microseconds
+	 * @param to the neighbour
+	 * @param dest the destination
+	 * @param ns the time to hold back in nanoseconds
+	 */
+	private void sendPause(P2PConnection to, MacAddress dest, long ns) {
+		if (!to.supports(FEATURE_PAUSE) || !to.pauseDue(dest, ns)) return;
+		byte[] packet = new byte[1+6+4];
+		long us = ns/1000;
+		packet[0] = PAUSE_PACKET;
+		dest.getAddress(packet, 1);
+		packet[7] = (byte)(us >>> 24);
+		packet[8] = (byte)(us >>> 16);
+		packet[9] = (byte)(us >>> 8);
+		packet[10] = (byte)us;
+		to.send(packet, true);
+		pausesSent.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of pause requests sent to neighbours
+	 */
+	public long getPausesSent() {
+		return pausesSent.get();
+	}
+
+	/**
+	 * @return the number of packets ECN marked because the next hop asked to hold back
+	 */
+	public long getPauseMarks() {
+		return pauseMarks.get();
+	}
+
+	/**
+	 * @return the number of packets dropped because the next hop asked to hold back
+	 */
+	public long getPauseDrops() {
+		return pauseDrops.get();
+	}
+
+	/**
+	 * Find the neighbour with the lowest latency on a shortest route. The
+	 * latency of neighbours which are less willing to relay is scaled up.
+	 * @param dest the destination
+	 * @return the neighbour, null if there is no route
+	 */
+	private P2PConnection findNextHop(MacAddress dest) {
 		P2PConnection[] cs = findRoute(dest);
-		if (cs.length>0) {
-			int minI=0;
-			double minPing = Double.MAX_VALUE;
-
-			for(int i=0; i<cs.length; i++) {
-				double ping = cs[i].getPingTime().getAverage();
-				if (ping<minPing) {
-					minPing = ping;
-					minI = i;
-				}
+		if (cs.length==0) return null;
+
+		int minI=0;
+		double minCost = Double.MAX_VALUE;
+
+		for(int i=0; i<cs.length; i++) {
+			double cost = (cs[i].getPingTime().getAverage()+1) *
+					OverloadController.RELAY_FULL / Math.max(cs[i].getRemoteRelay(), 1);
+			if (cost<minCost) {
+				minCost = cost;
+				minI = i;
 			}
-			cs[minI].send(packet, highPriority);
+		}
+		return cs[minI];
+	}
+
+	/**
+	 * Send a GSO packet. When the next hop doesn't support GSO packets, the
+	 * packet is split into normal data packets.
+	 * @param from the connection the packet was received from, null for local packets
+	 * @param dest the destination
+	 * @param packet the packet including the packet type
+	 */
+	private void sendGso(P2PConnection from, MacAddress dest, PacketBuffer packet) {
+		P2PConnection c = findNextHop(dest);
+		if (c==null || !admit(from, c, dest, packet)) {
+			if (c==null) recordDrop(null, "no route", packet);
+			packet.release();
+		} else if (c.supports(FEATURE_GSO)) {
+			c.send(packet, false);
+		} else {
+			byte[] data = packet.getData();
+			int off = packet.getOffset()+1;
+			int len = packet.getLength()-1;
+			int count = VirtioNetHeader.getSegmentCount(data, off, len);
+
+			for(int i=0; i<count; i++) {
+				PacketBuffer segment = PacketBuffer.obtain();
+				segment.setLength(VirtioNetHeader.getSegment(data, off, len, i,
+						segment.getData(), segment.getOffset()));
+				segment.getData()[segment.prepend(1)] = DATA_PACKET;
+				c.send(segment, false);
+			}
+			packet.release();
 		}
 	}
 
@@ -643,6 +1085,7 @@ public class Router implements RoutungTableListener {
 	private synchronized void setMac(MacAddress mac) {
 		myMAC = mac;
 		peers.get(connectionManager.getLocalAddr()).put("vpn.mac", myMAC.toString());
+		updateIPTable();
 	}
 
 	/**
@@ -658,34 +1101,233 @@ public class Router implements RoutungTableListener {
 
 	/**
 	 * Send a packet. Called from VPNConnector.
-	 * @param packet the packet
+	 * @param packet the packet, it needs enough headroom for the router header
 	 */
-	public void send(byte[] packet) {
+	public void send(PacketBuffer packet) {
+		if (packet.isTraced()) packet.setTraceTime(System.nanoTime());
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
 		
 		if (!gotMacFromTun) {
-			setMac(new MacAddress(packet, 6));
+			setMac(new MacAddress(data, off+6));
 			gotMacFromTun = true;
 		}
 		
-		MacAddress mac = new MacAddress(packet, 0);
-		
-		if (mac.isBroadcast()) {
-			Collection<MacAddress> macs = getKnownMACs(false);
+		if (MacAddress.isBroadcast(data, off)) {
+			Collection<MacAddress> macs;
+			if (MulticastSnooper.isFlooded(data, off)) {
+				macs = getKnownMACs(false);
+			} else {
+				macs = getMulticastMembers(new MacAddress(data, off));
+			}
 			for(MacAddress d : macs) {
-				byte[] parentPacket = new byte[packet.length+1+6];
-				parentPacket[0] = DATA_BROADCAST_PACKET;
-				System.arraycopy(packet, 0, parentPacket, 1+6, packet.length);
-				System.arraycopy(d.getAddress(), 0, parentPacket, 1, 6);	// change destination
+				PacketBuffer parentPacket = PacketBuffer.copyOf(data, off, packet.getLength());
+				int pOff = parentPacket.prepend(1+6);
+				parentPacket.getData()[pOff] = DATA_BROADCAST_PACKET;
+				System.arraycopy(d.getAddress(), 0, parentPacket.getData(), pOff+1, 6);	// change destination
 				sendInt(d, parentPacket, false);
 			}
+			packet.release();
+		} else if (routedMode && sendIP(packet)) {
+			return;
+		} else {
+			MacAddress mac = destMac.get();
+			mac.setAddress(data, off);
+			data[packet.prepend(1)] = DATA_PACKET;
+			sendInt(mac, packet, false);
+		}
+	}
+
+	/**
+	 * Handle the packets of the header compression.
+	 * @param connection the connection the packet was received from
+	 * @param type the type of the packet
+	 * @param buffer the packet, it will be released
+	 */
+	private void handleHeaderCompression(P2PConnection connection, int type, PacketBuffer buffer) {
+		HeaderCompressor hc = connection.getConnection().getHeaderCompressor();
+		if (type==HeaderCompressor.NACK_PACKET) {
+			hc.receiveNack(buffer);
+		} else if (type==HeaderCompressor.FULL_PACKET) {
+			hc.receiveFull(buffer);
+			if (buffer.getData()[buffer.getOffset()]==DATA_PACKET) handleDataPacket(connection, DATA_PACKET, buffer);
+			else buffer.release();
+		} else {
+			byte cid = buffer.getLength()>1 ? buffer.getData()[buffer.getOffset()+1] : 0;
+			PacketBuffer packet = hc.decompress(buffer);
+			if (packet!=null) handleDataPacket(connection, DATA_PACKET, packet);
+			else connection.send(hc.createNack(cid), true);
+		}
+	}
+
+	/**
+	 * Handle the packets of the redundancy elimination.
+	 * @param connection the connection the packet was received from
+	 * @param type the type of the packet
+	 * @param buffer the packet, it will be released
+	 */
+	private void handleRedundancyElimination(P2PConnection connection, int type, PacketBuffer buffer) {
+		RedundancyEliminator re = connection.getConnection().getRedundancyEliminator();
+		if (type==RedundancyEliminator.RESET_PACKET) {
+			re.receiveReset(buffer);
+			return;
+		}
+		PacketBuffer inner = re.decode(buffer);
+		if (inner!=null) {
+			if (inner.getLength()>0 && inner.getData()[inner.getOffset()]!=RedundancyEliminator.ENCODED_PACKET) {
+				receive(connection, inner);
+			} else {
+				inner.release();
+			}
+		} else {
+			PacketBuffer reset = re.createReset();
+			if (reset!=null) connection.send(reset, true);
+		}
+	}
+
+	/**
+	 * Split an aggregate packet and handle the contained packets.
+	 * Format: AGGREGATE_PACKET, then for every packet a 2 byte length
+	 * followed by the packet.
+	 * @param connection the connection the packet was received from
+	 * @param buffer the packet, it will be released
+	 */
+	private void handleAggregatePacket(P2PConnection connection, PacketBuffer buffer) {
+		byte[] data = buffer.getData();
+		int pos = buffer.getOffset()+1;
+		int end = buffer.getOffset()+buffer.getLength();
+
+		while (pos+2<=end) {
+			int len = ((data[pos] & 0xFF) << 8) + (data[pos+1] & 0xFF);
+			pos += 2;
+			if (len==0 || pos+len>end) break;
+			if (data[pos]!=AGGREGATE_PACKET) receive(connection, PacketBuffer.copyOf(data, pos, len));
+			pos += len;
+		}
+		buffer.release();
+	}
+
+	/**
+	 * Find the peers that should receive frames sent to a multicast group.
+	 * @param group the multicast group
+	 * @return the subscribers and the peers that don't publish their groups
+	 */
+	private Collection<MacAddress> getMulticastMembers(MacAddress group) {
+		MacAddress[] flood = mcastFlood;
+		MacAddress[] members = mcastMembers.get(group);
+		Collection<MacAddress> result = new ArrayList<MacAddress>(flood.length + (members==null ? 0 : members.length));
+		for(MacAddress m : flood) result.add(m);
+		if (members!=null) for(MacAddress m : members) result.add(m);
+		return result;
+	}
+
+	/**
+	 * Send an IPv4 packet without its ethernet header, if the destination
+	 * IP is known.
+	 * @param packet the ethernet frame
+	 * @return was the packet sent?
+	 */
+	private boolean sendIP(PacketBuffer packet) {
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
+
+		if (packet.getLength() < ETHERNET_HEADER+20 ||
+				data[off+12]!=ETHERTYPE_IPV4_HIGH || data[off+13]!=ETHERTYPE_IPV4_LOW) return false;
+
+		MacAddress dest = ipTable.lookup(IPPrefixTable.getIP(data, off+ETHERNET_HEADER+IPV4_DEST));
+		if (dest==null || !dest.matches(data, off)) return false;
+
+		packet.strip(ETHERNET_HEADER);
+		data[packet.prepend(1)] = IP_PACKET;
+		sendIPInt(null, dest, packet);
+		return true;
+	}
+
+	/**
+	 * Send an IP packet. When the next hop doesn't support IP packets, the
+	 * ethernet header is added again.
+	 * @param from the connection the packet was received from, null for local packets
+	 * @param dest the destination
+	 * @param packet the packet including the packet type
+	 */
+	private void sendIPInt(P2PConnection from, MacAddress dest, PacketBuffer packet) {
+		P2PConnection c = findNextHop(dest);
+		if (c==null || !admit(from, c, dest, packet)) {
+			if (c==null) recordDrop(null, "no route", packet);
+			packet.release();
+		} else if (c.supports(FEATURE_IP)) {
+			c.send(packet, false);
 		} else {
-			byte[] parentPacket = new byte[packet.length+1];
-			parentPacket[0] = DATA_PACKET;
-			System.arraycopy(packet, 0, parentPacket, 1, packet.length);
-			sendInt(mac, parentPacket, false);
+			packet.strip(1);
+			addEthernetHeader(packet, dest);
+			packet.getData()[packet.prepend(1)] = DATA_PACKET;
+			c.send(packet, false);
 		}
 	}
 
+	/**
+	 * Add an ethernet header to an IPv4 packet.
+	 * @param packet the packet
+	 * @param dest the destination mac address
+	 */
+	private void addEthernetHeader(PacketBuffer packet, MacAddress dest) {
+		byte[] data = packet.getData();
+		MacAddress src = ipTable.lookup(IPPrefixTable.getIP(data, packet.getOffset()+IPV4_SRC));
+		if (src==null) src = myMAC;
+
+		int off = packet.prepend(ETHERNET_HEADER);
+		dest.getAddress(data, off);
+		src.getAddress(data, off+6);
+		data[off+12] = ETHERTYPE_IPV4_HIGH;
+		data[off+13] = ETHERTYPE_IPV4_LOW;
+	}
+
+	/**
+	 * Handle an IP packet
+	 * @param from the connection the packet was received from
+	 * @param packet the packet
+	 */
+	private void handleIPPacket(P2PConnection from, PacketBuffer packet) {
+		if (packet.getLength() < 1+20) {
+			packet.release();
+			return;
+		}
+
+		MacAddress dest = ipTable.lookup(
+				IPPrefixTable.getIP(packet.getData(), packet.getOffset()+1+IPV4_DEST));
+		if (dest==null) {
+			packet.release();
+		} else if (dest.equals(myMAC)) {
+			packet.strip(1);
+			addEthernetHeader(packet, dest);
+			if (vpnConnector!=null) vpnConnector.receive(packet);
+			else packet.release();
+		} else {
+			sendIPInt(from, dest, packet);
+		}
+	}
+
+	/**
+	 * Send a GSO frame. Called from VPNConnector.
+	 * @param packet the virtio_net_hdr followed by the frame, it needs enough
+	 * headroom for the router header
+	 */
+	public void sendGso(PacketBuffer packet) {
+		if (packet.isTraced()) packet.setTraceTime(System.nanoTime());
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
+
+		if (!gotMacFromTun) {
+			setMac(new MacAddress(data, off+VirtioNetHeader.SIZE+6));
+			gotMacFromTun = true;
+		}
+
+		MacAddress mac = destMac.get();
+		mac.setAddress(data, off+VirtioNetHeader.SIZE);
+		data[packet.prepend(1)] = DATA_GSO_PACKET;
+		sendGso(null, mac, packet);
+	}
+
 	/**
 	 * Add an internal packet listener.
 	 * @param internalPort listen to this port
@@ -751,4 +1393,79 @@ public class Router implements RoutungTableListener {
 	public MacAddress getMyMAC() {
 		return myMAC;
 	}
+
+	/**
+	 * Find the peer using the given IP address ("vpn.ip").
+	 * @param ip the address
+	 * @return the mac address of the peer, null if it's unknown
+	 */
+	public MacAddress findMacForIP(int ip) {
+		return hostTable.lookup(ip);
+	}
+
+	/**
+	 * @param mac a mac address
+	 * @return does a peer (including the local one) use this address?
+	 */
+	public boolean isPeerMac(MacAddress mac) {
+		return peerMacs.contains(mac);
+	}
+
+	public boolean isRoutedMode() {
+		return routedMode;
+	}
+
+	/**
+	 * In routed mode IPv4 packets are sent without their ethernet header
+	 * and routed using the IP addresses of the peers.
+	 * @param routedMode use the routed mode?
+	 */
+	public void setRoutedMode(boolean routedMode) {
+		this.routedMode = routedMode;
+	}
+
+	public boolean isRedundancyElimination() {
+		return redundancyElimination;
+	}
+
+	/**
+	 * Offer the redundancy elimination to the peers. It is used for the
+	 * connections to peers which enabled it, too. Every connection needs up to
+	 * 8 MB for the caches.
+	 * @param redundancyElimination offer the redundancy elimination?
+	 */
+	public void setRedundancyElimination(boolean redundancyElimination) {
+		this.redundancyElimination = redundancyElimination;
+		updateFeatures();
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	/**
+	 * Offer the deflate compression to the peers. It is used for the
+	 * connections to peers which enabled it, too. Compressing encrypted
+	 * traffic reveals the compressibility of the content to an observer
+	 * of the packet sizes (CRIME, VORACLE), so this is off by default.
+	 * @param compress offer the compression?
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+		updateFeatures();
+	}
+
+	/**
+	 * Publish the features including the enabled optional ones and
+	 * renegotiate them with all connected peers.
+	 */
+	private void updateFeatures() {
+		String features = FEATURES;
+		if (compress) features += " "+FEATURE_DEFLATE;
+		if (redundancyElimination) features += " "+FEATURE_REDUNDANCY_ELIMINATION;
+		setLocalPeerInfo("net.features", features);
+		for(P2PConnection c : getConnections()) {
+			c.setRemoteFeatures(getPeerInfo(c.getRemoteAddr(), "net.features"));
+		}
+	}
 }
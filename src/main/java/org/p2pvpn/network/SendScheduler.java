@@ -0,0 +1,579 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import org.p2pvpn.network.bandwidth.Histogram;
+import org.p2pvpn.network.bandwidth.TokenBucket;
+import org.p2pvpn.network.metrics.FlightEvent;
+import org.p2pvpn.tools.InternetChecksum;
+
+/**
+ * The send queue of a TCPConnection. Packets are sorted into traffic
+ * classes and flows; the classes are served by weighted deficit round
+ * robin, the flows of a class get the same share (deficit round robin).
+ *
+ * When the queue is full, the oldest packet of the flow with the most
+ * queued bytes is dropped, so a single bulk transfer can't push out the
+ * packets of other flows.
+ *
+ * Every flow (except the control flows) is managed by CoDel: when the
+ * packets of a flow stay longer than TARGET in the queue for at least
+ * INTERVAL, packets are dropped or ECN marked in increasing frequency
+ * until the standing queue is gone. Both constants don't depend on the
+ * speed of the link.
+ *
+ * A class can have a bandwidth limit. While its TokenBucket is empty, the
+ * class is skipped; getWaitTime() tells when it may send again. The limit
+ * of the whole connection (see setLinkLimit()) holds back all classes, so
+ * the sender waits for it here instead of blocking in the middle of
+ * sending a packet.
+ *
+ * This class is not thread safe, the TCPConnection synchronizes on it.
+ * @author Wolfgang Ginolas
+ */
+public class SendScheduler {
+
+	/**
+	 * The traffic classes.
+	 * CONTROL: packets of P2PVPN itself,
+	 * INTERACTIVE: DSCP CS4 and above, ICMP, DNS, SSH, NTP and non IP frames,
+	 * BULK: everything else and DSCP CS1.
+	 */
+	public enum TrafficClass {CONTROL, INTERACTIVE, BULK};
+
+	private static final int[] CLASS_QUANTUM = {16*1024, 8*1024, 2*1024};	// bytes per round
+	private static final int FLOW_QUANTUM = 1514;
+	private static final int FLOWS = 64;					// flow queues per class
+
+	private static final int DSCP_CS1 = 8;
+	private static final int DSCP_CS4 = 32;
+	private static final int PROTO_ICMP = 1;
+	private static final int PROTO_TCP = 6;
+	private static final int PROTO_UDP = 17;
+	private static final int PROTO_ICMPV6 = 58;
+	private static final int[] INTERACTIVE_PORTS = {22, 53, 123};
+
+	private static final long TARGET = 5*1000*1000;		// acceptable standing queue delay in ns
+	private static final long INTERVAL = 100*1000*1000;	// about one round trip time in ns
+	private static final int ECN_MASK = 0x03;
+	private static final int ECN_CE = 0x03;
+
+	private static class Flow {
+		Queue<PacketBuffer> packets = new LinkedList<PacketBuffer>();
+		int bytes;							// queued bytes
+		int deficit;
+
+		boolean checked;					// did CoDel accept the first packet?
+		boolean dropping;					// is CoDel in the dropping state?
+		long firstAbove;					// when the delay got too large, 0 if it isn't
+		long dropNext;						// time of the next drop
+		int count;							// drops since entering the dropping state
+		int lastCount;
+	}
+
+	private static class ClassQueue {
+		TrafficClass type;
+		Flow[] flows = new Flow[FLOWS];
+		LinkedList<Flow> active = new LinkedList<Flow>();	// flows with queued packets
+		int quantum;
+		int deficit;
+		TokenBucket limit;					// may be null
+		int packets;						// queued packets
+		long sentPackets, sentBytes, dropped, marked;
+	}
+
+	private ClassQueue[] classes;
+	private TokenBucket linkLimit;			// limit of the whole connection, may be null
+	private int current;					// the class served at the moment
+	private int size;						// queued packets in all classes
+	private Histogram delays;				// the queue delays in microseconds
+	private String name;					// the name used for recorded drops
+
+	/**
+	 * Create a new, empty SendScheduler without bandwidth limits.
+	 */
+	public SendScheduler() {
+		this(null);
+	}
+
+	/**
+	 * Create a new, empty SendScheduler.
+	 * @param limits the bandwidth limit of every traffic class, may be null
+	 */
+	public SendScheduler(TokenBucket[] limits) {
+		TrafficClass[] tc = TrafficClass.values();
+		classes = new ClassQueue[tc.length];
+		for(int i=0; i<tc.length; i++) {
+			classes[i] = new ClassQueue();
+			classes[i].type = tc[i];
+			classes[i].quantum = CLASS_QUANTUM[i];
+			classes[i].limit = limits==null ? null : limits[i];
+		}
+		linkLimit = null;
+		current = 0;
+		size = 0;
+		delays = new Histogram();
+		name = "";
+	}
+
+	private static boolean isInteractivePort(int port) {
+		for(int p : INTERACTIVE_PORTS) {
+			if (p==port) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find the traffic class of a packet.
+	 * @param b the array
+	 * @param off start of the router packet
+	 * @param len length of the packet
+	 * @return the class
+	 */
+	static TrafficClass classify(byte[] b, int off, int len) {
+		int ip = Router.ipOffset(b, off);
+		if (ip<0) return TrafficClass.CONTROL;
+		int end = off+len;
+		int dscp, proto, l4;
+
+		if (ip+20<=end && ((b[ip] >> 4) & 0xF)==4) {
+			dscp = (b[ip+1] >> 2) & 0x3F;
+			proto = b[ip+9] & 0xFF;
+			boolean fragment = (b[ip+6] & 0x1F)!=0 || b[ip+7]!=0;
+			l4 = fragment ? end : ip + (b[ip] & 0xF)*4;
+		} else if (ip+40<=end && ((b[ip] >> 4) & 0xF)==6) {
+			dscp = ((b[ip] & 0xF) << 2) + ((b[ip+1] >> 6) & 0x3);
+			proto = b[ip+6] & 0xFF;
+			l4 = ip+40;
+		} else {
+			return TrafficClass.INTERACTIVE;		// ARP and friends
+		}
+
+		if (dscp>=DSCP_CS4) return TrafficClass.INTERACTIVE;
+		if (dscp==DSCP_CS1) return TrafficClass.BULK;
+		if (proto==PROTO_ICMP || proto==PROTO_ICMPV6) return TrafficClass.INTERACTIVE;
+		if ((proto==PROTO_TCP || proto==PROTO_UDP) && l4+4<=end) {
+			int sport = ((b[l4] & 0xFF) << 8) + (b[l4+1] & 0xFF);
+			int dport = ((b[l4+2] & 0xFF) << 8) + (b[l4+3] & 0xFF);
+			if (isInteractivePort(sport) || isInteractivePort(dport)) return TrafficClass.INTERACTIVE;
+		}
+		return TrafficClass.BULK;
+	}
+
+	/**
+	 * Put a packet into the queue.
+	 * @param packet the packet
+	 * @param highPriority a high priority packet is never dropped
+	 * @param limit the maximum number of queued packets
+	 * @return false, if the packet itself was dropped. It is not released.
+	 */
+	public boolean offer(PacketBuffer packet, boolean highPriority, int limit) {
+		byte[] b = packet.getData();
+		int off = packet.getOffset();
+		int len = packet.getLength();
+		ClassQueue c = classes[classify(b, off, len).ordinal()];
+		int slot = (Compressor.flowKey(b, off, len) * 0x9E3779B9) >>> 26;
+
+		Flow flow = c.flows[slot];
+		if (flow==null) {
+			flow = new Flow();
+			c.flows[slot] = flow;
+		}
+		if (!highPriority && size>=limit) {
+			ClassQueue fatClass = null;
+			Flow fat = null;
+			for(ClassQueue fc : classes) {
+				if (fc==classes[TrafficClass.CONTROL.ordinal()]) continue;	// high priority packets
+				for(Flow f : fc.active) {
+					if (fat==null || f.bytes>fat.bytes) {
+						fat = f;
+						fatClass = fc;
+					}
+				}
+			}
+			if (fat==null || fat==flow || fat.bytes<flow.bytes+len) {
+				c.dropped++;
+				return false;
+			}
+			drop(fatClass, fat, "overflow");
+			if (fat.packets.isEmpty()) {
+				fatClass.active.remove(fat);
+				fat.deficit = 0;
+			}
+		}
+
+		if (flow.packets.isEmpty()) c.active.add(flow);
+		packet.setTimestamp(System.nanoTime());
+		flow.packets.offer(packet);
+		flow.bytes += len;
+		c.packets++;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Set the ECN field of a packet to "congestion experienced".
+	 * @param packet the packet
+	 * @return false, if the packet doesn't support ECN
+	 */
+	static boolean mark(PacketBuffer packet) {
+		byte[] b = packet.getData();
+		int off = packet.getOffset();
+		int ip = Router.ipOffset(b, off);
+		if (ip<0 || ip+20>off+packet.getLength()) return false;
+		int version = (b[ip] >> 4) & 0xF;
+		if (version==4) {
+			if ((b[ip+1] & ECN_MASK)==0) return false;
+			int old = ((b[ip] & 0xFF) << 8) + (b[ip+1] & 0xFF);
+			b[ip+1] |= ECN_CE;
+			InternetChecksum.update(b, ip+10, old, old | ECN_CE);
+			return true;
+		} else if (version==6) {
+			if ((b[ip+1] & (ECN_MASK << 4))==0) return false;
+			b[ip+1] |= ECN_CE << 4;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the first packet of a flow.
+	 * @param c the class of the flow
+	 * @param f the flow
+	 * @return the packet
+	 */
+	private PacketBuffer remove(ClassQueue c, Flow f) {
+		PacketBuffer packet = f.packets.poll();
+		f.bytes -= packet.getLength();
+		f.checked = false;
+		c.packets--;
+		size--;
+		return packet;
+	}
+
+	/**
+	 * Drop the first packet of a flow.
+	 * @param c the class of the flow
+	 * @param f the flow
+	 * @param reason why the packet is dropped
+	 * @return the next packet of the flow, null if there is none
+	 */
+	private PacketBuffer drop(ClassQueue c, Flow f, String reason) {
+		PacketBuffer packet = remove(c, f);
+		if (FlightEvent.DROP.isEnabled()) {
+			FlightEvent.DROP.commit(name+" "+c.type.toString().toLowerCase(), reason, packet.getLength());
+		}
+		packet.release();
+		c.dropped++;
+		return f.packets.peek();
+	}
+
+	/**
+	 * Should CoDel drop this packet?
+	 * @param f the flow
+	 * @param packet the first packet of the flow
+	 * @param now the current time
+	 * @return true, if the delay is above TARGET for at least INTERVAL
+	 */
+	private static boolean okToDrop(Flow f, PacketBuffer packet, long now) {
+		if (now-packet.getTimestamp()<TARGET || f.bytes<=packet.getLength()) {
+			f.firstAbove = 0;
+			return false;
+		}
+		if (f.firstAbove==0) {
+			f.firstAbove = now+INTERVAL;
+			return false;
+		}
+		return now-f.firstAbove>=0;
+	}
+
+	private static long controlLaw(long t, int count) {
+		return t + (long)(INTERVAL / Math.sqrt(count));
+	}
+
+	/**
+	 * Let CoDel decide about the first packet of a flow. Packets are dropped
+	 * or marked, until a packet can be sent. The decision is only made once
+	 * for each packet.
+	 * @param c the class of the flow
+	 * @param f the flow
+	 * @return the first packet of the flow after dropping, null if the flow is empty
+	 */
+	private PacketBuffer codel(ClassQueue c, Flow f) {
+		PacketBuffer packet = f.packets.peek();
+		if (packet==null || f.checked || c==classes[TrafficClass.CONTROL.ordinal()]) return packet;
+
+		long now = System.nanoTime();
+		boolean ok = okToDrop(f, packet, now);
+		if (f.dropping) {
+			if (!ok) {
+				f.dropping = false;
+			} else {
+				while (f.dropping && now-f.dropNext>=0) {
+					f.count++;
+					if (mark(packet)) {
+						c.marked++;
+						f.dropNext = controlLaw(f.dropNext, f.count);
+						break;
+					}
+					packet = drop(c, f, "codel");
+					if (packet==null || !okToDrop(f, packet, now)) {
+						f.dropping = false;
+					} else {
+						f.dropNext = controlLaw(f.dropNext, f.count);
+					}
+				}
+			}
+		} else if (ok) {
+			if (mark(packet)) {
+				c.marked++;
+			} else {
+				packet = drop(c, f, "codel");
+			}
+			f.dropping = true;
+			int delta = f.count-f.lastCount;
+			f.count = (delta>1 && now-f.dropNext<16*INTERVAL) ? delta : 1;
+			f.dropNext = controlLaw(now, f.count);
+			f.lastCount = f.count;
+		}
+		f.checked = packet!=null;
+		return packet;
+	}
+
+	/**
+	 * Find the next flow of a class using deficit round robin. The flow
+	 * stays the same until a packet is taken from it.
+	 * @param c the class
+	 * @return the flow, null if CoDel dropped all packets of the class
+	 */
+	private Flow nextFlow(ClassQueue c) {
+		while (!c.active.isEmpty()) {
+			Flow f = c.active.getFirst();
+			PacketBuffer packet = codel(c, f);
+			if (packet==null) {
+				c.active.removeFirst();
+				f.deficit = 0;
+			} else if (packet.getLength()<=f.deficit) {
+				return f;
+			} else {
+				f.deficit += FLOW_QUANTUM;
+				c.active.addLast(c.active.removeFirst());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the next class using deficit round robin. Classes exceeding
+	 * their bandwidth limit are skipped.
+	 * @return the class, null if the queue is empty or all classes are limited
+	 */
+	private ClassQueue nextClass() {
+		if (linkLimit!=null && linkLimit.getDelay()>0) return null;
+		int skipped = 0;
+		while (size>0 && skipped<classes.length) {
+			ClassQueue c = classes[current];
+			Flow f = null;
+			if (c.packets>0 && (c.limit==null || c.limit.getDelay()==0)) f = nextFlow(c);
+			if (f!=null) {
+				if (f.packets.peek().getLength()<=c.deficit) return c;
+				c.deficit += c.quantum;
+				skipped = 0;
+			} else {
+				if (c.packets==0) c.deficit = 0;
+				skipped++;
+			}
+			current = (current+1) % classes.length;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the largest queue delay of the bulk flows CoDel is dropping
+	 * from in nanoseconds, 0 if there is no such flow
+	 */
+	public long getCongestion() {
+		ClassQueue c = classes[TrafficClass.BULK.ordinal()];
+		long now = System.nanoTime();
+		long result = 0;
+		for(Flow f : c.active) {
+			PacketBuffer head = f.packets.peek();
+			if (f.dropping && head!=null) result = Math.max(result, now-head.getTimestamp());
+		}
+		return result;
+	}
+
+	/**
+	 * @return nanoseconds until a packet may be sent, -1 if the queue is empty
+	 */
+	public long getWaitTime() {
+		if (size==0) return -1;
+		long wait = Long.MAX_VALUE;
+		for(ClassQueue c : classes) {
+			if (c.packets>0) wait = Math.min(wait, c.limit==null ? 0 : c.limit.getDelay());
+		}
+		if (linkLimit!=null) wait = Math.max(wait, linkLimit.getDelay());
+		return wait;
+	}
+
+	/**
+	 * @return the next packet to send without removing it, null if the queue is empty
+	 */
+	public PacketBuffer peek() {
+		ClassQueue c = nextClass();
+		if (c==null) return null;
+		return nextFlow(c).packets.peek();
+	}
+
+	/**
+	 * Remove the next packet from the queue.
+	 * @return the packet, null if the queue is empty
+	 */
+	public PacketBuffer poll() {
+		ClassQueue c = nextClass();
+		if (c==null) return null;
+		Flow f = nextFlow(c);
+		PacketBuffer packet = remove(c, f);
+		int len = packet.getLength();
+		f.deficit -= len;
+		c.deficit -= len;
+		if (f.packets.isEmpty()) {
+			c.active.removeFirst();
+			f.deficit = 0;
+		}
+		c.sentPackets++;
+		c.sentBytes += len;
+		if (c.limit!=null) c.limit.reserve(len);
+
+		delays.record((System.nanoTime()-packet.getTimestamp()) / 1000);
+		return packet;
+	}
+
+	/**
+	 * Return a percentile of the queue delays of all sent packets.
+	 * @param p the percentile (0 to 100)
+	 * @return the delay in milliseconds (the upper end of the bucket)
+	 */
+	public double getDelayPercentile(double p) {
+		return delays.getPercentile(p) / 1000.0;
+	}
+
+	/**
+	 * @return the queue delays of all sent packets in microseconds
+	 */
+	public Histogram getDelays() {
+		return delays;
+	}
+
+	/**
+	 * Set the name of the queue, used for recorded drops.
+	 * @param name the name
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Set the bandwidth limit of the whole connection. The sender has to
+	 * reserve() the tokens for every packet it sends; no packet is returned
+	 * while the bucket or one of its parents is empty.
+	 * @param limit the limit, may be null
+	 */
+	public void setLinkLimit(TokenBucket limit) {
+		linkLimit = limit;
+	}
+
+	/**
+	 * Release all queued packets, regardless of the bandwidth limits.
+	 */
+	public void clear() {
+		for(ClassQueue c : classes) {
+			for(Flow f : c.active) {
+				while (!f.packets.isEmpty()) remove(c, f).release();
+				f.deficit = 0;
+				f.dropping = false;
+			}
+			c.active.clear();
+			c.deficit = 0;
+		}
+	}
+
+	/**
+	 * @return the number of queued packets
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param tc the traffic class
+	 * @return the number of queued packets of this class
+	 */
+	public int getQueued(TrafficClass tc) {
+		return classes[tc.ordinal()].packets;
+	}
+
+	/**
+	 * @param tc the traffic class
+	 * @return the number of dropped packets of this class
+	 */
+	public long getDropped(TrafficClass tc) {
+		return classes[tc.ordinal()].dropped;
+	}
+
+	/**
+	 * @param tc the traffic class
+	 * @return the number of packets of this class marked by CoDel
+	 */
+	public long getMarked(TrafficClass tc) {
+		return classes[tc.ordinal()].marked;
+	}
+
+	/**
+	 * @param tc the traffic class
+	 * @return the number of sent packets of this class
+	 */
+	public long getSentPackets(TrafficClass tc) {
+		return classes[tc.ordinal()].sentPackets;
+	}
+
+	/**
+	 * @param tc the traffic class
+	 * @return the number of sent bytes of this class
+	 */
+	public long getSentBytes(TrafficClass tc) {
+		return classes[tc.ordinal()].sentBytes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for(TrafficClass tc : TrafficClass.values()) {
+			if (result.length()>0) result.append(", ");
+			result.append(String.format("%s: %d queued, %d sent, %d dropped, %d marked",
+					tc.toString().toLowerCase(), getQueued(tc), getSentPackets(tc), getDropped(tc), getMarked(tc)));
+		}
+		result.append(String.format(", delay p50 %.1f ms, p99 %.1f ms, p999 %.1f ms",
+				getDelayPercentile(50), getDelayPercentile(99), getDelayPercentile(99.9)));
+		return result.toString();
+	}
+}
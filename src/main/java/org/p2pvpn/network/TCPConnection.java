@@ -18,7 +18,10 @@
 */
 
 package org.p2pvpn.network;
+import org.p2pvpn.network.bandwidth.Histogram;
 import org.p2pvpn.network.bandwidth.MeasureBandwidth;
+import org.p2pvpn.network.bandwidth.TokenBucket;
+import org.p2pvpn.network.metrics.FlightEvent;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -26,8 +29,9 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.security.InvalidKeyException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
@@ -45,14 +49,24 @@ public class TCPConnection implements Runnable {
 	private static final double BUCKET_TIME = 0.5;
 	private static final int BUCKET_LEN = 10;
 
-	public static final int DEFAULT_MAX_QUEUE = 10;
+	public static final int DEFAULT_MAX_QUEUE = 500;	// CoDel keeps the queue delay low
 	public static final boolean DEFAULT_TCP_FLUSH = false;
 
-	private static final int MAX_PACKET_SIZE = 10 * 1024;
+	static final int MAX_PACKET_SIZE = 10 * 1024;			// limit for peers without jumbo support
+	static final int MAX_JUMBO_PACKET_SIZE = 68 * 1024;
+	static final int MAX_PADDING = 32;
+	private static final int LONG_LENGTH = 0xFFFF;			// a 4 byte length follows
+	private static final int HEADER_SPACE = 6;
+
+	private static final long AGGREGATE_DELAY_NS = 200*1000;	// wait this long for more small packets
+	private static final int AGGREGATE_WAIT_SIZE = 256;			// only wait after packets up to this size
+	private static final long CONGESTION_TICK_NS = 10*1000*1000;	// how long getCongestion() is cached
 
 	private enum CCState {WAIT_FOR_IV, WAIT_FOR_DATA};
 
 	private MeasureBandwidth bwIn, bwOut;		// The currently used Bandwidth
+	private Histogram packetSizes;				// sizes of the queued packets
+	private PacketTracer tracer;				// latencies of the pipeline stages
 
 	private Cipher cIn, cOut;					// The ciphers for sending and receiving
 	private SecretKey key;						// The current encryption kay
@@ -65,7 +79,25 @@ public class TCPConnection implements Runnable {
 	private SocketAddress peer;					// the remote address
 	private P2PConnection listener;				// the upper network layer
 	
-	private Queue<byte[]> sendQueue;			// a send queue
+	private SendScheduler sendQueue;			// the send queue, also used as lock for it
+	private TokenBucket peerSendLimit;			// bandwidth limit for this connection
+	private byte[] sendBuffer;					// holds the encrypted packet and its length
+	private final Object sendLock;				// held while encrypting and sending
+	private volatile int maxPacketSize;			// the largest packet the remote peer accepts
+	private volatile boolean aggregate;			// send several packets in one aggregate packet?
+	private volatile boolean compress;			// compress packets when it pays off?
+	private Compressor compressor;				// compresses and decompresses packets
+	private volatile boolean headerCompression;	// compress the headers of data packets?
+	private HeaderCompressor headerCompressor;
+	private volatile boolean redundancyElimination;	// replace content sent before by references?
+	private RedundancyEliminator redundancyEliminator;
+	private LinkTuner linkTuner;					// sizes the buffers from the BDP
+	private AtomicLong flushes;					// number of flushes of the output stream
+	private AtomicLong packetsIn, packetsOut;	// packets received/sent through the socket
+	private AtomicLong encryptNanos;			// time spent encrypting
+	private AtomicLong decryptNanos;			// time spent decrypting
+	private volatile long congestion;			// the cached result of getCongestion()
+	private volatile long congestionTime;		// when it was calculated
 	private boolean closed;						// is this connection closed?
 
 	private long lastActive;					// time of the last received packet
@@ -80,12 +112,34 @@ public class TCPConnection implements Runnable {
 		this.connectionManager = connectionManager;
 		this.socket = socket;
 		peer = socket.getRemoteSocketAddress();
-		sendQueue = new LinkedList<byte[]>();
+		sendQueue = new SendScheduler(connectionManager.getClassLimits());
+		sendQueue.setName(peer.toString());
+		peerSendLimit = connectionManager.createPeerSendLimit();
+		sendQueue.setLinkLimit(peerSendLimit);
+		sendBuffer = new byte[HEADER_SPACE + MAX_PACKET_SIZE + MAX_PADDING];
+		sendLock = new Object();
+		maxPacketSize = MAX_PACKET_SIZE;
+		aggregate = false;
+		compress = false;
+		compressor = new Compressor();
+		headerCompression = false;
+		headerCompressor = new HeaderCompressor();
+		redundancyElimination = false;
+		redundancyEliminator = new RedundancyEliminator();
+		flushes = new AtomicLong();
+		packetsIn = new AtomicLong();
+		packetsOut = new AtomicLong();
+		encryptNanos = new AtomicLong();
+		decryptNanos = new AtomicLong();
+		congestion = 0;
+		congestionTime = System.nanoTime()-CONGESTION_TICK_NS;
 		closed = false;
 		cIn = null;
 		cOut = null;
 		bwIn = new MeasureBandwidth(BUCKET_TIME, BUCKET_LEN);
 		bwOut = new MeasureBandwidth(BUCKET_TIME, BUCKET_LEN);
+		packetSizes = new Histogram();
+		tracer = new PacketTracer();
 		state = CCState.WAIT_FOR_DATA;
 		lastActive = System.currentTimeMillis();
 		
@@ -93,6 +147,7 @@ public class TCPConnection implements Runnable {
 			in = socket.getInputStream();
 			out = new BufferedOutputStream(socket.getOutputStream());
 			changeKey(keyBytes);
+			linkTuner = new LinkTuner(connectionManager, this, socket);
 			this.connectionManager.newConnection(this);
 			(new Thread(this, "TCPConnection "+peer)).start();
 			(new Thread(new Runnable() {
@@ -120,9 +175,10 @@ public class TCPConnection implements Runnable {
 			Logger.getLogger("").log(Level.SEVERE, null, ex);
 			close();
 		}
-		sendEncypted(newOut.getIV(), true);
-		
-		cOut = newOut;
+		synchronized (sendLock) {
+			sendEncypted(PacketBuffer.wrap(newOut.getIV()), true);
+			cOut = newOut;
+		}
 	}
 
 	/**
@@ -140,17 +196,91 @@ public class TCPConnection implements Runnable {
 		return result;
 	}
 
+	/**
+	 * Read the length of the next packet. Lengths up to 0xFFFE use 2 bytes,
+	 * larger ones are sent as 0xFFFF followed by a 4 byte length.
+	 * @return the length
+	 * @throws java.io.IOException
+	 */
+	private int readLength() throws IOException {
+		int result = readInt();
+		if (result==LONG_LENGTH) result = (readInt() << 16) + readInt();
+		return result;
+	}
+
+	/**
+	 * Enable the aggregation of packets. Only use this, when the remote peer
+	 * can handle aggregate packets.
+	 * @param aggregate send several packets in one aggregate packet?
+	 */
+	public void setAggregate(boolean aggregate) {
+		this.aggregate = aggregate;
+	}
+
+	/**
+	 * Enable the compression of packets. Only use this, when the remote peer
+	 * can decompress them.
+	 * @param compress compress packets when it pays off?
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	public Compressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * Enable the header compression. Only use this, when the remote peer
+	 * supports it.
+	 * @param headerCompression compress the headers of data packets?
+	 */
+	public void setHeaderCompression(boolean headerCompression) {
+		this.headerCompression = headerCompression;
+	}
+
+	public HeaderCompressor getHeaderCompressor() {
+		return headerCompressor;
+	}
+
+	/**
+	 * Enable the redundancy elimination. Only use this, when the remote peer
+	 * supports it.
+	 * @param redundancyElimination replace content sent before by references?
+	 */
+	public void setRedundancyElimination(boolean redundancyElimination) {
+		this.redundancyElimination = redundancyElimination;
+	}
+
+	public RedundancyEliminator getRedundancyEliminator() {
+		return redundancyEliminator;
+	}
+
+	/**
+	 * Set the size of the largest packet the remote peer accepts.
+	 * @param size the size
+	 */
+	public void setMaxPacketSize(int size) {
+		maxPacketSize = Math.min(size, MAX_JUMBO_PACKET_SIZE);
+	}
+
 	/**
 	 * Receive packages.
 	 */
 	@Override
 	public void run() {
+		OverloadController.addPacketThread();
 		byte[] buffer = new byte[MAX_PACKET_SIZE];
 		try {
 			while (true) {
-				int size = readInt();
+				int size = readLength();
 				
-				if (size>MAX_PACKET_SIZE) throw new IOException("Packet too large");
+				if (size>MAX_JUMBO_PACKET_SIZE) throw new IOException("Packet too large");
+				if (size>buffer.length) buffer = new byte[size];
+
+				long trace = PacketTracer.sample() ? System.nanoTime() : 0;
+				// stop reading while over the limit, so the TCP window closes and the peer slows down
+				connectionManager.getRecLimit().waitForTokens(2+size);
 				
 				int rest=size;
 				int off=0;
@@ -162,9 +292,12 @@ public class TCPConnection implements Runnable {
 					off += len;
 				}
 				
-				byte[] packet = new byte[size];
-				System.arraycopy(buffer, 0, packet, 0, size);
-				handleEncryptedPacket(packet);
+				if (trace!=0) {
+					long now = System.nanoTime();
+					tracer.record(PacketTracer.Stage.READ, now-trace);
+					trace = now;
+				}
+				handleEncryptedPacket(buffer, size, trace);
 			}
 		} catch (Throwable e) {
 			//e.printStackTrace();
@@ -172,8 +305,37 @@ public class TCPConnection implements Runnable {
 		
 		if (listener!=null) listener.connectionClosed();
 		closed = true;
+		Logger log = Logger.getLogger("");
+		if (log.isLoggable(Level.FINE)) {	// statistics, only when debugging
+			if (compressor.getRawBytes()>0) {
+				log.log(Level.FINE, "Compression for "+peer+": "+compressor);
+			}
+			if (headerCompressor.getCompressedPackets()>0) {
+				log.log(Level.FINE, "Header compression for "+peer+": "+headerCompressor);
+			}
+			if (redundancyEliminator.getRawBytes()>0) {
+				log.log(Level.FINE, "Redundancy elimination for "+peer+": "+redundancyEliminator);
+			}
+			log.log(Level.FINE, "Link tuning for "+peer+": "+linkTuner);
+			if (listener!=null && listener.getPingHistogram().getCount()>0) {
+				log.log(Level.FINE, "Ping (ms) for "+peer+": "+listener.getPingHistogram());
+			}
+			if (packetSizes.getCount()>0) {
+				log.log(Level.FINE, "Packet sizes for "+peer+": "+packetSizes);
+			}
+			if (tracer.hasSamples()) {
+				log.log(Level.FINE, "Stage latencies for "+peer+": "+tracer);
+			}
+		}
 		
-		synchronized (sendQueue) {sendQueue.notify();}
+		synchronized (sendQueue) {
+			if (sendQueue.getDropped(SendScheduler.TrafficClass.INTERACTIVE)>0 ||
+					sendQueue.getDropped(SendScheduler.TrafficClass.BULK)>0) {
+				log.log(Level.FINE, "Send queue for "+peer+": "+sendQueue);
+			}
+			sendQueue.clear();
+			sendQueue.notify();
+		}
 		
 		try {
 			socket.close();
@@ -186,22 +348,48 @@ public class TCPConnection implements Runnable {
 	 * Get packages from the queue and send them.
 	 */
 	private void sendThread() {
+		OverloadController.addPacketThread();
 		try {
 			while (true) {
 				if (closed) break;
-				byte[] packet;
+				PacketBuffer packet;
 				synchronized (sendQueue) {
 					packet = sendQueue.poll();
 				}
 				if (packet == null) {
 					out.flush();
+					flushes.incrementAndGet();
 					try {
-						synchronized (sendQueue) {sendQueue.wait();}
+						synchronized (sendQueue) {
+							long wait = sendQueue.getWaitTime();
+							if (wait<0) sendQueue.wait();
+							else if (wait>0) TimeUnit.NANOSECONDS.timedWait(sendQueue, wait);
+						}
 					} catch (InterruptedException ex) {
 					}
 				}
+				long trace = 0;
+				if (packet != null && packet.isTraced()) {
+					trace = System.nanoTime();
+					tracer.record(PacketTracer.Stage.QUEUE, trace-packet.getTraceTime());
+				}
+				// deflated one by one, so the Compressor sees the flow of every packet
+				if (packet != null && compress) packet = compressor.compress(packet);
+				// compressed in send order, the contexts have to be sent before they are used
+				if (packet != null && headerCompression) headerCompressor.compress(packet);
+				if (packet != null && aggregate) packet = aggregate(packet);
+				if (packet != null && redundancyElimination) packet = redundancyEliminator.encode(packet);
+				if (packet != null && trace != 0) {
+					long now = System.nanoTime();
+					tracer.record(PacketTracer.Stage.PROCESS, now-trace);
+					// the packet may have been replaced, mark the one that is sent
+					packet.startTrace(now);
+				}
 				if (packet != null) {
-					sendEncypted(packet, false);
+					synchronized (sendLock) {
+						sendEncypted(packet, false);
+					}
+					packet.release();
 					if (connectionManager.isTCPFlush()) out.flush();
 				}
 			}
@@ -212,39 +400,116 @@ public class TCPConnection implements Runnable {
 	}
 
 	/**
-	 * Encrypt an packet and send it.
+	 * Combine a packet with the packets waiting in the send queue, so they
+	 * are encrypted and sent as one packet. After a small packet we wait up
+	 * to AGGREGATE_DELAY_NS for more packets to arrive. The packets taken
+	 * from the queue are compressed like the first one.
+	 * @param first the packet taken from the queue, it will be released
+	 * @return the aggregate packet or the first packet, if there was
+	 * nothing to combine it with
+	 */
+	private PacketBuffer aggregate(PacketBuffer first) {
+		PacketBuffer next;
+		synchronized (sendQueue) {
+			next = sendQueue.peek();
+		}
+		if (next == null && first.getLength() <= AGGREGATE_WAIT_SIZE) {
+			LockSupport.parkNanos(AGGREGATE_DELAY_NS);
+			synchronized (sendQueue) {
+				next = sendQueue.peek();
+			}
+		}
+		int max = Math.min(Math.min(maxPacketSize-MAX_PADDING, PacketBuffer.getMaxPacketSize()), 0xFFFF);
+		boolean deflate = compress;
+		boolean compressHeaders = headerCompression;
+		int growth = compressHeaders ? HeaderCompressor.MAX_GROWTH : 0;	// queued packets are uncompressed
+		if (next == null || 1+2+first.getLength()+2+next.getLength()+growth > max) return first;
+
+		PacketBuffer result = PacketBuffer.obtain();
+		byte[] data = result.getData();
+		int pos = result.getOffset();
+		data[pos++] = Router.AGGREGATE_PACKET;
+		PacketBuffer packet = first;
+		while (true) {
+			int len = packet.getLength();
+			data[pos] = (byte)(len >> 8);
+			data[pos+1] = (byte)len;
+			System.arraycopy(packet.getData(), packet.getOffset(), data, pos+2, len);
+			pos += 2+len;
+			packet.release();
+
+			synchronized (sendQueue) {
+				packet = sendQueue.peek();
+				if (packet == null || pos-result.getOffset()+2+packet.getLength()+growth > max) break;
+				sendQueue.poll();
+			}
+			if (deflate) packet = compressor.compress(packet);
+			if (compressHeaders) headerCompressor.compress(packet);
+		}
+		result.setLength(pos-result.getOffset());
+		return result;
+	}
+
+	/**
+	 * Encrypt an packet and send it. The caller has to hold sendLock.
 	 * @param packet the packet
 	 * @param flush flush the stream?
 	 */
-	private void sendEncypted(byte[] packet, boolean flush) {
+	private void sendEncypted(PacketBuffer packet, boolean flush) {
+		long trace = packet.isTraced() ? packet.getTraceTime() : 0;
+		int len;
+		if (sendBuffer.length < HEADER_SPACE + packet.getLength() + MAX_PADDING) {
+			sendBuffer = new byte[HEADER_SPACE + packet.getLength() + MAX_PADDING];
+		}
 		if (cOut==null) {
-			sendToSocket(packet, flush);
+			len = packet.getLength();
+			System.arraycopy(packet.getData(), packet.getOffset(), sendBuffer, HEADER_SPACE, len);
 		} else {
 			try {
-				sendToSocket(cOut.doFinal(packet), flush);
+				long start = System.nanoTime();
+				len = cOut.doFinal(packet.getData(), packet.getOffset(), packet.getLength(), sendBuffer, HEADER_SPACE);
+				encryptNanos.addAndGet(System.nanoTime()-start);
+				if (trace!=0) tracer.record(PacketTracer.Stage.ENCRYPT, System.nanoTime()-trace);
 			} catch (Throwable t) {
 				Logger.getLogger("").log(Level.SEVERE, null, t);
 				close();
-			} 
+				return;
+			}
 		}
+		if (trace!=0) trace = System.nanoTime();
+		sendToSocket(len, flush);
+		if (trace!=0) tracer.record(PacketTracer.Stage.WRITE, System.nanoTime()-trace);
 	}	
 
 	/**
-	 * Send an packet throug the socket.
-	 * @param packet the packet
+	 * Send the packet stored in sendBuffer throug the socket.
+	 * @param len the length of the packet
 	 * @param flush flush the stream?
 	 */
-	private void sendToSocket(byte[] packet, boolean flush) {
+	private void sendToSocket(int len, boolean flush) {
 		try {
-			connectionManager.getSendLimit().waitForTokens(2+packet.length);
-
-			int high = (packet.length & 0xFF00) >> 8;
-			int low = packet.length & 0xFF;
-			out.write(high);
-			out.write(low);
-			out.write(packet);
-			if (flush) out.flush();
-			bwOut.countPacket(2+packet.length);
+			int start;
+			if (len<LONG_LENGTH) {
+				start = HEADER_SPACE-2;
+			} else {
+				start = 0;
+				sendBuffer[0] = (byte)0xFF;
+				sendBuffer[1] = (byte)0xFF;
+				sendBuffer[2] = (byte)(len >>> 24);
+				sendBuffer[3] = (byte)(len >>> 16);
+			}
+			sendBuffer[4] = (byte)((len & 0xFF00) >> 8);
+			sendBuffer[5] = (byte)(len & 0xFF);
+
+			// the send thread waits for the tokens before it takes the next packet
+			peerSendLimit.recordWait(peerSendLimit.reserve(HEADER_SPACE-start+len));
+			out.write(sendBuffer, start, HEADER_SPACE-start+len);
+			if (flush) {
+				out.flush();
+				flushes.incrementAndGet();
+			}
+			bwOut.countPacket(HEADER_SPACE-start+len);
+			packetsOut.incrementAndGet();
 		} catch (IOException iOException) {
 			close();
 		}
@@ -253,22 +518,26 @@ public class TCPConnection implements Runnable {
 	/**
 	 * Handle an incoming encrypten packet.
 	 * @param packet the packet
+	 * @param len the length of the packet
+	 * @param trace the time the packet was read, 0 if it isn't traced
 	 */
-	public void handleEncryptedPacket(byte[] packet) {
-		byte[] ct;
+	private void handleEncryptedPacket(byte[] packet, int len, long trace) {
+		PacketBuffer ct;
 
 		lastActive = System.currentTimeMillis();
-		bwIn.countPacket(2+packet.length);
-		if (!connectionManager.getRecLimit().tokensAvailable(2+packet.length)) {
-			return;		// drop packet to limit bandwidth
-		}
+		bwIn.countPacket(2+len);
+		packetsIn.incrementAndGet();
 
 		if (cIn==null) {
-			ct = packet;
+			ct = PacketBuffer.copyOf(packet, 0, len);
 		} else {
+			ct = PacketBuffer.obtain(len);
 			try {
-				ct = cIn.doFinal(packet);
+				long start = System.nanoTime();
+				ct.setLength(cIn.doFinal(packet, 0, len, ct.getData(), ct.getOffset()));
+				decryptNanos.addAndGet(System.nanoTime()-start);
 			} catch (Throwable t) {
+				ct.release();
 				Logger.getLogger("").log(Level.SEVERE, null, t);
 				close();
 				return;
@@ -278,15 +547,24 @@ public class TCPConnection implements Runnable {
 			case WAIT_FOR_IV:
 				cIn = CryptoUtils.getSymmetricCipher();
 				try {
-					cIn.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ct));
+					cIn.init(Cipher.DECRYPT_MODE, key,
+							new IvParameterSpec(ct.getData(), ct.getOffset(), ct.getLength()));
 				} catch (Throwable t) {
 					Logger.getLogger("").log(Level.SEVERE, null, t);
 					close();
 				} 
+				ct.release();
 				state = CCState.WAIT_FOR_DATA;
 				break;
 			case WAIT_FOR_DATA:
+				if (trace!=0) {
+					long now = System.nanoTime();
+					tracer.record(PacketTracer.Stage.DECRYPT, now-trace);
+					trace = now;
+				}
 				if (listener!=null) listener.receive(ct);
+				else ct.release();
+				if (trace!=0) tracer.record(PacketTracer.Stage.DELIVER, System.nanoTime()-trace);
 				break;
 		}
 	}	
@@ -306,12 +584,41 @@ public class TCPConnection implements Runnable {
 	 * priority packer won't be dropped even if the send queue is full.
 	 */
 	public void send(byte[] packet, boolean highPriority) {
+		send(PacketBuffer.wrap(packet), highPriority);
+	}
+
+	/**
+	 * Put a packet in the sen queue. The packet is released after sending
+	 * or when it was dropped. Packets larger than the remote peer accepts
+	 * are always dropped. When the queue is full, the SendScheduler drops
+	 * a packet of the largest flow.
+	 * @param packet the packet
+	 * @param highPriority a high priority packet? A high
+	 * priority packer won't be dropped even if the send queue is full.
+	 */
+	public void send(PacketBuffer packet, boolean highPriority) {
+		if (packet.getLength() > maxPacketSize-MAX_PADDING) {
+			if (FlightEvent.DROP.isEnabled()) FlightEvent.DROP.commit(this, "too large", packet.getLength());
+			packet.release();
+			return;
+		}
 		synchronized (sendQueue) {
-			if (highPriority || sendQueue.size()<connectionManager.getSendBufferSize()) {
-				sendQueue.offer(packet);
+			if (!closed && sendQueue.offer(packet, highPriority, linkTuner.getQueueLimit())) {
+				packetSizes.record(packet.getLength());
+				if (packet.isTraced()) {
+					long now = System.nanoTime();
+					tracer.record(PacketTracer.Stage.TAP_READ, packet.getTraceTime()-packet.getTraceStart());
+					tracer.record(PacketTracer.Stage.ROUTE, now-packet.getTraceTime());
+					packet.setTraceTime(now);
+				}
 				sendQueue.notify();
+				return;
 			}
 		}
+		if (FlightEvent.DROP.isEnabled()) {
+			FlightEvent.DROP.commit(this, closed ? "closed" : "queue full", packet.getLength());
+		}
+		packet.release();
 	}
 
 	/**
@@ -334,6 +641,60 @@ public class TCPConnection implements Runnable {
 		return ((InetSocketAddress)peer).getHostName();
 	}
 
+	P2PConnection getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return the send queue size and socket options chosen for this connection
+	 */
+	public LinkTuner getLinkTuner() {
+		return linkTuner;
+	}
+
+	/**
+	 * @return the number of flushes of the output stream
+	 */
+	long getFlushes() {
+		return flushes.get();
+	}
+
+	/**
+	 * @return the sizes of the packets put in the send queue
+	 */
+	public Histogram getPacketSizes() {
+		return packetSizes;
+	}
+
+	public long getPacketsIn() {
+		return packetsIn.get();
+	}
+
+	public long getPacketsOut() {
+		return packetsOut.get();
+	}
+
+	/**
+	 * @return time spent encrypting in nanoseconds
+	 */
+	public long getEncryptNanos() {
+		return encryptNanos.get();
+	}
+
+	/**
+	 * @return time spent decrypting in nanoseconds
+	 */
+	public long getDecryptNanos() {
+		return decryptNanos.get();
+	}
+
+	/**
+	 * @return the latencies of the pipeline stages of traced packets
+	 */
+	public PacketTracer getTracer() {
+		return tracer;
+	}
+
 	public MeasureBandwidth getBwIn() {
 		return bwIn;
 	}
@@ -342,6 +703,42 @@ public class TCPConnection implements Runnable {
 		return bwOut;
 	}
 
+	/**
+	 * The send queue. Synchronize on it, when calling its methods.
+	 * @return the send queue
+	 */
+	public SendScheduler getSendQueue() {
+		return sendQueue;
+	}
+
+	/**
+	 * The value is calculated at most once per CONGESTION_TICK_NS, so it
+	 * can be asked for every forwarded packet without taking the lock of
+	 * the send queue each time.
+	 * @return the queue delay of the congested bulk flows in nanoseconds,
+	 * 0 if the connection isn't congested
+	 */
+	public long getCongestion() {
+		long now = System.nanoTime();
+		if (now-congestionTime >= CONGESTION_TICK_NS) {
+			long c;
+			synchronized (sendQueue) {
+				c = sendQueue.getCongestion();
+			}
+			congestion = c;
+			congestionTime = now;
+		}
+		return congestion;
+	}
+
+	/**
+	 * The bandwidth limit for this connection, its parent is the global limit.
+	 * @return the bucket
+	 */
+	public TokenBucket getPeerSendLimit() {
+		return peerSendLimit;
+	}
+
 	public long getLastActive() {
 		return lastActive;
 	}
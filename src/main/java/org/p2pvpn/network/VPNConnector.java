@@ -19,7 +19,9 @@
 
 package org.p2pvpn.network;
 
+import java.nio.ByteBuffer;
 import org.p2pvpn.tuntap.TunTap;
+import org.p2pvpn.tuntap.VirtioNetHeader;
 
 /**
  * This claas establishes a connection between the virtual network adapter
@@ -28,13 +30,27 @@ import org.p2pvpn.tuntap.TunTap;
  */
 public class VPNConnector implements Runnable {
 
+	private final static int MAX_FRAME_SIZE = 2048;
+	private final static int BATCH_SIZE = 32;		// packets per readFrames/writeFrames call
+	private final static int MAX_GSO_SIZE = TCPConnection.MAX_PACKET_SIZE - 64;
+
+	private final static int ETH_HLEN = 14;
 	private final static byte IPV4_HIGH = 0x08;
 	private final static byte IPV4_LOW = 0x00;
 	private final static byte IPV4_UDP = 17;
 
 	private TunTap tuntap;
-	private Router router;
+	private volatile Router router;
 	private Thread myThread;
+	private volatile int maxReadSize;		// maximum size of the packets read from the adapter
+	private boolean vnetHeader;				// does the adapter use a virtio_net_hdr?
+	private volatile int maxFrameSize;		// larger frames (or truncated ones) can't be sent
+	private volatile int mtu;				// the resulting maximum size of IP packets
+	private NeighbourProxy neighbourProxy;	// answers ARP requests locally
+	private MulticastSnooper multicastSnooper;	// finds the joined multicast groups
+
+	private PacketBuffer[] writeQueue;		// packets waiting for writeFrames
+	private int writeHead, writeCount;
 	
 	private static VPNConnector vpnConnector = null;
 
@@ -45,9 +61,41 @@ public class VPNConnector implements Runnable {
 	private VPNConnector() throws Exception {
 		tuntap = TunTap.createTunTap();
 		router = null;
+		neighbourProxy = new NeighbourProxy();
+		multicastSnooper = new MulticastSnooper();
+
+		vnetHeader = tuntap.getVnetHeaderSize()==VirtioNetHeader.SIZE;
+		if (vnetHeader) tuntap.setMaxGsoSize(MAX_GSO_SIZE);
+		setFrameSize(MAX_FRAME_SIZE - 1);
 
 		myThread = new Thread(this, "VPNConnector");
 		myThread.start();
+
+		for(int i=1; i<tuntap.getQueueCount(); i++) {
+			final int queue = i;
+			(new Thread(new Runnable() {
+				public void run() {
+					readQueue(queue);
+				}
+			}, "VPNConnector "+queue)).start();
+		}
+
+		(new Thread(new Runnable() {
+			public void run() {
+				queryThread();
+			}
+		}, "VPNConnector.queryThread")).start();
+
+		if (tuntap.isBatchSupported()) {
+			writeQueue = new PacketBuffer[4*BATCH_SIZE];
+			writeHead = 0;
+			writeCount = 0;
+			(new Thread(new Runnable() {
+				public void run() {
+					writeThread();
+				}
+			}, "VPNConnector.writeThread")).start();
+		}
 	}
 
 	/**
@@ -66,22 +114,173 @@ public class VPNConnector implements Runnable {
 	 */
 	public void setRouter(Router router) {
 		this.router = router;
-		if (router!=null) router.setVpnConnector(this);
+		if (router!=null) {
+			router.setVpnConnector(this);
+			router.setLocalPeerInfo("vpn.mcast", multicastSnooper.getGroups());
+		}
 	}
 
 	public TunTap getTunTap() {
 		return tuntap;
 	}
 
+	/**
+	 * Set the size of the largest frame read from the adapter. The read
+	 * buffers and the pooled PacketBuffers are enlarged if necessary.
+	 * @param frameSize the size including the ethernet header
+	 */
+	private void setFrameSize(int frameSize) {
+		int vnet = vnetHeader ? VirtioNetHeader.SIZE : 0;
+		// one more byte, a frame filling the whole read buffer may have been truncated
+		PacketBuffer.setMaxPacketSize(Math.max(PacketBuffer.getMaxPacketSize(), vnet + frameSize + 1));
+		maxReadSize = vnetHeader ? PacketBuffer.getMaxPacketSize() : frameSize + 1;
+		maxFrameSize = Math.min(maxReadSize - vnet - 1,
+				TCPConnection.MAX_JUMBO_PACKET_SIZE - TCPConnection.MAX_PADDING - PacketBuffer.HEADROOM);
+		mtu = maxFrameSize - ETH_HLEN;
+	}
+
+	/**
+	 * Set the MTU of the virtual network adapter. MTUs larger than 10 KB
+	 * can only be used on links to peers that support jumbo packets.
+	 * @param mtu the MTU
+	 */
+	public void setMTU(int mtu) {
+		tuntap.setMTU(mtu);
+		setFrameSize(ETH_HLEN + mtu);
+	}
+
+	/**
+	 * @return the maximum size of IP packets that can be sent through the VPN
+	 */
+	public int getMTU() {
+		return mtu;
+	}
+
 	/**
 	 * Send an packet to the virtual network adapter.
-	 * @param packet the packet
+	 * @param packet the packet, it will be released
 	 */
-	public void receive(byte[] packet) {
+	public void receive(PacketBuffer packet) {
 		//System.out.println("VPNConnector.write "+packet.length);
-		tuntap.write(packet, packet.length);
+		neighbourProxy.learn(packet.getData(), packet.getOffset(), packet.getLength());
+		PathMtu.clampMss(packet.getData(), packet.getOffset(), packet.getLength(), mtu);
+		writeFrame(packet);
+	}
+
+	/**
+	 * Write a frame without virtio_net_hdr to the virtual network adapter.
+	 * @param packet the frame, it will be released
+	 */
+	private void writeFrame(PacketBuffer packet) {
+		if (vnetHeader) VirtioNetHeader.clear(packet.getData(), packet.prepend(VirtioNetHeader.SIZE));
+		write(packet);
+	}
+
+	/**
+	 * Send a GSO packet to the virtual network adapter. When the adapter
+	 * doesn't support GSO, the packet is split into normal packets.
+	 * @param packet the virtio_net_hdr followed by the frame, it will be released
+	 */
+	public void receiveGso(PacketBuffer packet) {
+		if (vnetHeader) {
+			write(packet);
+			return;
+		}
+
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
+		int len = packet.getLength();
+		int count = VirtioNetHeader.getSegmentCount(data, off, len);
+
+		for(int i=0; i<count; i++) {
+			PacketBuffer segment = PacketBuffer.obtain();
+			segment.setLength(VirtioNetHeader.getSegment(data, off, len, i,
+					segment.getData(), segment.getOffset()));
+			write(segment);
+		}
+		packet.release();
+	}
+
+	/**
+	 * Write a packet to the virtual network adapter.
+	 * @param packet the packet, it will be released
+	 */
+	private void write(PacketBuffer packet) {
+		if (writeQueue!=null) {
+			synchronized (writeQueue) {
+				if (writeCount<writeQueue.length) {
+					writeQueue[(writeHead+writeCount) % writeQueue.length] = packet;
+					writeCount++;
+					writeQueue.notify();
+					return;
+				}
+			}
+			packet.release();		// drop the packet, the adapter can't keep up
+		} else {
+			tuntap.write(packet.getData(), packet.getOffset(), packet.getLength());
+			packet.release();
+		}
+	}
+
+	/**
+	 * A thread that writes the queued packages to the virtual network adapter,
+	 * using one writeFrames call for all packets waiting at that moment.
+	 */
+	private void writeThread() {
+		OverloadController.addPacketThread();
+		ByteBuffer frames = ByteBuffer.allocateDirect(BATCH_SIZE*maxReadSize);
+		int[] lengths = new int[BATCH_SIZE];
+		while (true) {
+			int count = 0;
+			if (frames.capacity()<BATCH_SIZE*maxReadSize) {
+				frames = ByteBuffer.allocateDirect(BATCH_SIZE*maxReadSize);
+			}
+			frames.clear();
+			synchronized (writeQueue) {
+				while (writeCount==0) {
+					try {
+						writeQueue.wait();
+					} catch (InterruptedException ex) {
+					}
+				}
+				while (writeCount>0 && count<BATCH_SIZE) {
+					PacketBuffer packet = writeQueue[writeHead];
+					writeQueue[writeHead] = null;
+					writeHead = (writeHead+1) % writeQueue.length;
+					writeCount--;
+
+					if (packet.getLength()<=frames.remaining()) {
+						frames.put(packet.getData(), packet.getOffset(), packet.getLength());
+						lengths[count] = packet.getLength();
+						count++;
+					}
+					packet.release();
+				}
+			}
+			frames.flip();
+			tuntap.writeFrames(frames, lengths, count);
+		}
 	}
 	
+	/**
+	 * A thread that sends IGMP and MLD queries to the virtual network
+	 * adapter, so the local host reports the multicast groups it joined.
+	 */
+	private void queryThread() {
+		while (true) {
+			try {
+				Thread.sleep(router==null ? 1000 : MulticastSnooper.QUERY_INTERVAL);
+			} catch (InterruptedException ex) {
+			}
+			Router r = router;
+			if (r==null) continue;
+
+			writeFrame(MulticastSnooper.createIGMPQuery());
+			writeFrame(MulticastSnooper.createMLDQuery());
+			if (multicastSnooper.expire()) r.setLocalPeerInfo("vpn.mcast", multicastSnooper.getGroups());
+		}
+	}
+
 	/*public void close() {
 		tuntap.close();
 		myThread.interrupt();
@@ -98,21 +297,23 @@ public class VPNConnector implements Runnable {
 	/**
 	 * Force the correct local IP in an UDP broadcast packet. This is necessary
 	 * becaus Windows sometimes uses the wrong sourc IP in breadcast packages.
-	 * @param packet the packet
+	 * @param packet the array containing the packet
+	 * @param o the start of the packet
+	 * @param len the length of the packet
 	 */
-	private void forceIP (byte[] packet) {
-		if (packet.length>= 14+20) {
-			if (packet[12]==IPV4_HIGH && packet[13]==IPV4_LOW && packet[14+9]==IPV4_UDP) { // is this IPv4 and UDP?
+	private void forceIP (byte[] packet, int o, int len) {
+		if (len>= 14+20) {
+			if (packet[o+12]==IPV4_HIGH && packet[o+13]==IPV4_LOW && packet[o+14+9]==IPV4_UDP) { // is this IPv4 and UDP?
                 byte[] ip = tuntap.getIPBytes();
-                if (packet[26] != ip[0] || packet[27] != ip[1] ||
-                    packet[28] != ip[2] || packet[29] != ip[3]) {
+                if (packet[o+26] != ip[0] || packet[o+27] != ip[1] ||
+                    packet[o+28] != ip[2] || packet[o+29] != ip[3]) {
 
 					int checksum = 0;
-                    packet[14+10] = 0;		// set checksum = 0
-                    packet[14+11] = 0;
-                    System.arraycopy(ip, 0, packet, 26, 4);		// replace the source ip
+                    packet[o+14+10] = 0;		// set checksum = 0
+                    packet[o+14+11] = 0;
+                    System.arraycopy(ip, 0, packet, o+26, 4);		// replace the source ip
 
-					for(int i=14; i<34; i+=2) {
+					for(int i=o+14; i<o+34; i+=2) {
 						checksum += ((0xFF&packet[i]) << 8) + (0xFF&packet[i+1]);
 					}
 
@@ -122,11 +323,11 @@ public class VPNConnector implements Runnable {
 
 					checksum = ~checksum;
 
-                    packet[14+10] = (byte)(0xFF & (checksum >> 8)); // set the new IP header chacksum
-                    packet[14+11] = (byte)(0xFF & checksum);
+                    packet[o+14+10] = (byte)(0xFF & (checksum >> 8)); // set the new IP header chacksum
+                    packet[o+14+11] = (byte)(0xFF & checksum);
 
-                    packet[14+20+6] = 0;		// unset UDP checksum
-                    packet[14+20+7] = 0;
+                    packet[o+14+20+6] = 0;		// unset UDP checksum
+                    packet[o+14+20+7] = 0;
                     
                 }
 			}
@@ -134,23 +335,123 @@ public class VPNConnector implements Runnable {
 	}
 
 
+	/**
+	 * Send a packet read from the virtual network adapter to the Router.
+	 * @param packet the packet, it will be released
+	 */
+	private void sendToRouter(PacketBuffer packet) {
+		byte[] data = packet.getData();
+		int off = packet.getOffset();
+
+		if (vnetHeader) {
+			if (packet.getLength() < VirtioNetHeader.SIZE+12) {
+				packet.release();
+				return;
+			}
+			if (VirtioNetHeader.isGso(data, off)) {
+				router.sendGso(packet);
+				return;
+			}
+			VirtioNetHeader.finishChecksum(data, off, packet.getLength());
+			packet.strip(VirtioNetHeader.SIZE);
+			off = packet.getOffset();
+		}
+
+		if (packet.getLength()>maxFrameSize) {
+			PacketBuffer error = PathMtu.createTooBig(data, off, packet.getLength(), mtu);
+			packet.release();
+			if (error!=null) writeFrame(error);
+			return;
+		}
+		PathMtu.clampMss(data, off, packet.getLength(), mtu);
+
+		PacketBuffer reply = neighbourProxy.answer(router, packet);
+		if (reply!=null) {
+			packet.release();
+			writeFrame(reply);
+			return;
+		}
+
+		if (multicastSnooper.snoop(data, off, packet.getLength())) {
+			router.setLocalPeerInfo("vpn.mcast", multicastSnooper.getGroups());
+		}
+
+		if (packet.getLength()>=12) {
+			forceIP(data, off, packet.getLength());
+			router.send(packet);
+		} else {
+			packet.release();
+		}
+	}
+
 	/**
 	 * A thread the reads packages from the virtual network adapter and sends them
 	 * to the Router.
 	 */
 	@Override
 	public void run() {
-		byte[] buffer = new byte[2048];
+		readQueue(0);
+	}
+
+	/**
+	 * Read packages from one queue of the virtual network adapter and send
+	 * them to the Router. Every queue is read by its own thread.
+	 * @param queue the queue
+	 */
+	private void readQueue(int queue) {
+		OverloadController.addPacketThread();
+		if (tuntap.isBatchSupported()) {
+			readBatches(queue);
+			return;
+		}
+
+		PacketBuffer packet = null;
 		// TODO close?
 		while(true) {
-			int len = tuntap.read(buffer);
+			int size = maxReadSize;
+			if (packet!=null && packet.getTailroom()<size) {
+				packet.release();
+				packet = null;
+			}
+			if (packet==null) packet = PacketBuffer.obtain(size);
+			int len = tuntap.read(queue, packet.getData(), packet.getOffset(), size);
 			//System.out.println("VPNConnector.read "+len);
-            if (len>=12) {
-                byte[] packet = new byte[len];
-                System.arraycopy(buffer, 0, packet, 0, len);
-                forceIP(packet);
-                if (router!=null) router.send(packet);
+            if (len>=12 && router!=null) {
+				packet.setLength(len);
+				if (PacketTracer.sample()) packet.startTrace(System.nanoTime());
+				sendToRouter(packet);
+				packet = null;
             }
 		}
 	}
+
+	/**
+	 * Like readQueue(), but reads several packets with each call to the adapter.
+	 * @param queue the queue
+	 */
+	private void readBatches(int queue) {
+		ByteBuffer frames = ByteBuffer.allocateDirect(BATCH_SIZE*maxReadSize);
+		int[] lengths = new int[BATCH_SIZE];
+		while(true) {
+			if (frames.capacity()<BATCH_SIZE*maxReadSize) {
+				frames = ByteBuffer.allocateDirect(BATCH_SIZE*maxReadSize);
+			}
+			frames.clear();
+			int count = tuntap.readFrames(queue, frames, lengths);
+			long read = System.nanoTime();
+			frames.flip();
+			for(int i=0; i<count; i++) {
+				int len = lengths[i];
+				if (len>=12 && router!=null) {
+					PacketBuffer packet = PacketBuffer.obtain(len);
+					frames.get(packet.getData(), packet.getOffset(), len);
+					packet.setLength(len);
+					if (PacketTracer.sample()) packet.startTrace(read);
+					sendToRouter(packet);
+				} else {
+					frames.position(frames.position()+len);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,121 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network.bandwidth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values like latencies or packet sizes.
+ *
+ * The buckets grow logarithmically: values below 4 have their own bucket,
+ * every larger power of two is split into 4 buckets, so a percentile is
+ * off by at most 25%. Recording a value is lock free and doesn't allocate
+ * memory. Percentiles read while values are recorded are approximate.
+ * @author Wolfgang Ginolas
+ */
+public class Histogram {
+	private static final int BUCKETS = 64*4;
+
+	private final AtomicLongArray buckets;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+
+	/**
+	 * Create an empty Histogram.
+	 */
+	public Histogram() {
+		buckets = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+	}
+
+	/**
+	 * Find the bucket for a value.
+	 * @param v the value
+	 * @return the bucket
+	 */
+	private static int bucket(long v) {
+		if (v<4) return (int)Math.max(v, 0);
+		int e = 63-Long.numberOfLeadingZeros(v);
+		return e*4 + (int)((v >> (e-2)) & 3);
+	}
+
+	/**
+	 * @param i a bucket
+	 * @return the smallest value larger than all values in the bucket
+	 */
+	private static long upperBound(int i) {
+		if (i<4) return i+1;
+		long bound = (4 + i%4 + 1L) << (i/4 - 2);
+		return bound>0 ? bound : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Record a value.
+	 * @param v the value, negative values are counted as 0
+	 */
+	public void record(long v) {
+		buckets.incrementAndGet(bucket(v));
+		count.incrementAndGet();
+		sum.addAndGet(Math.max(v, 0));
+	}
+
+	/**
+	 * Return a percentile of the recorded values.
+	 * @param p the percentile (0 to 100)
+	 * @return the upper end of the bucket holding the percentile, 0 if
+	 * no value was recorded
+	 */
+	public long getPercentile(double p) {
+		long c = count.get();
+		if (c==0) return 0;
+		long rank = Math.max((long)Math.ceil(c*p/100), 1);
+		long n = 0;
+		int i = 0;
+		while (i<BUCKETS-1) {
+			n += buckets.get(i);
+			if (n>=rank) break;
+			i++;
+		}
+		return upperBound(i);
+	}
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean of the recorded values, 0 if there was none
+	 */
+	public double getMean() {
+		long c = count.get();
+		return c==0 ? 0 : (double)sum.get() / c;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n %d, mean %.1f, p50 %d, p99 %d, p999 %d",
+				getCount(), getMean(), getPercentile(50), getPercentile(99), getPercentile(99.9));
+	}
+}
@@ -21,63 +21,70 @@ package org.p2pvpn.network.bandwidth;
 
 /**
  * This class can measure the bandwidth of a connection.
+ *
+ * The bandwidth is an exponentially weighted moving average of the rate.
+ * Counted bytes are collected for FOLD_NS before they are added to the
+ * average, so counting a packet is cheap and doesn't allocate memory.
+ * This class is thread safe.
  * @author Wolfgang Ginolas
  */
 public class MeasureBandwidth {
-	private long bucketTime;
-	private int bucketLen;
-	private int currentBucket;
-	private long lastShift;
-	private SlidingAverage avg;
+	private static final long FOLD_NS = 1000*1000;
 
+	private final double tau;		// time constant of the average in ns
+	private double rate;			// the average in bytes/ns at time last
+	private long last;				// time of the last fold
+	private long pending;			// bytes counted since the last fold
+	private long total;				// all counted bytes
 
 	/**
-	 * Create a new MeasureBandwidth
-	 * @param bucketTime number of steps that are used for the average
-	 * @param bucketLen the time for one step. bucketTime*bucketLen gives the time of the sliding average
+	 * Create a new MeasureBandwidth. The average has the same delay as a
+	 * sliding average over bucketTime*bucketLen seconds.
+	 * @param bucketTime the time for one step in seconds
+	 * @param bucketLen number of steps that are used for the average
 	 */
 	public MeasureBandwidth(double bucketTime, int bucketLen) {
-		this.bucketTime = (long)(bucketTime*1000);
-		this.bucketLen = bucketLen;
-
-		avg = new SlidingAverage(bucketLen, 0);
-
-		currentBucket = 0;
-		lastShift = System.currentTimeMillis();
+		tau = bucketTime * bucketLen * 1e9 / 2;
+		rate = 0;
+		last = System.nanoTime();
+		pending = 0;
+		total = 0;
 	}
 
 	/**
-	 * Check if the buckets need to be shifted.
+	 * Add the pending bytes to the average.
+	 * @param now the current time
 	 */
-	private void shift() {
-		long time = System.currentTimeMillis();
-		int cnt = 0;
-		while (
-			lastShift + bucketTime < time) {
-			avg.putVaule(currentBucket);
-			currentBucket = 0;
-			lastShift += bucketTime;
-
-			if (cnt>bucketLen) lastShift = time;
-			cnt++;
-		}
+	private void fold(long now) {
+		rate = rate*Math.exp(-(now-last) / tau) + pending/tau;
+		pending = 0;
+		last = now;
 	}
 
 	/**
 	 * Count bytes that were just received/send.
 	 * @param size nimber of bytes
 	 */
-	public void countPacket(int size) {
-		shift();
-		currentBucket += size;
+	public synchronized void countPacket(int size) {
+		pending += size;
+		total += size;
+		long now = System.nanoTime();
+		if (now-last >= FOLD_NS) fold(now);
 	}
 
 	/**
 	 * Return the current average bandwidth.
 	 * @return the bandwidth in bytes/s
 	 */
-	public double getBandwidth() {
-		shift();
-		return avg.getAverage() / bucketTime * 1000;
+	public synchronized double getBandwidth() {
+		fold(System.nanoTime());
+		return rate * 1e9;
+	}
+
+	/**
+	 * @return the number of counted bytes
+	 */
+	public synchronized long getTotal() {
+		return total;
 	}
 }
@@ -19,16 +19,15 @@
 
 package org.p2pvpn.network.bandwidth;
 
-import java.util.LinkedList;
-import java.util.Queue;
-
 /**
- * A claas that cna calculate a liding average.
+ * A claas that cna calculate a liding average. The values are kept in a
+ * ring buffer of primitives, so adding a value doesn't allocate memory.
+ * This class is thread safe.
  * @author Wolfgang Ginolas
  */
 public class SlidingAverage {
-	private int bucketLen;
-	private Queue<Double>  buckets;
+	private final double[] buckets;
+	private int next;					// the bucket replaced by the next value
 	private double bucketSum;
 
 	/**
@@ -37,10 +36,9 @@ public class SlidingAverage {
 	 * @param init initialisation value
 	 */
 	public SlidingAverage(int bucketLen, double init) {
-		this.bucketLen = bucketLen;
-
-		buckets = new LinkedList<Double>();
-		for(int i=0; i<bucketLen; i++) buckets.add(init);
+		buckets = new double[bucketLen];
+		for(int i=0; i<bucketLen; i++) buckets[i] = init;
+		next = 0;
 		bucketSum = bucketLen*init;
 	}
 
@@ -48,14 +46,18 @@ public class SlidingAverage {
 	 * Use this value for the average.
 	 * @param val the value
 	 */
-	public void putVaule(double val) {
-		long time = System.currentTimeMillis();
-		bucketSum -= buckets.poll();
-		buckets.offer(val);
-		bucketSum += val;
+	public synchronized void putVaule(double val) {
+		bucketSum += val - buckets[next];
+		buckets[next] = val;
+		next = (next+1) % buckets.length;
+		if (next==0) {
+			// avoid drifting rounding errors
+			bucketSum = 0;
+			for(double b : buckets) bucketSum += b;
+		}
 	}
 
-	public double getAverage() {
-		return bucketSum/bucketLen;
+	public synchronized double getAverage() {
+		return bucketSum/buckets.length;
 	}
 }
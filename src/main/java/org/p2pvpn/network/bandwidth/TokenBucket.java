@@ -19,25 +19,32 @@
 
 package org.p2pvpn.network.bandwidth;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.p2pvpn.network.metrics.FlightEvent;
 
 /**
  * This class can be used to limit bandwidth using the token bucket algorithm.
+ *
+ * Instead of the fill level the bucket stores the time when it will be
+ * full again (in System.nanoTime()), which is changed using compare and
+ * set, so many threads can use one bucket without locking. Tokens may
+ * be used while the bucket is not empty; a reservation returns the time
+ * until this is the case.
+ *
+ * Buckets can have a parent, e.g. a bucket for every peer and one for all
+ * peers: the tokens are taken from the bucket and all its parents.
  * @author Wolfgang Ginolas
  */
 public class TokenBucket {
 
-	private static final double MIN_WAIT_S = 0.005;
-	private static final double MAX_WAIT_S = 0.1;
+	private volatile double bandwidth;		// tokens/s, 0 for no limit
+	private final double bucketSize;
+	private final TokenBucket parent;
 
-	private static final long TIMEOUT = 1000;
-
-	private double bandwidth;
-	private double bucketSize;
-
-	private double bucket;
-	private long lastFill;
+	private final AtomicLong full;			// time when the bucket is full again
+	private final AtomicLong waits;			// number of times waitForTokens had to wait
+	private final AtomicLong waitNanos;		// time spent waiting in waitForTokens
 
 	/**
 	 * Create a new TokenBicket
@@ -45,26 +52,68 @@ public class TokenBucket {
 	 * @param bucketSize the maximum burst size
 	 */
 	public TokenBucket(double bandwidth, double bucketSize) {
+		this(bandwidth, bucketSize, null);
+	}
+
+	/**
+	 * Create a new TokenBicket
+	 * @param bandwidth the maximum andwith in tokens/s
+	 * @param bucketSize the maximum burst size
+	 * @param parent the tokens are also taken from this bucket, may be null
+	 */
+	public TokenBucket(double bandwidth, double bucketSize, TokenBucket parent) {
 		this.bandwidth = bandwidth;
 		this.bucketSize = bucketSize;
+		this.parent = parent;
+		full = new AtomicLong(System.nanoTime());
+		waits = new AtomicLong();
+		waitNanos = new AtomicLong();
+	}
 
-		bucket = 0;
-		lastFill = System.currentTimeMillis();
+	/**
+	 * Take tokens from this bucket only.
+	 * @param tokens number of tokens
+	 * @param force take them even if the bucket is empty?
+	 * @return nanoseconds until the tokens may be used, -1 if they
+	 * were not taken
+	 */
+	private long take(double tokens, boolean force) {
+		double bw = bandwidth;
+		if (bw<=0) return 0;
+		long cost = (long)(tokens * 1e9 / bw);
+		long size = (long)(bucketSize * 1e9 / bw);
+		while (true) {
+			long now = System.nanoTime();
+			long f = full.get();
+			long start = f-now>0 ? f : now;
+			long wait = start-size-now;
+			if (wait>0 && !force) return -1;
+			if (full.compareAndSet(f, start+cost)) return Math.max(wait, 0);
+		}
 	}
 
 	/**
-	 * Update the bucket fill level.
+	 * @return nanoseconds until this bucket and all its parents are not empty
 	 */
-	private synchronized void updateBucket() {
-		long time = System.currentTimeMillis();
-
-		if (bandwidth==0) {
-			bucket = bucketSize;
-		} else {
-			bucket += bandwidth * (time-lastFill) / 1000;
-			if (bucket > bucketSize) bucket = bucketSize;
+	public long getDelay() {
+		long delay = 0;
+		double bw = bandwidth;
+		if (bw>0) {
+			delay = full.get() - (long)(bucketSize * 1e9 / bw) - System.nanoTime();
 		}
-		lastFill = time;
+		if (parent!=null) delay = Math.max(delay, parent.getDelay());
+		return Math.max(delay, 0);
+	}
+
+	/**
+	 * Take tokens from this bucket and its parents, even if they are empty.
+	 * @param tokens number of tokens
+	 * @return nanoseconds until the tokens may be used
+	 */
+	public long reserve(double tokens) {
+		long wait = take(tokens, true);
+		if (parent!=null) wait = Math.max(wait, parent.reserve(tokens));
+		return wait;
 	}
 
 	/**
@@ -72,46 +121,65 @@ public class TokenBucket {
 	 * @param tokens number if tokens
 	 */
 	public void waitForTokens(double tokens) {
-		while (true) {
-			updateBucket();
-			synchronized (this) {
-				if (bucket>=0) break;
-			}
-			double waitTime = -bucket / bandwidth;
-			if (waitTime < MIN_WAIT_S || waitTime > MAX_WAIT_S) waitTime = MIN_WAIT_S;
-			try {
-				Thread.sleep((long) (waitTime*1000));
-			} catch (InterruptedException ex) {
-				Logger.getLogger(TokenBucket.class.getName()).log(Level.SEVERE, null, ex);
-			}
-		}
-		synchronized (this) {
-			bucket -= tokens;
+		long wait = reserve(tokens);
+		if (wait<=0) return;
+		waits.incrementAndGet();
+		waitNanos.addAndGet(wait);
+		long start = System.nanoTime();
+		long end = start+wait;
+		while ((wait = end-System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+		if (FlightEvent.STALL.isEnabled()) {
+			FlightEvent.STALL.commit((long)tokens, bandwidth, System.nanoTime()-start);
 		}
 	}
 
 	/**
 	 * Check if the number of tokens may be send/received right now.
+	 * The tokens are taken, if this is the case.
 	 * @param tokens number of tokens
 	 * @return send/received allowed right now?
 	 */
 	public boolean tokensAvailable(double tokens) {
-		updateBucket();
-		synchronized (this) {
-			if (bucket>=0) {
-				bucket -= tokens;
-				return true;
-			} else {
-				return false;
-			}
-		}
+		if (parent!=null && parent.getDelay()>0) return false;
+		if (take(tokens, false)<0) return false;
+		if (parent!=null) parent.reserve(tokens);
+		return true;
+	}
+
+	/**
+	 * Count a wait of a sender, which reserve()d its tokens and waits
+	 * somewhere else.
+	 * @param wait the time to wait in nanoseconds
+	 */
+	public void recordWait(long wait) {
+		if (wait<=0) return;
+		waits.incrementAndGet();
+		waitNanos.addAndGet(wait);
 	}
 
 	/**
 	 * Set the maximum bandwidth.
 	 * @param bandwidth the bandwidth in tokens/s
 	 */
-	public synchronized void setBandwidth(double bandwidth) {
+	public void setBandwidth(double bandwidth) {
 		this.bandwidth = bandwidth;
 	}
+
+	public double getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * @return the number of times waitForTokens had to wait
+	 */
+	public long getWaits() {
+		return waits.get();
+	}
+
+	/**
+	 * @return the time spent waiting in waitForTokens in nanoseconds
+	 */
+	public long getWaitNanos() {
+		return waitNanos.get();
+	}
 }
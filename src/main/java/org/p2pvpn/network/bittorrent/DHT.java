@@ -38,6 +38,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.PriorityBlockingQueue;
 import org.p2pvpn.network.ConnectionManager;
+import org.p2pvpn.network.metrics.FlightEvent;
 import org.p2pvpn.network.bittorrent.bencode.Bencode;
 import org.p2pvpn.network.bittorrent.bencode.BencodeInt;
 import org.p2pvpn.network.bittorrent.bencode.BencodeList;
@@ -72,6 +73,9 @@ public class DHT {
 	private long lastAnnounceFlush;
 
 	private int ipsFound = 0;
+	private volatile long peersFound = 0;		// all peers found, ipsFound is reset
+	private volatile long packetsSent = 0, bytesSent = 0;
+	private volatile long packetsReceived = 0, bytesReceived = 0;
 
 	private ConnectionManager connectionManager = null;
 
@@ -262,6 +266,10 @@ public class DHT {
 		//System.out.println("test2: "+to);
 		DatagramPacket p = new DatagramPacket(buf, buf.length, addr);
 		dSock.send(p);
+		synchronized (this) {
+			packetsSent++;
+			bytesSent += buf.length;
+		}
 	}
 
 	private void makeGood(Contact c) {
@@ -324,6 +332,7 @@ public class DHT {
 						System.out.println("Values:");
 						for(BencodeObject val : values) {
 							ipsFound++;
+							peersFound++;
 							byte[] bs = ((BencodeString)val).getBytes();
 							InetSocketAddress addr = Contact.parseSocketAddress(bs, 0, bs.length);
 							if (connectionManager!=null) {
@@ -337,6 +346,13 @@ public class DHT {
 							System.out.println("   "+addr);
 						}
 					}
+					if (FlightEvent.DHT_LOOKUP.isEnabled()) {
+						int n = (nodes==null ? 0 : nodes.getBytes().length/26)
+								+ (nodes6==null ? 0 : nodes6.getBytes().length/(20+16+2));
+						int v = 0;
+						if (values!=null) for(BencodeObject val : values) v++;
+						FlightEvent.DHT_LOOKUP.commit(p.getSocketAddress(), n, v);
+					}
 					announcePeer(rem, (BencodeString)r.get(new BencodeString("token")));
 				}
 			} else if (((BencodeMap)o).get(new BencodeString("y")).equals(new BencodeString("e"))) {
@@ -358,6 +374,8 @@ public class DHT {
 			DatagramPacket p = new DatagramPacket(buf, PACKET_LEN);
 			while (true) {
 				dSock.receive(p);
+				packetsReceived++;
+				bytesReceived += p.getLength();
 				recvPacket(p);
 			}
 		} catch (IOException iOException) {
@@ -376,6 +394,33 @@ public class DHT {
 		}
 	}
 
+	public long getPeersFound() {
+		return peersFound;
+	}
+
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return the number of contacts waiting to be asked
+	 */
+	public int getQueueSize() {
+		return peerQueue.size();
+	}
+
 	public BigInteger getID() {
 		throw new UnsupportedOperationException("Not yet implemented");
 	}
@@ -0,0 +1,272 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A custom JDK Flight Recorder event, so a recording started with
+ * "jcmd &lt;pid&gt; JFR.start" contains the activity of P2PVPN next to the
+ * GC and lock events of the JVM.
+ *
+ * P2PVPN is compiled for old Java versions, which don't have the jdk.jfr
+ * API. The event types are therefore created at runtime using reflection
+ * and jdk.jfr.EventFactory. Without JFR all events are disabled.
+ *
+ * isEnabled() is a single volatile read. It is updated by a
+ * FlightRecorderListener whenever a recording starts or stops. Callers
+ * check it before they collect the values, so the instrumentation costs
+ * nothing while no recording is running:
+ * <pre>
+ * if (FlightEvent.LINK.isEnabled()) FlightEvent.LINK.commit(peer, addr, true);
+ * </pre>
+ * @author Wolfgang Ginolas
+ */
+public class FlightEvent {
+
+	private static final String PREFIX = "org.p2pvpn.";
+	private static final String CATEGORY = "P2PVPN";
+
+	private static final List<FlightEvent> events = new ArrayList<FlightEvent>();
+
+	public static final FlightEvent HANDSHAKE = new FlightEvent("Handshake",
+			"Handshake with a peer",
+			"peer", "string", "outcome", "string", "elapsed", "timespan");
+	public static final FlightEvent LINK = new FlightEvent("Link",
+			"A connection to a peer was established or closed",
+			"peer", "string", "address", "string", "up", "boolean");
+	public static final FlightEvent TOPOLOGY = new FlightEvent("Topology",
+			"The known peers were recomputed",
+			"peers", "int", "removed", "int", "elapsed", "timespan");
+	public static final FlightEvent SYNC = new FlightEvent("SyncDB",
+			"A round of peer database synchronization",
+			"messages", "int", "bytes", "bytes", "elapsed", "timespan");
+	public static final FlightEvent DROP = new FlightEvent("PacketDrop",
+			"A packet was dropped",
+			"queue", "string", "reason", "string", "size", "bytes");
+	public static final FlightEvent STALL = new FlightEvent("TokenBucketStall",
+			"A thread waited for a bandwidth limit",
+			"bytes", "bytes", "bandwidth", "double", "wait", "timespan");
+	public static final FlightEvent DHT_LOOKUP = new FlightEvent("DhtLookup",
+			"A DHT node answered a get_peers query",
+			"node", "string", "nodes", "int", "peers", "int");
+
+	private static Method newEvent;			// EventFactory.newEvent()
+	private static Method getEventType;		// EventFactory.getEventType()
+	private static Method isTypeEnabled;	// EventType.isEnabled()
+	private static Method set;				// Event.set(int, Object)
+	private static Method commit;			// Event.commit()
+
+	static {
+		try {
+			register();
+		} catch (ClassNotFoundException e) {
+			// no JFR, all events stay disabled
+		} catch (Throwable e) {
+			Logger.getLogger("").log(Level.WARNING, "could not create the JFR events", e);
+		}
+	}
+
+	private String name;			// the name without PREFIX
+	private String description;		// the description
+	private String[] fields;		// pairs of field name and type
+	private Object factory;			// the jdk.jfr.EventFactory, null without JFR
+	private Object eventType;		// the jdk.jfr.EventType
+	private volatile boolean enabled;	// is the event recorded?
+
+	/**
+	 * Define a new event type.
+	 * @param name the name, it is prefixed with "org.p2pvpn."
+	 * @param description the description
+	 * @param fields pairs of name and type of the fields. The types are
+	 * "string", "int", "long", "double", "boolean", "bytes" (a long
+	 * amount of bytes) and "timespan" (a long duration in nanoseconds).
+	 */
+	private FlightEvent(String name, String description, String... fields) {
+		this.name = name;
+		this.description = description;
+		this.fields = fields;
+		factory = null;
+		eventType = null;
+		enabled = false;
+		events.add(this);
+	}
+
+	/**
+	 * Create the event types and listen for recordings.
+	 * @throws Exception if JFR is not available
+	 */
+	private static void register() throws Exception {
+		Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+		Class<?> eventClass = Class.forName("jdk.jfr.Event");
+		Class<?> typeClass = Class.forName("jdk.jfr.EventType");
+		Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder");
+		Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+
+		Method create = factoryClass.getMethod("create", List.class, List.class);
+		newEvent = factoryClass.getMethod("newEvent");
+		getEventType = factoryClass.getMethod("getEventType");
+		isTypeEnabled = typeClass.getMethod("isEnabled");
+		set = eventClass.getMethod("set", int.class, Object.class);
+		commit = eventClass.getMethod("commit");
+
+		for(FlightEvent e : events) {
+			Object f = create.invoke(null, e.annotations(), e.valueDescriptors());
+			e.eventType = getEventType.invoke(f);
+			e.factory = f;
+		}
+
+		Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(),
+				new Class<?>[] {listenerClass}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass()==Object.class) {
+					if (method.getName().equals("equals")) return proxy==args[0];
+					if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+					return "FlightEvent listener";
+				}
+				if (method.getName().equals("recordingStateChanged")) update();
+				return null;
+			}
+		});
+		recorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+		update();
+	}
+
+	/**
+	 * Read the enabled state of all events from the recorder.
+	 */
+	private static void update() {
+		for(FlightEvent e : events) {
+			try {
+				e.enabled = e.eventType!=null && (Boolean)isTypeEnabled.invoke(e.eventType);
+			} catch (Exception ex) {
+				e.enabled = false;
+			}
+		}
+	}
+
+	/**
+	 * Create a jdk.jfr.AnnotationElement.
+	 * @param type the name of the annotation class
+	 * @param value the value of the annotation
+	 * @return the AnnotationElement
+	 * @throws Exception if JFR is not available
+	 */
+	private static Object annotation(String type, Object value) throws Exception {
+		Class<?> c = Class.forName("jdk.jfr.AnnotationElement");
+		Constructor<?> ctor = c.getConstructor(Class.class, Object.class);
+		return ctor.newInstance(Class.forName(type).asSubclass(Annotation.class), value);
+	}
+
+	/**
+	 * @return the annotations of the event type
+	 * @throws Exception if JFR is not available
+	 */
+	private List<Object> annotations() throws Exception {
+		List<Object> result = new ArrayList<Object>();
+		result.add(annotation("jdk.jfr.Name", PREFIX+name));
+		result.add(annotation("jdk.jfr.Label", name));
+		result.add(annotation("jdk.jfr.Description", description));
+		result.add(annotation("jdk.jfr.Category", new String[] {CATEGORY}));
+		return result;
+	}
+
+	/**
+	 * @return the fields of the event type
+	 * @throws Exception if JFR is not available
+	 */
+	private List<Object> valueDescriptors() throws Exception {
+		Class<?> c = Class.forName("jdk.jfr.ValueDescriptor");
+		Constructor<?> ctor = c.getConstructor(Class.class, String.class, List.class);
+		List<Object> result = new ArrayList<Object>();
+		for(int i=0; i<fields.length; i+=2) {
+			String type = fields[i+1];
+			List<Object> a = new ArrayList<Object>();
+			a.add(annotation("jdk.jfr.Label", fields[i]));
+			Class<?> t;
+			if (type.equals("string")) t = String.class;
+			else if (type.equals("int")) t = int.class;
+			else if (type.equals("long")) t = long.class;
+			else if (type.equals("double")) t = double.class;
+			else if (type.equals("boolean")) t = boolean.class;
+			else if (type.equals("bytes")) {
+				t = long.class;
+				a.add(annotation("jdk.jfr.DataAmount", "BYTES"));
+			} else if (type.equals("timespan")) {
+				t = long.class;
+				a.add(annotation("jdk.jfr.Timespan", "NANOSECONDS"));
+			} else {
+				throw new IllegalArgumentException("unknown type "+type);
+			}
+			result.add(ctor.newInstance(t, fields[i], a));
+		}
+		return result;
+	}
+
+	/**
+	 * @return is a recording running which records this event?
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Record the event. Check isEnabled() first, to avoid boxing the values
+	 * when nothing is recorded.
+	 * @param values the values of the fields, in the order of the definition.
+	 * Integers are converted to the type of the field.
+	 */
+	public void commit(Object... values) {
+		Object f = factory;
+		if (!enabled || f==null) return;
+		try {
+			Object event = newEvent.invoke(f);
+			for(int i=0; i<values.length; i++) {
+				Object v = values[i];
+				String type = fields[2*i+1];
+				if (v instanceof Number) {
+					Number n = (Number)v;
+					if (type.equals("int")) v = n.intValue();
+					else if (type.equals("double")) v = n.doubleValue();
+					else if (!type.equals("string")) v = n.longValue();
+				}
+				if (v!=null && type.equals("string")) v = v.toString();
+				set.invoke(event, i, v);
+			}
+			commit.invoke(event);
+		} catch (Exception e) {
+			Logger.getLogger("").log(Level.WARNING, "could not record "+name, e);
+			enabled = false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return PREFIX+name+(enabled ? " (recording)" : "");
+	}
+}
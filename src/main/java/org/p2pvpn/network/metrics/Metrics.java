@@ -0,0 +1,315 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.p2pvpn.network.ConnectionManager;
+import org.p2pvpn.network.OverloadController;
+import org.p2pvpn.network.P2PConnection;
+import org.p2pvpn.network.PacketTracer;
+import org.p2pvpn.network.Router;
+import org.p2pvpn.network.SendScheduler;
+import org.p2pvpn.network.SendScheduler.TrafficClass;
+import org.p2pvpn.network.TCPConnection;
+import org.p2pvpn.network.bandwidth.Histogram;
+import org.p2pvpn.network.bandwidth.TokenBucket;
+import org.p2pvpn.network.bittorrent.DHT;
+
+/**
+ * Exports the statistics of a ConnectionManager as JMX MBean
+ * (org.p2pvpn:type=Metrics) and in the Prometheus text format on
+ * http://127.0.0.1:port/metrics. The endpoint is started when the system
+ * property p2pvpn.metrics.port is set; it uses the com.sun.net.httpserver
+ * of the Java 6 runtime.
+ *
+ * The metrics are read from the counters the network classes keep anyway
+ * when they are requested, so nothing is allocated or locked on the
+ * packet path for them.
+ * @author Wolfgang Ginolas
+ */
+public class Metrics implements DynamicMBean {
+
+	private static final String OBJECT_NAME = "org.p2pvpn:type=Metrics";
+	private static final double NS = 1e-9;
+	private static final double US = 1e-6;
+	private static final double MS = 1e-3;
+
+	private ConnectionManager connectionManager;	// the ConnectionManager
+	private HttpServer server;						// the text endpoint, null if not started
+	private ObjectName objectName;					// the name of the MBean, null if not registered
+
+	/**
+	 * Create a new Metrics object and register it as MBean.
+	 * @param connectionManager the ConnectionManager
+	 */
+	public Metrics(ConnectionManager connectionManager) {
+		this.connectionManager = connectionManager;
+		server = null;
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			// the MBean of a closed network may still be registered
+			if (mbs.isRegistered(name)) mbs.unregisterMBean(name);
+			mbs.registerMBean(this, name);
+			objectName = name;
+		} catch (Exception e) {
+			Logger.getLogger("").log(Level.WARNING, "Could not register the metrics MBean", e);
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Start the text endpoint. It only accepts connections from localhost.
+	 * @param port the port
+	 * @throws java.io.IOException
+	 */
+	public synchronized void startServer(int port) throws IOException {
+		if (server!=null) server.stop(0);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StringWriter text = new StringWriter();
+				collect().writePrometheus(text);
+				byte[] body = text.toString().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+				exchange.close();
+			}
+		});
+		server.start();
+		Logger.getLogger("").log(Level.INFO, "metrics on http://127.0.0.1:"+
+				server.getAddress().getPort()+"/metrics");
+	}
+
+	/**
+	 * @return the port of the text endpoint, -1 if it is not running
+	 */
+	public synchronized int getServerPort() {
+		return server==null ? -1 : server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop the text endpoint and unregister the MBean.
+	 */
+	public synchronized void close() {
+		if (server!=null) server.stop(0);
+		server = null;
+		if (objectName!=null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				Logger.getLogger("").log(Level.WARNING, "", e);
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Add the metrics of a token bucket.
+	 * @param s the snapshot
+	 * @param bucket the bucket
+	 * @param labels the labels
+	 */
+	private static void collectBucket(MetricsSnapshot s, TokenBucket bucket, String... labels) {
+		s.counter("token_bucket_waits_total", "Number of times a sender or receiver waited for tokens",
+				bucket.getWaits(), labels);
+		s.counter("token_bucket_wait_seconds_total", "Time spent waiting for tokens",
+				bucket.getWaitNanos()*NS, labels);
+	}
+
+	/**
+	 * Add the metrics of a connection to a neighbour.
+	 * @param s the snapshot
+	 * @param c the connection
+	 */
+	private static void collectConnection(MetricsSnapshot s, P2PConnection c) {
+		TCPConnection t = c.getConnection();
+		String peer = String.valueOf(c.getRemoteAddr());
+		String addr = t.toString();
+
+		s.counter("connection_bytes_total", "Bytes sent/received through the socket",
+				t.getBwIn().getTotal(), "peer", peer, "addr", addr, "dir", "in");
+		s.counter("connection_bytes_total", "Bytes sent/received through the socket",
+				t.getBwOut().getTotal(), "peer", peer, "addr", addr, "dir", "out");
+		s.counter("connection_packets_total", "Packets sent/received through the socket",
+				t.getPacketsIn(), "peer", peer, "addr", addr, "dir", "in");
+		s.counter("connection_packets_total", "Packets sent/received through the socket",
+				t.getPacketsOut(), "peer", peer, "addr", addr, "dir", "out");
+		s.gauge("connection_bandwidth_bytes", "Average bandwidth in bytes/s",
+				t.getBwIn().getBandwidth(), "peer", peer, "addr", addr, "dir", "in");
+		s.gauge("connection_bandwidth_bytes", "Average bandwidth in bytes/s",
+				t.getBwOut().getBandwidth(), "peer", peer, "addr", addr, "dir", "out");
+		s.counter("connection_crypto_seconds_total", "Time spent encrypting/decrypting",
+				t.getEncryptNanos()*NS, "peer", peer, "addr", addr, "op", "encrypt");
+		s.counter("connection_crypto_seconds_total", "Time spent encrypting/decrypting",
+				t.getDecryptNanos()*NS, "peer", peer, "addr", addr, "op", "decrypt");
+		s.gauge("connection_ping_seconds", "Average round trip time",
+				c.getPingTime().getAverage()*MS, "peer", peer, "addr", addr);
+		s.gauge("connection_queue_limit_packets", "Send queue limit chosen from the BDP",
+				t.getLinkTuner().getQueueLimit(), "peer", peer, "addr", addr);
+		s.counter("connection_compression_saved_bytes_total", "Bytes saved by compression",
+				t.getCompressor().getSavedBytes(), "peer", peer, "addr", addr);
+		collectBucket(s, t.getPeerSendLimit(), "bucket", "peer", "peer", peer, "addr", addr);
+
+		for(PacketTracer.Stage stage : PacketTracer.Stage.values()) {
+			Histogram h = t.getTracer().getHistogram(stage);
+			if (h.getCount()==0) continue;
+			String st = stage.toString().toLowerCase();
+			s.counter("connection_stage_samples_total", "Traced packets per pipeline stage",
+					h.getCount(), "peer", peer, "addr", addr, "stage", st);
+			for(String p : new String[] {"0.5", "0.99", "0.999"}) {
+				s.gauge("connection_stage_seconds", "Latency percentile of a pipeline stage of traced packets",
+						h.getPercentile(Double.parseDouble(p)*100)*US, "peer", peer, "addr", addr,
+						"stage", st, "quantile", p);
+			}
+		}
+
+		SendScheduler q = t.getSendQueue();
+		synchronized (q) {
+			for(TrafficClass tc : TrafficClass.values()) {
+				String cls = tc.toString().toLowerCase();
+				s.gauge("connection_queue_packets", "Packets in the send queue",
+						q.getQueued(tc), "peer", peer, "addr", addr, "class", cls);
+				s.counter("connection_dropped_packets_total", "Packets dropped by the send queue",
+						q.getDropped(tc), "peer", peer, "addr", addr, "class", cls);
+				s.counter("connection_marked_packets_total", "Packets ECN marked by the send queue",
+						q.getMarked(tc), "peer", peer, "addr", addr, "class", cls);
+			}
+			for(String p : new String[] {"0.5", "0.99", "0.999"}) {
+				s.gauge("connection_queue_delay_seconds", "Queue delay percentile of the sent packets",
+						q.getDelayPercentile(Double.parseDouble(p)*100)*MS, "peer", peer, "addr", addr, "quantile", p);
+			}
+		}
+	}
+
+	/**
+	 * Read all metrics.
+	 * @return the snapshot
+	 */
+	public MetricsSnapshot collect() {
+		MetricsSnapshot s = new MetricsSnapshot();
+		ConnectionManager cm = connectionManager;
+		Router router = cm.getRouter();
+
+		s.counter("handshakes_total", "Handshakes with other peers", cm.getHandshakesStarted(), "result", "started");
+		s.counter("handshakes_total", "Handshakes with other peers", cm.getHandshakesCompleted(), "result", "completed");
+		s.counter("handshakes_total", "Handshakes with other peers", cm.getHandshakesFailed(), "result", "failed");
+
+		P2PConnection[] cs = router.getConnections();
+		s.gauge("peers", "Known peers in the network", router.getPeers().length);
+		s.gauge("neighbours", "Directly connected peers", cs.length);
+		s.gauge("route_cache_entries", "Cached routes", router.getRouteCacheSize());
+
+		s.counter("sync_packets_total", "Peer database packets", router.getSyncPacketsSent(), "dir", "out");
+		s.counter("sync_packets_total", "Peer database packets", router.getSyncPacketsReceived(), "dir", "in");
+		s.counter("sync_bytes_total", "Peer database bytes", router.getSyncBytesSent(), "dir", "out");
+		s.counter("sync_bytes_total", "Peer database bytes", router.getSyncBytesReceived(), "dir", "in");
+
+		s.counter("pauses_sent_total", "Pause requests sent to neighbours", router.getPausesSent());
+		s.counter("pause_marked_packets_total", "Packets ECN marked because of a pause", router.getPauseMarks());
+		s.counter("pause_dropped_packets_total", "Packets dropped because of a pause", router.getPauseDrops());
+
+		OverloadController oc = cm.getOverloadController();
+		if (oc!=null) {
+			s.gauge("load", "Load of this peer, 1 means overloaded", oc.getLoad());
+			s.gauge("relay_willingness", "Advertised willingness to relay (0-100)", oc.getRelay());
+			s.counter("transit_shed_packets_total", "Transit packets dropped because of overload", oc.getShedPackets());
+			s.counter("transit_marked_packets_total", "Transit packets ECN marked because of overload", oc.getMarkedPackets());
+		}
+
+		DHT dht = cm.getDHT();
+		if (dht!=null) {
+			s.counter("dht_packets_total", "DHT packets", dht.getPacketsSent(), "dir", "out");
+			s.counter("dht_packets_total", "DHT packets", dht.getPacketsReceived(), "dir", "in");
+			s.counter("dht_bytes_total", "DHT bytes", dht.getBytesSent(), "dir", "out");
+			s.counter("dht_bytes_total", "DHT bytes", dht.getBytesReceived(), "dir", "in");
+			s.counter("dht_peers_found_total", "Peers found using the DHT", dht.getPeersFound());
+			s.gauge("dht_queue_contacts", "DHT contacts waiting to be asked", dht.getQueueSize());
+		}
+
+		collectBucket(s, cm.getSendLimit(), "bucket", "send");
+		collectBucket(s, cm.getRecLimit(), "bucket", "receive");
+		for(TrafficClass tc : TrafficClass.values()) {
+			collectBucket(s, cm.getClassLimit(tc), "bucket", "class", "class", tc.toString().toLowerCase());
+		}
+
+		for(P2PConnection c : cs) collectConnection(s, c);
+		return s;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Double v = collect().getValues().get(attribute);
+		if (v==null) throw new AttributeNotFoundException(attribute);
+		return v;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Double> values = collect().getValues();
+		AttributeList result = new AttributeList();
+		for(String a : attributes) {
+			Double v = values.get(a);
+			if (v!=null) result.add(new Attribute(a, v));
+		}
+		return result;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("read only: "+attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		MetricsSnapshot s = collect();
+		Map<String, Double> values = s.getValues();
+		MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for(String key : values.keySet()) {
+			attrs[i++] = new MBeanAttributeInfo(key, Double.class.getName(), s.getHelp(key), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "P2PVPN metrics", attrs, null, null, null);
+	}
+}
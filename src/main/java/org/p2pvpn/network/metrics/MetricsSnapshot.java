@@ -0,0 +1,167 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.network.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of all metrics at one point in time. Samples with the same
+ * name form a family and are distinguished by their labels.
+ * @author Wolfgang Ginolas
+ */
+public class MetricsSnapshot {
+
+	private static final String PREFIX = "p2pvpn_";
+
+	/**
+	 * All samples with the same name.
+	 */
+	private static class Family {
+		String type;
+		String help;
+		List<String> labels = new ArrayList<String>();
+		List<Double> values = new ArrayList<Double>();
+	}
+
+	private Map<String, Family> families;
+
+	/**
+	 * Create an empty MetricsSnapshot.
+	 */
+	public MetricsSnapshot() {
+		families = new LinkedHashMap<String, Family>();
+	}
+
+	/**
+	 * Add a sample.
+	 * @param type "counter" or "gauge"
+	 * @param name the name without prefix
+	 * @param help a description of the metric
+	 * @param value the value
+	 * @param labels label names and values, alternating
+	 */
+	private void add(String type, String name, String help, double value, String... labels) {
+		Family f = families.get(name);
+		if (f==null) {
+			f = new Family();
+			f.type = type;
+			f.help = help;
+			families.put(name, f);
+		}
+		StringBuilder l = new StringBuilder();
+		for(int i=0; i+1<labels.length; i+=2) {
+			l.append(l.length()==0 ? "{" : ",");
+			l.append(labels[i]).append("=\"").append(escape(labels[i+1])).append('"');
+		}
+		if (l.length()>0) l.append('}');
+		f.labels.add(l.toString());
+		f.values.add(value);
+	}
+
+	/**
+	 * Add a value that only grows.
+	 * @param name the name without prefix
+	 * @param help a description of the metric
+	 * @param value the value
+	 * @param labels label names and values, alternating
+	 */
+	public void counter(String name, String help, double value, String... labels) {
+		add("counter", name, help, value, labels);
+	}
+
+	/**
+	 * Add a value that can go up and down.
+	 * @param name the name without prefix
+	 * @param help a description of the metric
+	 * @param value the value
+	 * @param labels label names and values, alternating
+	 */
+	public void gauge(String name, String help, double value, String... labels) {
+		add("gauge", name, help, value, labels);
+	}
+
+	/**
+	 * Escape a label value.
+	 * @param s the value, may be null
+	 * @return the escaped value
+	 */
+	private static String escape(String s) {
+		if (s==null) return "";
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Format a value, integral values without fraction.
+	 * @param v the value
+	 * @return the formatted value
+	 */
+	private static String format(double v) {
+		if (v==Math.rint(v) && Math.abs(v)<1e15) return Long.toString((long)v);
+		return Double.toString(v);
+	}
+
+	/**
+	 * Write all samples in the Prometheus text format.
+	 * @param out the Writer
+	 * @throws java.io.IOException
+	 */
+	public void writePrometheus(Writer out) throws IOException {
+		for(Map.Entry<String, Family> e : families.entrySet()) {
+			String name = PREFIX+e.getKey();
+			Family f = e.getValue();
+			out.write("# HELP "+name+" "+f.help+"\n");
+			out.write("# TYPE "+name+" "+f.type+"\n");
+			for(int i=0; i<f.values.size(); i++) {
+				out.write(name+f.labels.get(i)+" "+format(f.values.get(i))+"\n");
+			}
+		}
+	}
+
+	/**
+	 * @return all samples, the keys are the names with labels
+	 */
+	public Map<String, Double> getValues() {
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		for(Map.Entry<String, Family> e : families.entrySet()) {
+			Family f = e.getValue();
+			for(int i=0; i<f.values.size(); i++) {
+				result.put(PREFIX+e.getKey()+f.labels.get(i), f.values.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param key a sample name with labels, as returned by getValues()
+	 * @return the description of the metric, null if there is no such metric
+	 */
+	public String getHelp(String key) {
+		int end = key.indexOf('{');
+		if (end<0) end = key.length();
+		if (!key.startsWith(PREFIX) || end<PREFIX.length()) return null;
+		Family f = families.get(key.substring(PREFIX.length(), end));
+		return f==null ? null : f.help;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.tools;
+
+/**
+ * The checksum used by IP, ICMP, TCP and UDP.
+ * @author Wolfgang Ginolas
+ */
+public class InternetChecksum {
+
+	/**
+	 * Calculate the ones' complement sum of 16 bit words (without the final
+	 * inversion).
+	 * @param b the array
+	 * @param off start of the data
+	 * @param len length of the data
+	 * @param sum initial value
+	 * @return the sum
+	 */
+	public static int sum(byte[] b, int off, int len, int sum) {
+		int end = off + (len & ~1);
+		for(int i=off; i<end; i+=2) {
+			sum += ((b[i] & 0xFF) << 8) + (b[i+1] & 0xFF);
+		}
+		if ((len & 1) != 0) sum += (b[end] & 0xFF) << 8;
+		while ((sum & 0xFFFF0000) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		return sum;
+	}
+
+	/**
+	 * Calculate a checksum and store it.
+	 * @param b the array
+	 * @param off start of the data
+	 * @param len length of the data
+	 * @param sum sum of the pseudo header, 0 if there is none
+	 * @param pos store the checksum here
+	 */
+	public static void store(byte[] b, int off, int len, int sum, int pos) {
+		b[pos] = 0;
+		b[pos+1] = 0;
+		int result = ~sum(b, off, len, sum);
+		b[pos] = (byte)(result >> 8);
+		b[pos+1] = (byte)result;
+	}
+
+	/**
+	 * Update a checksum after a 16 bit word changed (RFC 1624).
+	 * @param b the array
+	 * @param pos position of the checksum
+	 * @param oldWord the old value of the word
+	 * @param newWord the new value of the word
+	 */
+	public static void update(byte[] b, int pos, int oldWord, int newWord) {
+		int sum = ~(((b[pos] & 0xFF) << 8) + (b[pos+1] & 0xFF)) & 0xFFFF;
+		sum += (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+		while ((sum & 0xFFFF0000) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		sum = ~sum;
+		b[pos] = (byte)(sum >> 8);
+		b[pos+1] = (byte)sum;
+	}
+}
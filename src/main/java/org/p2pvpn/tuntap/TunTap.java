@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 /**
  * An apstract claas for an virtual network adapter. A different implementation
@@ -32,6 +33,9 @@ import java.net.UnknownHostException;
 public abstract class TunTap {
 
 	private byte[] ip = null;
+	private byte[] readBuffer = null;		// used when reading to an offset
+	private byte[] writeBuffer = null;		// used when writing from an offset
+	private byte[] frameBuffer = null;		// used by readFrames
 
 	/**
 	 * Load a libary (*.so or *.dll).
@@ -69,13 +73,23 @@ public abstract class TunTap {
 
 	/**
 	 * Return a TunTap object for the currently used operating system.
+	 * Another implementation can be selected by setting the system property
+	 * "p2pvpn.tuntap" to the name of a TunTap subclass, e.g.
+	 * org.p2pvpn.tuntap.TunTapLinuxFFM (only built by JDK 22 and later).
 	 * @return the TunTap object
 	 * @throws java.lang.Exception
 	 */
     static public TunTap createTunTap() throws Exception {
         String osName = System.getProperty("os.name");
+        String impl = System.getProperty("p2pvpn.tuntap");
         
-        if (osName.startsWith("Windows")) {
+        if (impl!=null) {
+            Class<?> c = Class.forName(impl);
+            if (!TunTap.class.isAssignableFrom(c)) {
+                throw new Exception(impl+" is not a TunTap implementation!");
+            }
+            return (TunTap)c.getDeclaredConstructor().newInstance();
+        } else if (osName.startsWith("Windows")) {
             return new TunTapWindows();
         } else if (osName.equals("Linux")) {
             return new TunTapLinux();
@@ -108,6 +122,152 @@ public abstract class TunTap {
 	 */
     abstract public int read(byte[] b);
 
+	/**
+	 * Send a packet to the virtual network adapter. Implementations which
+	 * can only write from the start of an array get the packet copied into
+	 * a buffer first.
+	 * @param b the array containing the packet
+	 * @param off the start of the packet
+	 * @param len the length of the packet
+	 */
+	public void write(byte[] b, int off, int len) {
+		if (off==0) {
+			write(b, len);
+			return;
+		}
+		synchronized (this) {
+			if (writeBuffer==null || writeBuffer.length<len) writeBuffer = new byte[len];
+			System.arraycopy(b, off, writeBuffer, 0, len);
+			write(writeBuffer, len);
+		}
+	}
+
+	/**
+	 * Read a packet from the virtual network adapter into the given position
+	 * of the array. Implementations which can only read to the start of an
+	 * array get the packet copied from a buffer.
+	 * @param b the array
+	 * @param off store the packet here
+	 * @param len maximum length of the packet
+	 * @return length of the packet
+	 */
+	public int read(byte[] b, int off, int len) {
+		if (off==0 && b.length==len) return read(b);
+		if (readBuffer==null || readBuffer.length!=len) readBuffer = new byte[len];
+		int result = read(readBuffer);
+		if (result>0) System.arraycopy(readBuffer, 0, b, off, result);
+		return result;
+	}
+
+	/**
+	 * @return the size of the virtio_net_hdr in front of every packet read
+	 * and written, 0 if the adapter doesn't use it
+	 * @see VirtioNetHeader
+	 */
+	public int getVnetHeaderSize() {
+		return 0;
+	}
+
+	/**
+	 * Set the MTU of the virtual network adapter.
+	 * @param mtu the MTU
+	 */
+	public void setMTU(int mtu) {
+	}
+
+	/**
+	 * Limit the size of the GSO frames read from the adapter. Only used when
+	 * getVnetHeaderSize() is not 0.
+	 * @param size the maximum frame size
+	 */
+	public void setMaxGsoSize(int size) {
+	}
+
+	/**
+	 * @return the number of queues of this adapter. Every queue can be read
+	 * by its own thread.
+	 */
+	public int getQueueCount() {
+		return 1;
+	}
+
+	/**
+	 * Read a packet from the given queue.
+	 * @param queue the queue (0 to getQueueCount()-1)
+	 * @param b the array
+	 * @param off store the packet here
+	 * @param len maximum length of the packet
+	 * @return length of the packet
+	 */
+	public int read(int queue, byte[] b, int off, int len) {
+		if (queue!=0) throw new IllegalArgumentException("No such queue: "+queue);
+		return read(b, off, len);
+	}
+
+	/**
+	 * Read one or more packets from the given queue.
+	 * @param queue the queue (0 to getQueueCount()-1)
+	 * @param frames a direct buffer for the packets
+	 * @param lengths receives the length of every packet
+	 * @return number of packets read
+	 * @see #readFrames(ByteBuffer, int[])
+	 */
+	public int readFrames(int queue, ByteBuffer frames, int[] lengths) {
+		if (queue!=0) throw new IllegalArgumentException("No such queue: "+queue);
+		return readFrames(frames, lengths);
+	}
+
+	/**
+	 * @return can this adapter transfer several packets with one call of
+	 * readFrames() and writeFrames()?
+	 */
+	public boolean isBatchSupported() {
+		return false;
+	}
+
+	/**
+	 * Read one or more packets from the virtual network adapter. The packets
+	 * are stored one after another, starting at the position of the buffer.
+	 * Afterwards the position points behind the last packet. Every packet
+	 * may use remaining()/lengths.length bytes, so a further packet is only
+	 * read while that much space is left. This default implementation reads
+	 * a single packet.
+	 * @param frames a direct buffer for the packets
+	 * @param lengths receives the length of every packet
+	 * @return number of packets read
+	 */
+	public int readFrames(ByteBuffer frames, int[] lengths) {
+		byte[] b;
+		synchronized (this) {
+			if (frameBuffer==null || frameBuffer.length<frames.remaining()) {
+				frameBuffer = new byte[frames.remaining()];
+			}
+			b = frameBuffer;
+		}
+		int len = read(b);
+		if (len<=0) return 0;
+		frames.put(b, 0, len);
+		lengths[0] = len;
+		return 1;
+	}
+
+	/**
+	 * Send several packets to the virtual network adapter. The packets are
+	 * read one after another, starting at the position of the buffer. This
+	 * default implementation writes one packet at a time.
+	 * @param frames a direct buffer containing the packets
+	 * @param lengths the length of every packet
+	 * @param count number of packets
+	 */
+	public synchronized void writeFrames(ByteBuffer frames, int[] lengths, int count) {
+		for(int i=0; i<count; i++) {
+			int len = lengths[i];
+			if (writeBuffer==null || writeBuffer.length<len) writeBuffer = new byte[len];
+			frames.get(writeBuffer, 0, len);
+			write(writeBuffer, len);
+		}
+	}
+
 	/**
 	 * Set the IP address of the virtual network adapter.
 	 * @param ip the IP
@@ -20,11 +20,14 @@
 package org.p2pvpn.tuntap;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * The TunTap class for linux.
+ * The device gets one queue per processor (at most MAX_QUEUES), the
+ * system property p2pvpn.tuntap.queues sets another number.
  * @author Wolfgang  Ginolas
  */
 public class TunTapLinux extends TunTap {
@@ -36,8 +39,15 @@ public class TunTapLinux extends TunTap {
 		}
     }
 
+    private static final int MAX_QUEUES = 8;
+
     private int fd;
     private String dev;    
+    private boolean batchSupported;
+    private int queueCount;
+    private int[] queueFds;	// the file descriptor of every queue
+    private int vnetHeaderSize;
+    private byte[][] queueBuffers;	// used when reading from a queue to an offset
 
 	/**
 	 * Create a new TunTapLinux
@@ -46,8 +56,43 @@ public class TunTapLinux extends TunTap {
     public TunTapLinux() throws Exception {
         if (1==openTun()) throw new Exception("Could not open '/dev/net/tun!'\n" +
 				"Please run this application as root.");
+        // clib/libTunTapLinux.so and clib/libTunTapLinuxMips.so are still the
+        // 2011 builds, they only have openTun, close, read and write
+        try {
+            batchSupported = readFramesSupported();
+        } catch (UnsatisfiedLinkError e) {
+            batchSupported = false;
+            missingNative("readFramesNative", "one read per frame");
+        }
+        int queues = Integer.getInteger("p2pvpn.tuntap.queues",
+                Math.min(MAX_QUEUES, Runtime.getRuntime().availableProcessors()));
+        queueFds = new int[Math.max(1, queues)];
+        queueFds[0] = fd;
+        try {
+            queueCount = openQueues(queueFds);
+        } catch (UnsatisfiedLinkError e) {
+            queueCount = 1;	// readQueue is only needed for the other queues
+            missingNative("openQueues", "a single queue");
+        }
+        queueBuffers = new byte[queueCount][];
+        try {
+            vnetHeaderSize = enableOffload(false);	// TSO needs a limited GSO size
+        } catch (UnsatisfiedLinkError e) {
+            vnetHeaderSize = 0;
+            missingNative("enableOffload", "no offloads");
+        }
     }
     
+    /**
+     * Log that the loaded library was built from an older TunTapLinux.c.
+     * @param method the missing native method
+     * @param fallback what is used instead
+     */
+    private static void missingNative(String method, String fallback) {
+        Logger.getLogger("").log(Level.WARNING, "libTunTapLinux has no "+method+
+                ", using "+fallback+". Rebuild it with clib/src/Makefile.");
+    }
+
     public String getDev() {
         return dev;
     }
@@ -59,6 +104,161 @@ public class TunTapLinux extends TunTap {
     public native void write(byte[] b, int len);
     
     public native int read(byte[] b);
+
+    /**
+     * Enable the checksum offload and optionally the TCP segmentation
+     * offloads (TUNSETOFFLOAD) of the device. They need the virtio_net_hdr
+     * (IFF_VNET_HDR), which openTun() enables if the kernel supports it.
+     * @param tso enable the TCP segmentation offloads?
+     * @return the size of the header, 0 if the device has none
+     */
+    private native int enableOffload(boolean tso);
+
+    /**
+     * Attach additional queues to the device (IFF_MULTI_QUEUE).
+     * @param fds fds[0] is the first queue, the others receive the file
+     * descriptors of the new queues (-1 if it could not be opened). The
+     * length is the wanted number of queues.
+     * @return the number of queues that could be opened
+     */
+    private native int openQueues(int[] fds);
+
+    /**
+     * Read a packet from a queue.
+     * @param fd the file descriptor of the queue
+     * @param b the packet
+     * @return length of the packet
+     */
+    private native int readQueue(int fd, byte[] b);
+
+    /**
+     * @return does the native library implement readFrames/writeFrames?
+     */
+    private native boolean readFramesSupported();
+
+    /**
+     * Read packets into a direct buffer with one JNI call. Blocks until the
+     * first packet arrives, further packets are only read while they are
+     * available at once.
+     * @param fd the file descriptor of the queue to read from
+     * @param frames the buffer
+     * @param pos start writing here
+     * @param limit don't write behind this position
+     * @param lengths receives the length of every packet
+     * @return number of packets read
+     */
+    private native int readFramesNative(int fd, ByteBuffer frames, int pos, int limit, int[] lengths);
+
+    /**
+     * Write packets from a direct buffer with one JNI call.
+     * @param frames the buffer
+     * @param pos the first packet starts here
+     * @param lengths the length of every packet
+     * @param count number of packets
+     */
+    private native void writeFramesNative(ByteBuffer frames, int pos, int[] lengths, int count);
+
+    @Override
+    public boolean isBatchSupported() {
+        return batchSupported;
+    }
+
+    @Override
+    public int getVnetHeaderSize() {
+        return vnetHeaderSize;
+    }
+
+    @Override
+    public void setMTU(int mtu) {
+    	try {
+    		Process p = Runtime.getRuntime().exec("ip link set dev "+dev+" mtu "+mtu);
+			Logger.getLogger("").log(Level.INFO, "MTU set ("+p.waitFor()+")");
+    	} catch (Exception e) {
+			Logger.getLogger("").log(Level.WARNING, "Could not set MTU!", e);
+    	}
+    }
+
+    @Override
+    public void setMaxGsoSize(int size) {
+        if (vnetHeaderSize==0) return;
+    	try {
+    		Process p = Runtime.getRuntime().exec("ip link set dev "+dev+" gso_max_size "+size);
+    		int result = p.waitFor();
+			Logger.getLogger("").log(Level.INFO, "GSO size set ("+result+")");
+			// larger GSO frames would not fit the read buffers
+			if (result==0) enableOffload(true);
+    	} catch (Exception e) {
+			Logger.getLogger("").log(Level.WARNING, "Could not set GSO size!", e);
+    	}
+    }
+
+    @Override
+    public int getQueueCount() {
+        return queueCount;
+    }
+
+    @Override
+    public int read(int queue, byte[] b, int off, int len) {
+        if (queue==0) return read(b, off, len);
+
+        byte[] buffer = getQueueBuffer(queue, len);
+        int result = readQueue(queueFds[queue], buffer);
+        if (result>0) System.arraycopy(buffer, 0, b, off, result);
+        return result;
+    }
+
+    /**
+     * Return the buffer used to read from the given queue.
+     * @param queue the queue
+     * @param len the needed size
+     * @return the buffer
+     */
+    private byte[] getQueueBuffer(int queue, int len) {
+        byte[] buffer = queueBuffers[queue];
+        if (buffer==null || buffer.length!=len) {
+            buffer = new byte[len];
+            queueBuffers[queue] = buffer;
+        }
+        return buffer;
+    }
+
+    @Override
+    public int readFrames(ByteBuffer frames, int[] lengths) {
+        return readFrames(0, frames, lengths);
+    }
+
+    @Override
+    public int readFrames(int queue, ByteBuffer frames, int[] lengths) {
+        if (!batchSupported || !frames.isDirect()) {
+            if (queue==0) return super.readFrames(frames, lengths);
+
+            byte[] buffer = getQueueBuffer(queue, frames.remaining());
+            int len = readQueue(queueFds[queue], buffer);
+            if (len<=0) return 0;
+            frames.put(buffer, 0, len);
+            lengths[0] = len;
+            return 1;
+        }
+
+        int count = readFramesNative(queueFds[queue], frames, frames.position(), frames.limit(), lengths);
+        int pos = frames.position();
+        for(int i=0; i<count; i++) pos += lengths[i];
+        frames.position(pos);
+        return count;
+    }
+
+    @Override
+    public void writeFrames(ByteBuffer frames, int[] lengths, int count) {
+        if (!batchSupported || !frames.isDirect()) {
+            super.writeFrames(frames, lengths, count);
+            return;
+        }
+
+        writeFramesNative(frames, frames.position(), lengths, count);
+        int pos = frames.position();
+        for(int i=0; i<count; i++) pos += lengths[i];
+        frames.position(pos);
+    }
     
     public void setIP(String ip, String subnetmask) {
 		super.setIP(ip, subnetmask);
@@ -100,6 +100,18 @@ public class TunTapWindows extends TunTap {
     	}        
     }
 
+    public void setMTU(int mtu) {
+    	try {
+            String[] cmd = {
+                "netsh", "interface", "ipv4", "set", "subinterface", "P2P VPN",
+                "mtu="+mtu, "store=active"
+            };
+            Runtime.getRuntime().exec(cmd);
+    	} catch (Exception e) {
+			Logger.getLogger("").log(Level.WARNING, "Could not set MTU!", e);
+    	}
+    }
+
     public Boolean checkAndInstallAdapter() {
         AdapterManager adapter = new AdapterManager();
         if(adapter.install())
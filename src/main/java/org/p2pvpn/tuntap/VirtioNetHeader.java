@@ -0,0 +1,194 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.tuntap;
+
+import org.p2pvpn.tools.InternetChecksum;
+
+/**
+ * Functions for frames that start with a virtio_net_hdr. Such frames are
+ * read from an adapter opened with IFF_VNET_HDR. They can be much larger
+ * than the MTU (generic segmentation offload) and may miss their TCP/UDP
+ * checksum. Only TCP segmentation is supported.
+ *
+ * Header layout (little endian):
+ * 0: flags, 1: gso_type, 2: hdr_len, 4: gso_size, 6: csum_start, 8: csum_offset
+ * @author Wolfgang Ginolas
+ */
+public class VirtioNetHeader {
+
+	public static final int SIZE = 10;
+
+	public static final int F_NEEDS_CSUM = 1;
+
+	public static final int GSO_NONE = 0;
+	public static final int GSO_TCPV4 = 1;
+	public static final int GSO_TCPV6 = 4;
+	public static final int GSO_ECN = 0x80;
+
+	private static final int ETH_HLEN = 14;
+	private static final int IP_PROTO_TCP = 6;
+	private static final int TCP_FIN = 0x01;
+	private static final int TCP_PSH = 0x08;
+	private static final int TCP_CWR = 0x80;
+
+	private static int get16(byte[] b, int off) {
+		return (b[off] & 0xFF) + ((b[off+1] & 0xFF) << 8);
+	}
+
+	private static void put16be(byte[] b, int off, int val) {
+		b[off] = (byte)(val >> 8);
+		b[off+1] = (byte)val;
+	}
+
+	/**
+	 * Clear the header (no offload used).
+	 * @param b the array
+	 * @param off start of the header
+	 */
+	public static void clear(byte[] b, int off) {
+		for(int i=0; i<SIZE; i++) b[off+i] = 0;
+	}
+
+	/**
+	 * @param b the array
+	 * @param off start of the header
+	 * @return is the frame following the header a GSO frame?
+	 */
+	public static boolean isGso(byte[] b, int off) {
+		return (b[off+1] & ~GSO_ECN) != GSO_NONE;
+	}
+
+	/**
+	 * Calculate the checksum the adapter left to us (F_NEEDS_CSUM) and
+	 * clear the flag.
+	 * @param b the array
+	 * @param off start of the header
+	 * @param len length of header and frame
+	 */
+	public static void finishChecksum(byte[] b, int off, int len) {
+		if ((b[off] & F_NEEDS_CSUM) == 0) return;
+		int start = off + SIZE + get16(b, off+6);
+		int pos = start + get16(b, off+8);
+		if (pos+2 > off+len) return;
+
+		// the adapter already stored the checksum of the pseudo header at pos
+		int sum = ~InternetChecksum.sum(b, start, off+len-start, 0) & 0xFFFF;
+		if (sum==0 && get16(b, off+8)==6) sum = 0xFFFF;		// UDP uses 0 for "no checksum"
+		put16be(b, pos, sum);
+		b[off] &= ~F_NEEDS_CSUM;
+	}
+
+	/**
+	 * @param b the array
+	 * @param off start of the header
+	 * @return offset of the TCP header relative to the start of the frame
+	 */
+	private static int tcpOffset(byte[] b, int off) {
+		if ((b[off] & F_NEEDS_CSUM) != 0) return get16(b, off+6);
+		int ip = off + SIZE + ETH_HLEN;
+		if (((b[ip] >> 4) & 0xF) == 4) return ETH_HLEN + (b[ip] & 0xF)*4;
+		return ETH_HLEN + 40;
+	}
+
+	/**
+	 * @param b the array
+	 * @param off start of the header
+	 * @return length of the ethernet, IP and TCP headers of the frame
+	 */
+	private static int headerLength(byte[] b, int off) {
+		int tcp = tcpOffset(b, off);
+		return tcp + ((b[off+SIZE+tcp+12] >> 4) & 0xF)*4;
+	}
+
+	/**
+	 * @param b the array
+	 * @param off start of the header
+	 * @param len length of header and frame
+	 * @return number of frames the GSO frame has to be split into
+	 */
+	public static int getSegmentCount(byte[] b, int off, int len) {
+		int type = b[off+1] & ~GSO_ECN;
+		if (type!=GSO_TCPV4 && type!=GSO_TCPV6) return 1;
+		int gsoSize = get16(b, off+4);
+		int payload = len - SIZE - headerLength(b, off);
+		if (gsoSize<=0 || payload<=0) return 1;
+		return (payload + gsoSize - 1) / gsoSize;
+	}
+
+	/**
+	 * Create one segment of a GSO frame. IP length, IP ID, TCP sequence number,
+	 * TCP flags and all checksums of the segment are adjusted.
+	 * @param src the array containing the GSO frame
+	 * @param off start of the header
+	 * @param len length of header and frame
+	 * @param n number of the segment (0 to getSegmentCount()-1)
+	 * @param dst the segment (without virtio_net_hdr) is stored here
+	 * @param dstOff start of the segment
+	 * @return length of the segment
+	 */
+	public static int getSegment(byte[] src, int off, int len, int n, byte[] dst, int dstOff) {
+		int count = getSegmentCount(src, off, len);
+		if (count==1 && !isGso(src, off)) {
+			System.arraycopy(src, off+SIZE, dst, dstOff, len-SIZE);
+			return len-SIZE;
+		}
+
+		int frame = off + SIZE;
+		int tcpOff = tcpOffset(src, off);
+		int hdrLen = headerLength(src, off);
+		int gsoSize = get16(src, off+4);
+		int payload = len - SIZE - hdrLen;
+		int segStart = n*gsoSize;
+		int segLen = Math.min(gsoSize, payload-segStart);
+
+		System.arraycopy(src, frame, dst, dstOff, hdrLen);
+		System.arraycopy(src, frame+hdrLen+segStart, dst, dstOff+hdrLen, segLen);
+
+		int ip = dstOff + ETH_HLEN;
+		int tcp = dstOff + tcpOff;
+		int tcpLen = hdrLen - tcpOff + segLen;
+		int sum;
+
+		if (((dst[ip] >> 4) & 0xF) == 4) {
+			int ipLen = (dst[ip] & 0xF)*4;
+			put16be(dst, ip+2, tcpOff - ETH_HLEN + tcpLen);							// total length
+			put16be(dst, ip+4, ((dst[ip+4] & 0xFF) << 8) + (dst[ip+5] & 0xFF) + n);	// identification
+			put16be(dst, ip+10, 0);
+			put16be(dst, ip+10, ~InternetChecksum.sum(dst, ip, ipLen, 0));
+			sum = InternetChecksum.sum(dst, ip+12, 8, IP_PROTO_TCP + tcpLen);
+		} else {
+			put16be(dst, ip+4, tcpOff - ETH_HLEN - 40 + tcpLen);					// payload length
+			sum = InternetChecksum.sum(dst, ip+8, 32, IP_PROTO_TCP + tcpLen);
+		}
+
+		long seq = ((dst[tcp+4] & 0xFFL) << 24) + ((dst[tcp+5] & 0xFF) << 16) +
+				((dst[tcp+6] & 0xFF) << 8) + (dst[tcp+7] & 0xFF) + segStart;
+		put16be(dst, tcp+4, (int)(seq >> 16));
+		put16be(dst, tcp+6, (int)seq);
+
+		if (n!=count-1) dst[tcp+13] &= ~(TCP_FIN | TCP_PSH);
+		if (n!=0) dst[tcp+13] &= ~TCP_CWR;
+
+		put16be(dst, tcp+16, 0);
+		put16be(dst, tcp+16, ~InternetChecksum.sum(dst, tcp, tcpLen, sum));
+
+		return hdrLen + segLen;
+	}
+}
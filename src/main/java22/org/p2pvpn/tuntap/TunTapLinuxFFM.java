@@ -0,0 +1,397 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.p2pvpn.tuntap;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * The TunTap class for linux using the Foreign Function & Memory API
+ * (Java 22) instead of libTunTapLinux.so. It does the same as the native
+ * library: open, ioctl, read, write and poll are called directly through
+ * cached method handles; direct buffers given to readFrames() and
+ * writeFrames() are passed to the kernel without copying.
+ *
+ * Like TunTapLinux the device gets one queue per processor (at most
+ * MAX_QUEUES, the system property p2pvpn.tuntap.queues sets another
+ * number) and a virtio_net_hdr with checksum and segmentation offloads,
+ * as far as the kernel supports them.
+ *
+ * This class is in its own source directory and is only compiled by a
+ * JDK 22 or newer. Select it with
+ * -Dp2pvpn.tuntap=org.p2pvpn.tuntap.TunTapLinuxFFM and add
+ * --enable-native-access=ALL-UNNAMED to avoid the warning of the JVM.
+ * @author Wolfgang Ginolas
+ */
+public class TunTapLinuxFFM extends TunTap {
+
+    private static final int MAX_QUEUES = 8;
+
+    private static final int O_RDWR = 2;
+    private static final int O_NONBLOCK = 0x800;
+    private static final long TUNSETIFF = 0x400454caL;
+    private static final long TUNGETIFF = 0x800454d2L;
+    private static final long TUNSETOFFLOAD = 0x400454d0L;
+    private static final short IFF_TAP = 0x0002;
+    private static final short IFF_NO_PI = 0x1000;
+    private static final short IFF_MULTI_QUEUE = 0x0100;
+    private static final short IFF_VNET_HDR = 0x4000;
+    private static final long TUN_F_CSUM = 0x01;
+    private static final long TUN_F_TSO = 0x02 | 0x04 | 0x08;	// TSO4, TSO6, TSO_ECN
+    private static final int IFNAMSIZ = 16;
+    private static final int IFREQ_SIZE = 40;
+    private static final short POLLIN = 0x0001;
+    private static final int POLL_REVENTS = 6;		// offset of revents in struct pollfd
+    private static final int BUFFER_SIZE = 128*1024;	// larger than any frame of the device
+
+    private static final MethodHandle OPEN, IOCTL, IOCTL_LONG, READ, WRITE, POLL, CLOSE;
+
+    static {
+        Linker linker = Linker.nativeLinker();
+        SymbolLookup libc = linker.defaultLookup();
+        // ioctl(int, unsigned long, ...) with a pointer or an integer
+        Linker.Option variadic = Linker.Option.firstVariadicArg(2);
+        OPEN = linker.downcallHandle(libc.find("open").orElseThrow(),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+        IOCTL = linker.downcallHandle(libc.find("ioctl").orElseThrow(),
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS), variadic);
+        IOCTL_LONG = linker.downcallHandle(libc.find("ioctl").orElseThrow(),
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_LONG), variadic);
+        READ = linker.downcallHandle(libc.find("read").orElseThrow(),
+                FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG));
+        WRITE = linker.downcallHandle(libc.find("write").orElseThrow(),
+                FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG));
+        POLL = linker.downcallHandle(libc.find("poll").orElseThrow(),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+        CLOSE = linker.downcallHandle(libc.find("close").orElseThrow(),
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    }
+
+    private final Arena arena;				// freed by the garbage collector, a reader may still block in read()
+    private final int[] queueFds;			// the file descriptor of every queue
+    private final MemorySegment[] readSegments;	// used by read(), one per queue
+    private final MemorySegment[] pollSegments;	// a struct pollfd for every queue
+    private final boolean[] drained;		// did the last read of a queue find no frame?
+    private final MemorySegment writeSegment;	// used by write(byte[], int)
+
+    private String dev;
+    private int vnetHeaderSize;
+
+	/**
+	 * Create a new TunTapLinuxFFM
+	 * @throws java.lang.Exception
+	 */
+    public TunTapLinuxFFM() throws Exception {
+        arena = Arena.ofAuto();
+        MemorySegment path = arena.allocate(13);
+        MemorySegment.copy("/dev/net/tun\0".getBytes("US-ASCII"), 0, path, JAVA_BYTE, 0, 13);
+        MemorySegment ifreq = arena.allocate(IFREQ_SIZE);
+
+        int fd = open(path);
+        if (fd<0) throw new Exception("Could not open '/dev/net/tun!'\n" +
+                "Please run this application as root.");
+        short[] flags = {
+            IFF_TAP | IFF_NO_PI | IFF_MULTI_QUEUE | IFF_VNET_HDR,
+            IFF_TAP | IFF_NO_PI | IFF_VNET_HDR,
+            IFF_TAP | IFF_NO_PI
+        };
+        boolean ok = false;
+        for(int i=0; !ok && i<flags.length; i++) {
+            ifreq.fill((byte)0);
+            ifreq.set(JAVA_SHORT, IFNAMSIZ, flags[i]);
+            ok = ioctl(fd, TUNSETIFF, ifreq)>=0;
+        }
+        if (!ok) {
+            close(fd);
+            throw new Exception("Could not create the TAP device");
+        }
+        StringBuilder name = new StringBuilder();
+        for(int i=0; i<IFNAMSIZ && ifreq.get(JAVA_BYTE, i)!=0; i++) name.append((char)ifreq.get(JAVA_BYTE, i));
+        dev = name.toString();
+        short used = ifreq.get(JAVA_SHORT, IFNAMSIZ);
+
+        int queues = Integer.getInteger("p2pvpn.tuntap.queues",
+                Math.min(MAX_QUEUES, Runtime.getRuntime().availableProcessors()));
+        int[] fds = new int[Math.max(1, queues)];
+        fds[0] = fd;
+        int count = 1;
+        // the ifreq still holds the name and the flags of the device
+        while ((used & IFF_MULTI_QUEUE)!=0 && count<fds.length) {
+            int q = open(path);
+            if (q<0) break;
+            if (ioctl(q, TUNSETIFF, ifreq)<0) {
+                close(q);
+                break;
+            }
+            fds[count++] = q;
+        }
+        queueFds = new int[count];
+        System.arraycopy(fds, 0, queueFds, 0, count);
+
+        readSegments = new MemorySegment[count];
+        pollSegments = new MemorySegment[count];
+        drained = new boolean[count];
+        for(int i=0; i<count; i++) {
+            readSegments[i] = arena.allocate(BUFFER_SIZE);
+            pollSegments[i] = arena.allocate(8);
+            pollSegments[i].set(JAVA_INT, 0, queueFds[i]);
+            pollSegments[i].set(JAVA_SHORT, 4, POLLIN);
+        }
+        writeSegment = arena.allocate(BUFFER_SIZE);
+
+        vnetHeaderSize = (used & IFF_VNET_HDR)!=0 ? VirtioNetHeader.SIZE : 0;
+        enableOffload(false);				// TSO needs a limited GSO size
+    }
+
+    private static int open(MemorySegment path) {
+        try {
+            return (int)OPEN.invokeExact(path, O_RDWR | O_NONBLOCK);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static int ioctl(int fd, long request, MemorySegment arg) {
+        try {
+            return (int)IOCTL.invokeExact(fd, request, arg);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static int ioctl(int fd, long request, long arg) {
+        try {
+            return (int)IOCTL_LONG.invokeExact(fd, request, arg);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static int read(int fd, MemorySegment buffer, long len) {
+        try {
+            return (int)(long)READ.invokeExact(fd, buffer, len);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static int write(int fd, MemorySegment buffer, long len) {
+        try {
+            return (int)(long)WRITE.invokeExact(fd, buffer, len);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static int poll(MemorySegment pollfd, int timeout) {
+        try {
+            return (int)POLL.invokeExact(pollfd, 1L, timeout);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static int close(int fd) {
+        try {
+            return (int)CLOSE.invokeExact(fd);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Read a frame from a queue. The device is non-blocking, so a batch
+     * ends with the first read that finds no frame, without calling poll()
+     * for every frame. When the queue was found empty, poll() waits for a
+     * frame before the next read.
+     * @param queue the queue
+     * @param buffer the frame is stored here
+     * @param len the size of the buffer
+     * @return the length of the frame, -1 if there was an error
+     */
+    private int readFrame(int queue, MemorySegment buffer, long len) {
+        MemorySegment pollfd = pollSegments[queue];
+        while (true) {
+            if (drained[queue]) {
+                if (poll(pollfd, -1)<0 || (pollfd.get(JAVA_SHORT, POLL_REVENTS) & ~POLLIN)!=0) return -1;
+                drained[queue] = false;
+            }
+            int result = read(queueFds[queue], buffer, len);
+            if (result>=0) return result;
+            drained[queue] = true;
+        }
+    }
+
+    /**
+     * Enable the checksum offload and optionally the TCP segmentation
+     * offloads of the device, if it has a virtio_net_hdr.
+     * @param tso enable the TCP segmentation offloads?
+     */
+    private void enableOffload(boolean tso) {
+        if (vnetHeaderSize==0) return;
+        if (ioctl(queueFds[0], TUNSETOFFLOAD, TUN_F_CSUM | (tso ? TUN_F_TSO : 0))<0) {
+            Logger.getLogger("").log(Level.WARNING, "TUNSETOFFLOAD failed");
+        }
+    }
+
+    public String getDev() {
+        return dev;
+    }
+
+    public void close() {
+        for(int fd : queueFds) close(fd);
+    }
+
+    public void write(byte[] b, int len) {
+        synchronized (writeSegment) {
+            MemorySegment.copy(b, 0, writeSegment, JAVA_BYTE, 0, len);
+            write(queueFds[0], writeSegment, len);
+        }
+    }
+
+    public int read(byte[] b) {
+        return read(0, b, 0, b.length);
+    }
+
+    @Override
+    public int read(int queue, byte[] b, int off, int len) {
+        MemorySegment segment = readSegments[queue];
+        synchronized (segment) {
+            int result = readFrame(queue, segment, Math.min(len, BUFFER_SIZE));
+            if (result>0) MemorySegment.copy(segment, JAVA_BYTE, 0, b, off, result);
+            return result;
+        }
+    }
+
+    @Override
+    public int getVnetHeaderSize() {
+        return vnetHeaderSize;
+    }
+
+    @Override
+    public int getQueueCount() {
+        return queueFds.length;
+    }
+
+    @Override
+    public boolean isBatchSupported() {
+        return true;
+    }
+
+    @Override
+    public int readFrames(ByteBuffer frames, int[] lengths) {
+        return readFrames(0, frames, lengths);
+    }
+
+    @Override
+    public int readFrames(int queue, ByteBuffer frames, int[] lengths) {
+        if (!frames.isDirect()) {
+            if (queue==0) return super.readFrames(frames, lengths);
+            MemorySegment segment = readSegments[queue];
+            synchronized (segment) {
+                int len = readFrame(queue, segment, Math.min(frames.remaining(), BUFFER_SIZE));
+                if (len<=0) return 0;
+                frames.put(segment.asSlice(0, len).asByteBuffer());
+                lengths[0] = len;
+                return 1;
+            }
+        }
+
+        int fd = queueFds[queue];
+        int share = frames.remaining()/lengths.length;
+        MemorySegment segment = MemorySegment.ofBuffer(frames);	// from the position to the limit
+        long size = segment.byteSize();
+        long pos = 0;
+        int count = 0;
+        // wait for the first frame, then only read the frames already waiting
+        while (count<lengths.length && size-pos>=share) {
+            int len = count==0 ? readFrame(queue, segment, size) : read(fd, segment.asSlice(pos), size-pos);
+            if (len<0) drained[queue] = true;
+            if (len<=0) break;
+            lengths[count++] = len;
+            pos += len;
+        }
+        frames.position(frames.position()+(int)pos);
+        return count;
+    }
+
+    @Override
+    public void writeFrames(ByteBuffer frames, int[] lengths, int count) {
+        if (!frames.isDirect()) {
+            super.writeFrames(frames, lengths, count);
+            return;
+        }
+
+        int fd = queueFds[0];
+        MemorySegment segment = MemorySegment.ofBuffer(frames);
+        long pos = 0;
+        for(int i=0; i<count; i++) {
+            write(fd, segment.asSlice(pos), lengths[i]);
+            pos += lengths[i];
+        }
+        frames.position(frames.position()+(int)pos);
+    }
+
+    @Override
+    public void setMTU(int mtu) {
+    	try {
+    		Process p = Runtime.getRuntime().exec("ip link set dev "+dev+" mtu "+mtu);
+			Logger.getLogger("").log(Level.INFO, "MTU set ("+p.waitFor()+")");
+    	} catch (Exception e) {
+			Logger.getLogger("").log(Level.WARNING, "Could not set MTU!", e);
+    	}
+    }
+
+    @Override
+    public void setMaxGsoSize(int size) {
+        if (vnetHeaderSize==0) return;
+    	try {
+    		Process p = Runtime.getRuntime().exec("ip link set dev "+dev+" gso_max_size "+size);
+    		int result = p.waitFor();
+			Logger.getLogger("").log(Level.INFO, "GSO size set ("+result+")");
+			// larger GSO frames would not fit the read buffers
+			if (result==0) enableOffload(true);
+    	} catch (Exception e) {
+			Logger.getLogger("").log(Level.WARNING, "Could not set GSO size!", e);
+    	}
+    }
+
+    public void setIP(String ip, String subnetmask) {
+		super.setIP(ip, subnetmask);
+    	try {
+    		Process p = Runtime.getRuntime().exec("ifconfig "+dev+" "+ip+" netmask "+subnetmask);
+			Logger.getLogger("").log(Level.INFO, "IP set successfully ("+p.waitFor()+")");
+    	} catch (Exception e) {
+			Logger.getLogger("").log(Level.WARNING, "Could not set IP!", e);
+    	}
+    }
+}
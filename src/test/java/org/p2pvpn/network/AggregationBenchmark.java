@@ -0,0 +1,114 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.network;
+
+import java.security.KeyPair;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.p2pvpn.gui.MainControl;
+import org.p2pvpn.network.ConnectionManager;
+import org.p2pvpn.network.InternalPacketListener;
+import org.p2pvpn.network.P2PConnection;
+import org.p2pvpn.network.PacketBuffer;
+import org.p2pvpn.network.Router;
+import org.p2pvpn.network.TCPConnection;
+import org.p2pvpn.tools.AdvProperties;
+import org.p2pvpn.tools.CryptoUtils;
+
+/**
+ * Measures how many 64 byte packets per second two peers connected over
+ * loopback can exchange, with and without aggregation. The packets take
+ * the real path: the SendScheduler and TCPConnection.aggregate() on the
+ * sending side, Router.receive() and its aggregate splitting on the
+ * receiving side. Run it with
+ * "java test.org.p2pvpn.network.AggregationBenchmark"; it is not a unit test.
+ * @author Wolfgang Ginolas
+ */
+public class AggregationBenchmark {
+	static final int PACKET_SIZE = 64;
+	static final int PACKETS = 500000;
+	static final int WINDOW = 256;					// packets in flight, below the queue limit
+	static final byte INTERNAL_PACKET = 4;			// Router.INTERNAL_PACKET
+	static final byte PORT = 42;
+
+	public static void main(String[] args) throws Exception {
+		AdvProperties netCfg = new AdvProperties();
+		netCfg.setProperty("network.name", "benchmark");
+		KeyPair netKey = CryptoUtils.createSignatureKeyPair();
+		netCfg.setPropertyBytes("network.publicKey", netKey.getPublic().getEncoded());
+		netCfg.sign("network.signature", netKey.getPrivate());
+		netCfg.setPropertyBytes("secret.network.privateKey", netKey.getPrivate().getEncoded());
+
+		ConnectionManager sender = new ConnectionManager(MainControl.genereteAccess(netCfg, null), 0);
+		ConnectionManager receiver = new ConnectionManager(MainControl.genereteAccess(netCfg, null), 0);
+
+		final Semaphore window = new Semaphore(WINDOW);
+		receiver.getRouter().addInternalPacketListener(PORT, new InternalPacketListener() {
+			public void receiveInternalPacket(Router router, byte internalPort, byte[] data) {
+				window.release();
+			}
+		});
+
+		while (receiver.getServerPort()==0) Thread.sleep(10);	// the server socket is opened by its thread
+		P2PConnection[] connections;
+		int tries = 0;
+		do {										// a handshake may fail when both key packets cross
+			if (++tries>10) throw new Exception("Could not connect");
+			sender.connectTo("127.0.0.1", receiver.getServerPort());
+			Thread.sleep(1000);
+		} while ((connections = sender.getRouter().getConnections()).length==0);
+		Thread.sleep(1000);							// let the peers exchange their features
+		P2PConnection p2p = connections[0];
+		TCPConnection tcp = p2p.getConnection();
+
+		byte[] packet = new byte[PACKET_SIZE];
+		packet[0] = INTERNAL_PACKET;
+		packet[1] = PORT;
+		System.arraycopy(receiver.getRouter().getMyMAC().getAddress(), 0, packet, 2, 6);
+
+		for(int round=0; round<2; round++) {			// the first round warms up the JIT
+			for(int aggregate=0; aggregate<2; aggregate++) {
+				long packetsOut = tcp.getPacketsOut();
+				long bytesOut = tcp.getBwOut().getTotal();
+				int lost = 0;
+				long start = System.nanoTime();
+				for(int i=0; i<PACKETS; i++) {
+					// the feature negotiation switches aggregation on again when the peer info changes
+					if ((i & 0xFFF)==0) tcp.setAggregate(aggregate==1);
+					if (!window.tryAcquire(100, TimeUnit.MILLISECONDS)) lost++;
+					p2p.send(PacketBuffer.copyOf(packet, 0, packet.length), false);
+				}
+				if (!window.tryAcquire(WINDOW, 1, TimeUnit.SECONDS)) lost += WINDOW-window.drainPermits();
+				double s = (System.nanoTime()-start) / 1e9;
+				window.drainPermits();
+				window.release(WINDOW);
+				if (round==1) {
+					System.out.printf("aggregation %-3s: %8.0f packets/s, %5.1f packets per record, %5.1f bytes per packet on the wire, %d lost%n",
+							aggregate==1 ? "on" : "off", PACKETS/s,
+							(double)PACKETS/(tcp.getPacketsOut()-packetsOut),
+							(double)(tcp.getBwOut().getTotal()-bytesOut)/PACKETS, lost);
+				}
+			}
+		}
+		sender.close();
+		receiver.close();
+		System.exit(0);
+	}
+}
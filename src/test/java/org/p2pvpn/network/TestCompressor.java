@@ -0,0 +1,63 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.network;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.p2pvpn.network.Compressor;
+import org.p2pvpn.network.PacketBuffer;
+import static org.junit.Assert.*;
+
+public class TestCompressor {
+	Compressor c;
+	byte[] packet;
+
+	@Before public void before() {
+		c = new Compressor();
+		packet = new byte[1+14+20+20+1000];		// DATA_PACKET with an IPv4/TCP frame
+		packet[1+12] = 0x08;
+		packet[1+14] = 0x45;
+		packet[1+14+9] = 6;
+	}
+
+	@Test public void testRoundTrip() {
+		for(int i=55; i<packet.length; i++) packet[i] = (byte)"some text ".charAt(i%10);
+
+		PacketBuffer compressed = c.compress(PacketBuffer.copyOf(packet, 0, packet.length));
+		assertTrue(compressed.getLength() < packet.length/2);
+		PacketBuffer result = c.decompress(compressed);
+		assertArrayEquals(packet, result.toByteArray());
+		assertTrue(c.getSavedBytes() > 0);
+	}
+
+	@Test public void testIncompressible() {
+		byte[] payload = new byte[1000];
+		new Random(1).nextBytes(payload);
+		System.arraycopy(payload, 0, packet, 55, payload.length);
+
+		for(int i=0; i<3; i++) {
+			PacketBuffer result = c.compress(PacketBuffer.copyOf(packet, 0, packet.length));
+			assertTrue(Arrays.equals(packet, result.toByteArray()));
+		}
+		assertEquals(0, c.getRawBytes());
+	}
+}
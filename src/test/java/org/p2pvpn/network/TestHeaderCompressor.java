@@ -0,0 +1,226 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.network;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.p2pvpn.network.HeaderCompressor;
+import org.p2pvpn.network.PacketBuffer;
+import org.p2pvpn.tools.InternetChecksum;
+import static org.junit.Assert.*;
+
+public class TestHeaderCompressor {
+	static final int FULL = 9, COMPRESSED = 10;		// the packet types of the HeaderCompressor
+	static final int IP = 1+14, TCP = IP+20;
+
+	HeaderCompressor tx, rx;
+	int ipId;
+
+	@Before public void before() {
+		tx = new HeaderCompressor();
+		rx = new HeaderCompressor();
+		ipId = 0;
+	}
+
+	/** a DATA_PACKET with an IPv4/TCP frame and a valid IP checksum */
+	byte[] packet(int srcPort, int seq, int tos, byte[] options, int payload) {
+		byte[] p = new byte[TCP+20+options.length+payload];
+		for(int i=1; i<13; i++) p[i] = (byte)i;			// mac addresses
+		p[1+12] = 0x08;
+		p[IP] = 0x45;
+		p[IP+1] = (byte)tos;
+		p[IP+2] = (byte)((p.length-IP) >> 8);
+		p[IP+3] = (byte)(p.length-IP);
+		p[IP+4] = (byte)(ipId >> 8);
+		p[IP+5] = (byte)ipId++;
+		p[IP+6] = 0x40;									// don't fragment
+		p[IP+8] = 64;
+		p[IP+9] = 6;
+		p[IP+12] = 10; p[IP+15] = 1;
+		p[IP+16] = 10; p[IP+19] = 2;
+		InternetChecksum.store(p, IP, 20, 0, IP+10);
+		p[TCP] = (byte)(srcPort >> 8);
+		p[TCP+1] = (byte)srcPort;
+		p[TCP+3] = 80;
+		for(int i=0; i<4; i++) p[TCP+4+i] = (byte)(seq >> (24-8*i));
+		p[TCP+11] = 1;									// ack
+		p[TCP+12] = (byte)(((20+options.length)/4) << 4);
+		p[TCP+13] = 0x18;								// PSH, ACK
+		p[TCP+14] = 0x10;								// window
+		p[TCP+16] = (byte)seq;							// checksum
+		p[TCP+17] = (byte)(seq >> 8);
+		System.arraycopy(options, 0, p, TCP+20, options.length);
+		for(int i=TCP+20+options.length; i<p.length; i++) p[i] = (byte)i;
+		return p;
+	}
+
+	/** NOP, NOP, timestamp */
+	byte[] timestamp(int ts) {
+		return new byte[] {1, 1, 8, 10, 0, 0, 0, (byte)ts, 0, 0, 0, 7};
+	}
+
+	/** compress a packet at the sender */
+	PacketBuffer send(byte[] packet) {
+		PacketBuffer p = PacketBuffer.copyOf(packet, 0, packet.length);
+		tx.compress(p);
+		return p;
+	}
+
+	/** restore a packet at the receiver, null if the context is unknown */
+	byte[] receive(PacketBuffer p) {
+		int type = p.getData()[p.getOffset()];
+		if (type==FULL) {
+			rx.receiveFull(p);
+		} else {
+			assertEquals(COMPRESSED, type);
+			p = rx.decompress(p);
+			if (p==null) return null;
+		}
+		byte[] result = p.toByteArray();
+		p.release();
+		return result;
+	}
+
+	int type(PacketBuffer p) {
+		return p.getData()[p.getOffset()];
+	}
+
+	int cid(PacketBuffer p) {
+		return p.getData()[p.getOffset()+1] & 0xFF;
+	}
+
+	@Test public void testRoundTripWithOptions() {
+		byte[] p1 = packet(5000, 1000, 0, timestamp(1), 100);
+		PacketBuffer c1 = send(p1);
+		assertEquals(FULL, type(c1));
+		assertArrayEquals(p1, receive(c1));
+
+		byte[] p2 = packet(5000, 1100, 0, timestamp(2), 100);	// changed options are sent
+		PacketBuffer c2 = send(p2);
+		assertEquals(COMPRESSED, type(c2));
+		assertTrue(c2.getLength() < p2.length);
+		assertArrayEquals(p2, receive(c2));
+
+		byte[] p3 = packet(5000, 1200, 0, timestamp(1), 0);	// options as in the context
+		PacketBuffer c3 = send(p3);
+		assertEquals(COMPRESSED, type(c3));
+		assertArrayEquals(p3, receive(c3));
+
+		assertEquals(2, tx.getCompressedPackets());
+		assertEquals(1, tx.getFullPackets());
+	}
+
+	@Test public void testLostFullPacket() {
+		PacketBuffer lost = send(packet(5000, 1000, 0, new byte[0], 100));
+		assertEquals(FULL, type(lost));
+		lost.release();
+
+		PacketBuffer c = send(packet(5000, 1100, 0, new byte[0], 100));
+		assertEquals(COMPRESSED, type(c));
+		int cid = cid(c);
+		assertNull(receive(c));
+
+		byte[] nack = rx.createNack((byte)cid);
+		assertEquals(1, rx.getNacks());
+		tx.receiveNack(PacketBuffer.wrap(nack));
+
+		byte[] p = packet(5000, 1200, 0, new byte[0], 100);
+		PacketBuffer full = send(p);
+		assertEquals(FULL, type(full));
+		assertArrayEquals(p, receive(full));
+
+		p = packet(5000, 1300, 0, new byte[0], 100);
+		c = send(p);
+		assertEquals(COMPRESSED, type(c));
+		assertArrayEquals(p, receive(c));
+	}
+
+	@Test public void testContextCollision() {
+		PacketBuffer probe = send(packet(5000, 0, 0, new byte[0], 0));
+		int cid = cid(probe);
+		probe.release();
+		int other = 5001;
+		while (true) {
+			HeaderCompressor hc = new HeaderCompressor();
+			byte[] b = packet(other, 0, 0, new byte[0], 0);
+			PacketBuffer p = PacketBuffer.copyOf(b, 0, b.length);
+			hc.compress(p);
+			boolean same = cid(p)==cid;
+			p.release();
+			if (same) break;
+			other++;
+		}
+
+		before();
+		for(int i=0; i<4; i++) {
+			byte[] a = packet(5000, 1000*i, 0, new byte[0], 50);
+			PacketBuffer ca = send(a);
+			assertEquals(FULL, type(ca));				// the other flow replaced the context
+			assertEquals(cid, cid(ca));
+			assertArrayEquals(a, receive(ca));
+
+			byte[] b = packet(other, 1000*i, 0, new byte[0], 50);
+			PacketBuffer cb = send(b);
+			assertEquals(FULL, type(cb));
+			assertEquals(cid, cid(cb));
+			assertArrayEquals(b, receive(cb));
+		}
+
+		// a late packet for the replaced context is rejected, not restored with the wrong header
+		PacketBuffer late = send(packet(other, 5000, 0, new byte[0], 50));
+		assertEquals(COMPRESSED, type(late));
+		byte[] a = packet(5000, 5000, 0, new byte[0], 50);
+		assertArrayEquals(a, receive(send(a)));
+		assertNull(receive(late));
+	}
+
+	@Test public void testTosChange() {
+		int[] tos = {0x02, 0x02, 0x03, 0x02, 0x02, 0xB8, 0xB8};	// ECT(0), CE, ECT(0), EF
+		int[] types = {FULL, COMPRESSED, FULL, FULL, COMPRESSED, FULL, COMPRESSED};
+		for(int i=0; i<tos.length; i++) {
+			byte[] p = packet(5000, 1000*i, tos[i], new byte[0], 100);
+			PacketBuffer c = send(p);
+			assertEquals(types[i], type(c));
+			byte[] r = receive(c);
+			assertArrayEquals(p, r);
+			assertEquals(tos[i], r[IP+1] & 0xFF);
+		}
+	}
+
+	@Test public void testReservedBits() {
+		byte[] p1 = packet(5000, 1000, 0, new byte[0], 100);
+		assertArrayEquals(p1, receive(send(p1)));
+
+		// AE (formerly NS) and the reserved bits aren't restored from a compressed header
+		for(int bits=1; bits<0x10; bits<<=1) {
+			byte[] p = packet(5000, 1000+bits, 0, new byte[0], 100);
+			p[TCP+12] |= bits;
+			PacketBuffer c = send(p);
+			assertEquals(0, type(c));
+			assertArrayEquals(p, c.toByteArray());
+			c.release();
+		}
+
+		byte[] p2 = packet(5000, 2000, 0, new byte[0], 100);
+		PacketBuffer c2 = send(p2);
+		assertEquals(COMPRESSED, type(c2));
+		assertArrayEquals(p2, receive(c2));
+	}
+}
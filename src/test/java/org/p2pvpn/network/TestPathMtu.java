@@ -0,0 +1,205 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.network;
+
+import org.junit.Test;
+import org.p2pvpn.network.PacketBuffer;
+import org.p2pvpn.network.PathMtu;
+import org.p2pvpn.tools.InternetChecksum;
+import static org.junit.Assert.*;
+
+public class TestPathMtu {
+	static final int ETH = 14, IP6 = 40;
+
+	/** an ethernet frame with an IPv4 packet, the IP checksum is valid */
+	byte[] ipv4(int protocol, int payload, int dst) {
+		byte[] f = new byte[ETH+20+payload];
+		for(int i=0; i<12; i++) f[i] = (byte)(0x20+i);		// unicast mac addresses
+		f[12] = 0x08;
+		f[ETH] = 0x45;
+		f[ETH+2] = (byte)((20+payload) >> 8);
+		f[ETH+3] = (byte)(20+payload);
+		f[ETH+4] = 0x12; f[ETH+5] = 0x34;
+		f[ETH+6] = 0x40;									// don't fragment
+		f[ETH+8] = 64;
+		f[ETH+9] = (byte)protocol;
+		f[ETH+12] = 10; f[ETH+13] = 0; f[ETH+14] = 0; f[ETH+15] = 1;
+		for(int i=0; i<4; i++) f[ETH+16+i] = (byte)(dst >> (24-8*i));
+		for(int i=ETH+20; i<f.length; i++) f[i] = (byte)(i*7);
+		InternetChecksum.store(f, ETH, 20, 0, ETH+10);
+		return f;
+	}
+
+	/** an ethernet frame with an IPv6 packet */
+	byte[] ipv6(int next, int payload, int dst0) {
+		byte[] f = new byte[ETH+IP6+payload];
+		for(int i=0; i<12; i++) f[i] = (byte)(0x20+i);
+		f[12] = (byte)0x86; f[13] = (byte)0xDD;
+		f[ETH] = 0x60;
+		f[ETH+4] = (byte)(payload >> 8);
+		f[ETH+5] = (byte)payload;
+		f[ETH+6] = (byte)next;
+		f[ETH+7] = 64;
+		f[ETH+8] = (byte)0xFD; f[ETH+23] = 1;
+		f[ETH+24] = (byte)dst0; f[ETH+39] = 2;
+		for(int i=ETH+IP6; i<f.length; i++) f[i] = (byte)(i*7);
+		return f;
+	}
+
+	/** a TCP SYN with MSS, NOP, NOP, SACK permitted and a valid checksum */
+	void tcpSyn(byte[] f, int tcp, int mss) {
+		f[tcp] = 0x13; f[tcp+1] = (byte)0x88;
+		f[tcp+3] = 80;
+		f[tcp+4] = 0x55;
+		f[tcp+12] = (byte)(28/4 << 4);
+		f[tcp+13] = 0x02;									// SYN
+		f[tcp+14] = (byte)0xFF; f[tcp+15] = (byte)0xFF;
+		f[tcp+16] = 0; f[tcp+17] = 0;
+		f[tcp+18] = 0; f[tcp+19] = 0;
+		f[tcp+20] = 2; f[tcp+21] = 4;
+		f[tcp+22] = (byte)(mss >> 8); f[tcp+23] = (byte)mss;
+		f[tcp+24] = 1; f[tcp+25] = 1;
+		f[tcp+26] = 4; f[tcp+27] = 2;
+		storeTcpChecksum(f, tcp);
+	}
+
+	/** the sum of the IPv4 or IPv6 pseudo header */
+	int pseudo(byte[] f, int l4, int protocol) {
+		if (f[12]==0x08) return InternetChecksum.sum(f, ETH+12, 8, f.length-l4 + protocol);
+		return InternetChecksum.sum(f, ETH+8, 32, f.length-l4 + protocol);
+	}
+
+	void storeTcpChecksum(byte[] f, int tcp) {
+		InternetChecksum.store(f, tcp, f.length-tcp, pseudo(f, tcp, 6), tcp+16);
+	}
+
+	/** assert that the checksum at pos equals a full recompute */
+	void assertChecksum(byte[] f, int off, int len, int sum, int pos) {
+		byte[] copy = f.clone();
+		InternetChecksum.store(copy, off, len, sum, pos);
+		assertEquals(copy[pos], f[pos]);
+		assertEquals(copy[pos+1], f[pos+1]);
+	}
+
+	int get16(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 8) + (b[off+1] & 0xFF);
+	}
+
+	byte[] tooBig(byte[] f, int mtu) {
+		PacketBuffer p = PathMtu.createTooBig(f, 0, f.length, mtu);
+		if (p==null) return null;
+		byte[] r = p.toByteArray();
+		p.release();
+		return r;
+	}
+
+	@Test public void testClampMssIPv4() {
+		byte[] f = ipv4(6, 28, 0x0A000002);
+		int tcp = ETH+20;
+		tcpSyn(f, tcp, 1460);
+		byte[] ip = new byte[20];
+		System.arraycopy(f, ETH, ip, 0, 20);
+
+		PathMtu.clampMss(f, 0, f.length, 1400);
+		assertEquals(1360, get16(f, tcp+22));
+		assertChecksum(f, tcp, f.length-tcp, pseudo(f, tcp, 6), tcp+16);
+		for(int i=0; i<20; i++) assertEquals(ip[i], f[ETH+i]);
+		assertChecksum(f, ETH, 20, 0, ETH+10);
+
+		byte[] small = f.clone();							// a smaller MSS is kept
+		PathMtu.clampMss(f, 0, f.length, 1500);
+		assertArrayEquals(small, f);
+	}
+
+	@Test public void testClampMssIPv6() {
+		for(int mss=1220; mss<1460; mss+=7) {
+			byte[] f = ipv6(6, 28, 0xFD);
+			int tcp = ETH+IP6;
+			tcpSyn(f, tcp, mss+100);
+			f[tcp+4] = (byte)mss;							// vary the checksum
+			storeTcpChecksum(f, tcp);
+
+			PathMtu.clampMss(f, 0, f.length, mss+60);
+			assertEquals(mss, get16(f, tcp+22));
+			assertChecksum(f, tcp, f.length-tcp, pseudo(f, tcp, 6), tcp+16);
+		}
+	}
+
+	@Test public void testClampMssNoSyn() {
+		byte[] f = ipv4(6, 28, 0x0A000002);
+		tcpSyn(f, ETH+20, 1460);
+		f[ETH+20+13] = 0x10;								// ACK
+		byte[] before = f.clone();
+		PathMtu.clampMss(f, 0, f.length, 1400);
+		assertArrayEquals(before, f);
+	}
+
+	@Test public void testCreateICMP() {
+		byte[] f = ipv4(17, 1480, 0x0A000002);
+		byte[] r = tooBig(f, 1400);
+		assertNotNull(r);
+		int ip = ETH, icmp = ETH+20;
+		assertEquals(ETH+576, r.length);
+		for(int i=0; i<6; i++) {
+			assertEquals(f[i], r[6+i]);
+			assertEquals(f[6+i], r[i]);
+		}
+		assertEquals(576, get16(r, ip+2));
+		for(int i=0; i<4; i++) {
+			assertEquals(f[ETH+16+i], r[ip+12+i]);
+			assertEquals(f[ETH+12+i], r[ip+16+i]);
+		}
+		assertChecksum(r, ip, 20, 0, ip+10);
+		assertEquals(3, r[icmp]);
+		assertEquals(4, r[icmp+1]);
+		assertEquals(1400, get16(r, icmp+6));
+		for(int i=0; i<576-28; i++) assertEquals(f[ETH+i], r[icmp+8+i]);
+		assertChecksum(r, icmp, r.length-icmp, 0, icmp+2);
+	}
+
+	@Test public void testCreateICMPv6() {
+		byte[] f = ipv6(17, 1460, 0xFD);
+		byte[] r = tooBig(f, 1400);
+		assertNotNull(r);
+		int ip = ETH, icmp = ETH+IP6;
+		assertEquals(ETH+1280, r.length);
+		assertEquals(1280-IP6, get16(r, ip+4));
+		assertEquals(58, r[ip+6]);
+		for(int i=0; i<16; i++) {
+			assertEquals(f[ETH+24+i], r[ip+8+i]);
+			assertEquals(f[ETH+8+i], r[ip+24+i]);
+		}
+		assertEquals(2, r[icmp]);
+		assertEquals(1400, get16(r, icmp+6));
+		for(int i=0; i<1280-IP6-8; i++) assertEquals(f[ETH+i], r[icmp+8+i]);
+		assertChecksum(r, icmp, r.length-icmp, pseudo(r, icmp, 58), icmp+2);
+	}
+
+	@Test public void testNoTooBigForGroups() {
+		assertNull(tooBig(ipv4(17, 1480, 0xE00000FB), 1400));		// 224.0.0.251
+		assertNull(tooBig(ipv4(17, 1480, 0xEFFFFFFA), 1400));		// 239.255.255.250
+		assertNull(tooBig(ipv4(17, 1480, 0xFFFFFFFF), 1400));		// limited broadcast
+		byte[] f = ipv4(17, 1480, 0x0A0000FF);						// directed broadcast
+		for(int i=0; i<6; i++) f[i] = (byte)0xFF;
+		assertNull(tooBig(f, 1400));
+		assertNull(tooBig(ipv6(17, 1460, 0xFF), 1400));
+		assertNotNull(tooBig(ipv4(17, 1480, 0xDF000001), 1400));	// 223.0.0.1
+	}
+}
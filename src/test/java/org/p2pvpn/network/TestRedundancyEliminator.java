@@ -0,0 +1,78 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package test.org.p2pvpn.network;
+
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.p2pvpn.network.PacketBuffer;
+import org.p2pvpn.network.RedundancyEliminator;
+import static org.junit.Assert.*;
+
+public class TestRedundancyEliminator {
+	RedundancyEliminator sender, receiver;
+	byte[] content;
+
+	@Before public void before() {
+		sender = new RedundancyEliminator();
+		receiver = new RedundancyEliminator();
+		content = new byte[20000];
+		new Random(1).nextBytes(content);
+	}
+
+	/** a packet with a header of its own, containing content at the given position */
+	byte[] packet(int header, int pos, int len) {
+		byte[] packet = new byte[60+len];
+		for(int i=0; i<60; i++) packet[i] = (byte)(header+i);
+		System.arraycopy(content, pos, packet, 60, len);
+		return packet;
+	}
+
+	PacketBuffer transfer(byte[] packet) {
+		return receiver.decode(sender.encode(PacketBuffer.copyOf(packet, 0, packet.length)));
+	}
+
+	@Test public void testRoundTrip() {
+		for(int i=0; i<10; i++) {
+			byte[] packet = packet(i, i*1400, 1400);
+			assertArrayEquals(packet, transfer(packet).toByteArray());
+		}
+		// the same content again, at other positions in the packets
+		for(int i=0; i<10; i++) {
+			byte[] packet = packet(100+i, 700+i*1000, 1000);
+			assertArrayEquals(packet, transfer(packet).toByteArray());
+		}
+		assertTrue(sender.getHitRate() > 0.2);
+		assertTrue(sender.getSavedBytes() > 4000);
+	}
+
+	@Test public void testLostPacket() {
+		byte[] packet = packet(0, 0, 1400);
+		sender.encode(PacketBuffer.copyOf(packet, 0, packet.length)).release();
+		assertNull(transfer(packet));
+
+		PacketBuffer reset = receiver.createReset();
+		assertNotNull(reset);
+		assertNull(receiver.createReset());
+		sender.receiveReset(reset);
+
+		assertArrayEquals(packet, transfer(packet).toByteArray());
+		assertArrayEquals(packet, transfer(packet).toByteArray());
+	}
+}
@@ -0,0 +1,85 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package test.org.p2pvpn.network;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.p2pvpn.network.PacketBuffer;
+import org.p2pvpn.network.SendScheduler;
+import org.p2pvpn.network.SendScheduler.TrafficClass;
+import static org.junit.Assert.*;
+
+public class TestSendScheduler {
+	SendScheduler s;
+
+	@Before public void before() {
+		s = new SendScheduler();
+	}
+
+	/** a DATA_PACKET with an IPv4/TCP frame */
+	PacketBuffer packet(int srcPort, int dstPort, int size) {
+		byte[] p = new byte[size];
+		p[1+12] = 0x08;
+		p[1+14] = 0x45;
+		p[1+14+9] = 6;
+		p[1+34] = (byte)(srcPort >> 8);
+		p[1+35] = (byte)srcPort;
+		p[1+36] = (byte)(dstPort >> 8);
+		p[1+37] = (byte)dstPort;
+		return PacketBuffer.copyOf(p, 0, p.length);
+	}
+
+	int srcPort(PacketBuffer p) {
+		return ((p.getData()[p.getOffset()+1+34] & 0xFF) << 8) + (p.getData()[p.getOffset()+1+35] & 0xFF);
+	}
+
+	@Test public void testInteractiveNotStarved() {
+		for(int i=0; i<10; i++) assertTrue(s.offer(packet(5000, 80, 1400), false, 10));
+		assertFalse(s.offer(packet(5000, 80, 1400), false, 10));
+		assertTrue(s.offer(packet(40000, 22, 100), false, 10));		// drops a bulk packet
+		assertEquals(10, s.size());
+		assertEquals(2, s.getDropped(TrafficClass.BULK));
+
+		boolean found = false;
+		for(int i=0; i<3; i++) found |= srcPort(s.poll())==40000;
+		assertTrue(found);
+	}
+
+	@Test public void testFairness() {
+		for(int i=0; i<20; i++) s.offer(packet(1000, 80, 1400), false, 100);
+		for(int i=0; i<20; i++) s.offer(packet(2000, 80, 1400), false, 100);
+		int first = 0;
+		for(int i=0; i<20; i++) {
+			if (srcPort(s.peek())==1000) first++;
+			assertEquals(1000+(i%2)*1000, srcPort(s.poll()));
+		}
+		assertEquals(10, first);
+	}
+
+	@Test public void testCoDel() throws Exception {
+		for(int i=0; i<50; i++) s.offer(packet(1000, 80, 1400), false, 1000);
+		Thread.sleep(10);
+		s.poll().release();				// the delay is above the target
+		assertEquals(0, s.getDropped(TrafficClass.BULK));
+		Thread.sleep(110);
+		s.poll().release();				// for longer than the interval
+		assertEquals(1, s.getDropped(TrafficClass.BULK));
+		assertTrue(s.getDelayPercentile(50) >= 10);
+	}
+}
@@ -0,0 +1,224 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.network;
+
+import java.io.DataInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.p2pvpn.network.Compressor;
+import org.p2pvpn.network.ConnectionManager;
+import org.p2pvpn.network.HeaderCompressor;
+import org.p2pvpn.network.PacketBuffer;
+import org.p2pvpn.network.SendScheduler;
+import org.p2pvpn.network.SendScheduler.TrafficClass;
+import org.p2pvpn.network.TCPConnection;
+import org.p2pvpn.tools.AdvProperties;
+import org.p2pvpn.tools.CryptoUtils;
+import static org.junit.Assert.*;
+
+public class TestTCPConnection {
+	static final byte[] KEY = new byte[16];
+
+	ConnectionManager cm;
+	ServerSocket server;
+	Socket local, remote;
+
+	@Before public void before() throws Exception {
+		AdvProperties access = new AdvProperties();
+		access.setPropertyBytes("access.publicKey", "test".getBytes());
+		access.setPropertyBytes("network.signature", "test".getBytes());
+		cm = new ConnectionManager(access, 0);
+		server = new ServerSocket(0);
+		local = new Socket("127.0.0.1", server.getLocalPort());
+		remote = server.accept();
+		remote.setSoTimeout(10000);
+	}
+
+	@After public void after() throws Exception {
+		local.close();
+		remote.close();
+		server.close();
+		cm.close();
+	}
+
+	/** a DATA_PACKET with an ECN capable IPv4/TCP frame */
+	byte[] packet(int seq) {
+		byte[] p = new byte[1+14+20+20+1346];
+		p[1+12] = 0x08;
+		p[1+14] = 0x45;
+		p[1+15] = 0x02;							// ECT(0)
+		p[1+16] = (byte)((p.length-15) >> 8);
+		p[1+17] = (byte)(p.length-15);
+		p[1+22] = 64;
+		p[1+23] = 6;
+		p[1+26] = 10; p[1+29] = 1;
+		p[1+30] = 10; p[1+33] = 2;
+		p[1+34] = (byte)(5000 >> 8);
+		p[1+35] = (byte)5000;
+		p[1+37] = 80;
+		p[1+38] = (byte)(seq >> 24);
+		p[1+39] = (byte)(seq >> 16);
+		p[1+40] = (byte)(seq >> 8);
+		p[1+41] = (byte)seq;
+		p[1+46] = 0x50;
+		p[1+47] = 0x10;							// ACK
+		return p;
+	}
+
+	/** a DATA_PACKET with an IPv4/TCP frame from the given port */
+	byte[] packet(int sport, byte[] payload) {
+		byte[] p = new byte[1+14+20+20+payload.length];
+		p[1+12] = 0x08;
+		p[1+14] = 0x45;
+		p[1+16] = (byte)((p.length-15) >> 8);
+		p[1+17] = (byte)(p.length-15);
+		p[1+22] = 64;
+		p[1+23] = 6;
+		p[1+26] = 10; p[1+29] = 1;
+		p[1+30] = 10; p[1+33] = 2;
+		p[1+34] = (byte)(sport >> 8);
+		p[1+35] = (byte)sport;
+		p[1+37] = 80;
+		p[1+46] = 0x50;
+		p[1+47] = 0x10;							// ACK
+		System.arraycopy(payload, 0, p, 1+14+20+20, payload.length);
+		return p;
+	}
+
+	/** read the next packet sent by the TCPConnection */
+	byte[] read(DataInputStream in, Cipher c) throws Exception {
+		int len = in.readUnsignedShort();
+		if (len==0xFFFF) len = in.readInt();
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return c==null ? b : c.doFinal(b);
+	}
+
+	@Test public void testEctMarkedWithHeaderCompression() throws Exception {
+		final int packets = 30;
+		cm.setPeerSendLimit(40*1024);				// the queue builds up, so CoDel acts
+		TCPConnection c = new TCPConnection(cm, local, KEY);
+		c.setHeaderCompression(true);
+		for(int i=0; i<packets; i++) c.send(PacketBuffer.copyOf(packet(i), 0, packet(i).length), false);
+
+		DataInputStream in = new DataInputStream(remote.getInputStream());
+		Cipher cipher = CryptoUtils.getSymmetricCipher();
+		cipher.init(Cipher.DECRYPT_MODE, CryptoUtils.decodeSymmetricKey(KEY),
+				new IvParameterSpec(read(in, null)));
+		HeaderCompressor hc = new HeaderCompressor();
+		int received = 0, ce = 0;
+		while (received<packets) {
+			PacketBuffer p = PacketBuffer.wrap(read(in, cipher));
+			byte type = p.getData()[0];
+			if (type==9) {							// HeaderCompressor.FULL_PACKET
+				p = PacketBuffer.copyOf(p.getData(), 0, p.getLength());
+				hc.receiveFull(p);
+			} else if (type==10) {					// HeaderCompressor.COMPRESSED_PACKET
+				p = hc.decompress(PacketBuffer.copyOf(p.getData(), 0, p.getLength()));
+				assertNotNull(p);
+			} else {
+				continue;							// the handshake of the P2PConnection
+			}
+			byte[] b = p.toByteArray();
+			assertEquals(received, ((b[1+40] & 0xFF) << 8) + (b[1+41] & 0xFF));
+			if ((b[1+15] & 0x03)==0x03) ce++;
+			received++;
+		}
+
+		SendScheduler q = c.getSendQueue();
+		synchronized (q) {
+			assertEquals(0, q.getDropped(TrafficClass.BULK));
+			assertTrue(q.getMarked(TrafficClass.BULK) > 0);
+			assertEquals(q.getMarked(TrafficClass.BULK), ce);
+		}
+		assertTrue(c.getHeaderCompressor().getCompressedPackets() > 0);
+	}
+
+	int aggregates;
+	int[] deflated = new int[2], plain = new int[2];
+
+	/** count the data packets of both flows, unpacking aggregates and deflated packets */
+	void unpack(Compressor decompressor, PacketBuffer p, boolean wasDeflated) {
+		byte[] b = p.toByteArray();
+		if (b[0]==7) {								// Router.AGGREGATE_PACKET
+			aggregates++;
+			int pos = 1;
+			while (pos+2<=b.length) {
+				int len = ((b[pos] & 0xFF) << 8) + (b[pos+1] & 0xFF);
+				unpack(decompressor, PacketBuffer.copyOf(b, pos+2, len), wasDeflated);
+				pos += 2+len;
+			}
+		} else if (b[0]==8) {						// Compressor.COMPRESSED_PACKET
+			PacketBuffer inner = decompressor.decompress(PacketBuffer.copyOf(b, 0, b.length));
+			assertNotNull(inner);
+			unpack(decompressor, inner, true);
+		} else if (b[0]==0) {						// Router.DATA_PACKET
+			int flow = ((b[1+34] & 0xFF) << 8) + (b[1+35] & 0xFF) - 5000;
+			if (wasDeflated) deflated[flow]++;
+			else plain[flow]++;
+		}
+	}
+
+	@Test public void testCompressPerFlowWhenAggregated() throws Exception {
+		final int packets = 100;
+		byte[] text = new byte[400];
+		for(int i=0; i<text.length; i++) text[i] = (byte)"some text ".charAt(i%10);
+		byte[] random = new byte[400];
+		Random rnd = new Random(1);
+
+		TCPConnection c = new TCPConnection(cm, local, KEY);
+		c.setAggregate(true);
+		c.setCompress(true);
+		for(int i=0; i<packets; i++) {
+			rnd.nextBytes(random);
+			byte[] p = packet(5000, text);
+			c.send(PacketBuffer.copyOf(p, 0, p.length), false);
+			p = packet(5001, random);
+			c.send(PacketBuffer.copyOf(p, 0, p.length), false);
+		}
+
+		DataInputStream in = new DataInputStream(remote.getInputStream());
+		Cipher cipher = CryptoUtils.getSymmetricCipher();
+		cipher.init(Cipher.DECRYPT_MODE, CryptoUtils.decodeSymmetricKey(KEY),
+				new IvParameterSpec(read(in, null)));
+		Compressor decompressor = new Compressor();
+		remote.setSoTimeout(2000);
+		try {
+			while (plain[0]+deflated[0]+plain[1]+deflated[1]<2*packets) {
+				unpack(decompressor, PacketBuffer.wrap(read(in, cipher)), false);
+			}
+		} catch (SocketTimeoutException e) {
+			// some packets were dropped by the send queue
+		}
+
+		assertTrue(aggregates > 0);
+		assertTrue(deflated[0] > packets/2);
+		assertEquals(0, plain[0]);					// the random flow doesn't stop compression
+		assertEquals(0, deflated[1]);
+		assertTrue(plain[1] > packets/2);
+	}
+}
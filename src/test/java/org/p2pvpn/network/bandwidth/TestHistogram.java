@@ -0,0 +1,59 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.network.bandwidth;
+
+import org.junit.Test;
+import org.p2pvpn.network.bandwidth.Histogram;
+import org.p2pvpn.network.bandwidth.SlidingAverage;
+import static org.junit.Assert.*;
+
+public class TestHistogram {
+
+	@Test public void testPercentiles() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.getPercentile(50));
+		for(int i=1; i<=1000; i++) h.record(i);
+
+		assertEquals(1000, h.getCount());
+		assertEquals(500.5, h.getMean(), 1e-9);
+		// buckets are at most 25% wide
+		assertTrue(h.getPercentile(50) >= 500 && h.getPercentile(50) <= 500*1.25);
+		assertTrue(h.getPercentile(99) >= 990 && h.getPercentile(99) <= 990*1.25);
+		assertTrue(h.getPercentile(99.9) >= 999);
+		assertEquals(2, h.getPercentile(0.1));
+	}
+
+	@Test public void testLargeValues() {
+		Histogram h = new Histogram();
+		h.record(Long.MAX_VALUE);
+		h.record(-5);
+		assertEquals(1, h.getPercentile(50));
+		assertTrue(h.getPercentile(100) > Long.MAX_VALUE/2);
+	}
+
+	@Test public void testSlidingAverage() {
+		SlidingAverage a = new SlidingAverage(4, 10);
+		assertEquals(10, a.getAverage(), 1e-9);
+		for(int i=0; i<4; i++) a.putVaule(2);
+		assertEquals(2, a.getAverage(), 1e-9);
+		a.putVaule(6);
+		assertEquals(3, a.getAverage(), 1e-9);
+	}
+}
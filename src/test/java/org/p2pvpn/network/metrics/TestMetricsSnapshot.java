@@ -0,0 +1,54 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.network.metrics;
+
+import java.io.StringWriter;
+import org.junit.Test;
+import org.p2pvpn.network.metrics.MetricsSnapshot;
+import static org.junit.Assert.*;
+
+public class TestMetricsSnapshot {
+
+	@Test public void testPrometheusFormat() throws Exception {
+		MetricsSnapshot s = new MetricsSnapshot();
+		s.counter("bytes_total", "Bytes", 10, "dir", "in");
+		s.gauge("load", "Load", 0.5);
+		s.counter("bytes_total", "Bytes", 20, "dir", "out");
+		s.gauge("ping", "Ping", 1, "addr", "a\"b\\c");
+
+		StringWriter out = new StringWriter();
+		s.writePrometheus(out);
+		assertEquals(
+				"# HELP p2pvpn_bytes_total Bytes\n" +
+				"# TYPE p2pvpn_bytes_total counter\n" +
+				"p2pvpn_bytes_total{dir=\"in\"} 10\n" +
+				"p2pvpn_bytes_total{dir=\"out\"} 20\n" +
+				"# HELP p2pvpn_load Load\n" +
+				"# TYPE p2pvpn_load gauge\n" +
+				"p2pvpn_load 0.5\n" +
+				"# HELP p2pvpn_ping Ping\n" +
+				"# TYPE p2pvpn_ping gauge\n" +
+				"p2pvpn_ping{addr=\"a\\\"b\\\\c\"} 1\n", out.toString());
+
+		assertEquals(Double.valueOf(20), s.getValues().get("p2pvpn_bytes_total{dir=\"out\"}"));
+		assertEquals("Bytes", s.getHelp("p2pvpn_bytes_total{dir=\"out\"}"));
+		assertEquals("Load", s.getHelp("p2pvpn_load"));
+	}
+}
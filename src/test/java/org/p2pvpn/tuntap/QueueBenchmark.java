@@ -0,0 +1,133 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.tuntap;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import org.p2pvpn.tuntap.TunTapLinux;
+
+/**
+ * Measures how the frames per second read from TunTapLinux scale with the
+ * number of queues, every queue read by its own thread like VPNConnector
+ * does. It needs root and /dev/net/tun. Run it from the project directory
+ * with "java test.org.p2pvpn.tuntap.QueueBenchmark [max queues]"; it is
+ * not a unit test.
+ *
+ * The kernel spreads the frames over the queues by flow, so the packets
+ * are sent from FLOWS sockets to a neighbour behind the adapter.
+ * @author Wolfgang Ginolas
+ */
+public class QueueBenchmark {
+	static final String IP = "10.214.0.1";
+	static final String NEIGHBOUR = "10.214.0.2";
+	static final int PAYLOAD = 64;
+	static final int FRAME_SIZE = 2048;
+	static final int FLOWS = 64;
+	static final long MILLIS = 2000;
+
+	static volatile boolean sending;
+	static volatile boolean reading;
+
+	public static void main(String[] args) throws Exception {
+		int max = args.length>0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		System.out.println(Runtime.getRuntime().availableProcessors()+" processors");
+		for(int queues=1; queues<=max; queues*=2) {
+			double result = 0;
+			int opened = 0;
+			for(int round=0; round<2; round++) {	// the first round warms up the JIT
+				System.setProperty("p2pvpn.tuntap.queues", ""+queues);
+				TunTapLinux t = new TunTapLinux();
+				opened = t.getQueueCount();
+				result = measure(t);
+			}
+			System.out.printf("queues %2d (%2d opened): %10.0f frames/s%n", queues, opened, result);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Read every queue of an adapter with its own thread for MILLIS
+	 * milliseconds, then close the adapter.
+	 * @param t the adapter
+	 * @return frames per second
+	 */
+	static double measure(final TunTapLinux t) throws Exception {
+		t.setIP(IP, "255.255.255.0");
+		Runtime.getRuntime().exec("arp -i "+t.getDev()+" -s "+NEIGHBOUR+" 02:00:00:00:00:02").waitFor();
+
+		final AtomicLong frames = new AtomicLong();
+		Thread[] readers = new Thread[t.getQueueCount()];
+		reading = true;
+		for(int i=0; i<readers.length; i++) {
+			final int queue = i;
+			readers[i] = new Thread(new Runnable() {
+				public void run() {
+					byte[] b = new byte[FRAME_SIZE];
+					long n = 0;
+					while (reading) {
+						if (t.read(queue, b, 0, b.length)>0) n++;
+					}
+					frames.addAndGet(n);
+				}
+			});
+			readers[i].setDaemon(true);
+			readers[i].start();
+		}
+
+		sending = true;
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		});
+		sender.setDaemon(true);
+		sender.start();
+
+		Thread.sleep(100);
+		long start = System.nanoTime();
+		long before = frames.get();
+		Thread.sleep(MILLIS);
+		reading = false;
+		for(Thread r : readers) r.join(1000);	// the sender keeps the readers from blocking
+		double s = (System.nanoTime()-start) / 1e9;
+		sending = false;
+		sender.join();
+		t.close();
+		return (frames.get()-before) / s;
+	}
+
+	/**
+	 * Send UDP packets of FLOWS flows to the neighbour as fast as possible.
+	 */
+	static void send() {
+		try {
+			DatagramSocket[] s = new DatagramSocket[FLOWS];
+			for(int i=0; i<FLOWS; i++) s[i] = new DatagramSocket();
+			byte[] b = new byte[PAYLOAD];
+			DatagramPacket p = new DatagramPacket(b, b.length, new InetSocketAddress(NEIGHBOUR, 9));
+			for(int i=0; sending; i=(i+1)%FLOWS) s[i].send(p);
+			for(int i=0; i<FLOWS; i++) s[i].close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.tuntap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.p2pvpn.tools.InternetChecksum;
+import org.p2pvpn.tuntap.VirtioNetHeader;
+import static org.junit.Assert.*;
+
+public class TestVirtioNetHeader {
+	static final int PAYLOAD = 2500;
+	static final int GSO_SIZE = 1000;
+
+	byte[] gso;
+
+	@Before public void before() {
+		gso = new byte[VirtioNetHeader.SIZE + 14 + 20 + 20 + PAYLOAD];
+		int ip = VirtioNetHeader.SIZE + 14;
+		int tcp = ip + 20;
+
+		gso[1] = VirtioNetHeader.GSO_TCPV4;
+		gso[4] = (byte)(GSO_SIZE & 0xFF);
+		gso[5] = (byte)(GSO_SIZE >> 8);
+
+		gso[VirtioNetHeader.SIZE+12] = 0x08;		// IPv4
+		gso[ip] = 0x45;
+		gso[ip+9] = 6;							// TCP
+		gso[ip+12] = 10; gso[ip+15] = 1;		// 10.0.0.1
+		gso[ip+16] = 10; gso[ip+19] = 2;		// 10.0.0.2
+		gso[tcp+7] = 100;						// sequence number
+		gso[tcp+12] = 0x50;						// data offset
+		gso[tcp+13] = 0x19;						// FIN, PSH, ACK
+		for(int i=tcp+20; i<gso.length; i++) gso[i] = (byte)i;
+	}
+
+	@Test public void testSegments() {
+		assertEquals(3, VirtioNetHeader.getSegmentCount(gso, 0, gso.length));
+
+		byte[] seg = new byte[2048];
+		for(int n=0; n<3; n++) {
+			int len = VirtioNetHeader.getSegment(gso, 0, gso.length, n, seg, 0);
+			int payload = Math.min(GSO_SIZE, PAYLOAD-n*GSO_SIZE);
+			assertEquals(14+20+20+payload, len);
+
+			assertEquals(20+20+payload, ((seg[16] & 0xFF) << 8) + (seg[17] & 0xFF));
+			assertEquals(0xFFFF, InternetChecksum.sum(seg, 14, 20, 0));
+			assertEquals(0xFFFF, InternetChecksum.sum(seg, 34, 20+payload, 6 + 20+payload
+					+ InternetChecksum.sum(seg, 26, 8, 0)));
+			assertEquals(100+n*GSO_SIZE, ((seg[34+6] & 0xFF) << 8) + (seg[34+7] & 0xFF));
+			assertEquals(n==2 ? 0x19 : 0x10, seg[34+13]);
+			assertEquals(gso[VirtioNetHeader.SIZE+54+n*GSO_SIZE], seg[54]);
+		}
+	}
+
+	@Test public void testFinishChecksum() {
+		int len = VirtioNetHeader.getSegment(gso, 0, gso.length, 0, new byte[2048], 0);
+		byte[] frame = new byte[VirtioNetHeader.SIZE + len];
+		System.arraycopy(gso, 0, frame, 0, frame.length);
+		frame[1] = VirtioNetHeader.GSO_NONE;
+		frame[0] = VirtioNetHeader.F_NEEDS_CSUM;
+		frame[6] = 34;
+		frame[8] = 16;
+
+		int tcpLen = len-34;
+		int pseudo = InternetChecksum.sum(frame, VirtioNetHeader.SIZE+26, 8, 6 + tcpLen);
+		frame[VirtioNetHeader.SIZE+34+16] = (byte)(pseudo >> 8);
+		frame[VirtioNetHeader.SIZE+34+17] = (byte)pseudo;
+
+		VirtioNetHeader.finishChecksum(frame, 0, frame.length);
+		assertEquals(0, frame[0]);
+		assertEquals(0xFFFF, InternetChecksum.sum(frame, VirtioNetHeader.SIZE+34, tcpLen, pseudo));
+	}
+}
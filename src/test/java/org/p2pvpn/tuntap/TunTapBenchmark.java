@@ -0,0 +1,163 @@
+/*
+    Copyright 2008, 2009 Wolfgang Ginolas
+
+    This file is part of P2PVPN.
+
+    P2PVPN is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Foobar is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package test.org.p2pvpn.tuntap;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import org.p2pvpn.tuntap.TunTap;
+
+/**
+ * Measures how many frames per second the TunTap of this system reads and
+ * writes with one call per frame and with batches of frames. It needs root
+ * and /dev/net/tun. Run it from the project directory (the native library
+ * is loaded from clib/) with "java test.org.p2pvpn.tuntap.TunTapBenchmark";
+ * it is not a unit test. Add -Dp2pvpn.tuntap=org.p2pvpn.tuntap.TunTapLinuxFFM
+ * to measure the FFM implementation instead of the JNI one.
+ *
+ * The frames read are UDP packets the kernel sends to a neighbour behind
+ * the adapter. The frames written are dropped by the kernel, because they
+ * are addressed to another host.
+ * @author Wolfgang Ginolas
+ */
+public class TunTapBenchmark {
+	static final String IP = "10.213.0.1";
+	static final String NEIGHBOUR = "10.213.0.2";
+	static final int PAYLOAD = 64;
+	static final int FRAME_SIZE = 2048;
+	static final int BATCH = 32;
+	static final long MILLIS = 2000;
+
+	static volatile boolean running;
+
+	public static void main(String[] args) throws Exception {
+		TunTap t = TunTap.createTunTap();
+		t.setIP(IP, "255.255.255.0");
+		Runtime.getRuntime().exec("arp -i "+t.getDev()+" -s "+NEIGHBOUR+" 02:00:00:00:00:02").waitFor();
+		System.out.println(t.getClass().getSimpleName()+" device "+t.getDev()+", batches "+(t.isBatchSupported() ? "native" : "emulated")
+				+", virtio_net_hdr "+t.getVnetHeaderSize());
+
+		running = true;
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		});
+		sender.setDaemon(true);
+		sender.start();
+
+		for(int round=0; round<2; round++) {			// the first round warms up the JIT
+			double single = read(t, false);
+			double batch = read(t, true);
+			if (round==1) {
+				System.out.printf("read  single: %10.0f frames/s%n", single);
+				System.out.printf("read  batch:  %10.0f frames/s%n", batch);
+			}
+		}
+		running = false;
+
+		for(int round=0; round<2; round++) {
+			double single = write(t, false);
+			double batch = write(t, true);
+			if (round==1) {
+				System.out.printf("write single: %10.0f frames/s%n", single);
+				System.out.printf("write batch:  %10.0f frames/s%n", batch);
+			}
+		}
+		t.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Send UDP packets to the neighbour as fast as possible.
+	 */
+	static void send() {
+		try {
+			DatagramSocket s = new DatagramSocket();
+			byte[] b = new byte[PAYLOAD];
+			DatagramPacket p = new DatagramPacket(b, b.length, new InetSocketAddress(NEIGHBOUR, 9));
+			while (running) s.send(p);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Read frames for MILLIS milliseconds.
+	 * @param t the adapter
+	 * @param batch use readFrames?
+	 * @return frames per second
+	 */
+	static double read(TunTap t, boolean batch) {
+		byte[] b = new byte[FRAME_SIZE];
+		ByteBuffer frames = ByteBuffer.allocateDirect(BATCH*FRAME_SIZE);
+		int[] lengths = new int[BATCH];
+		long frameCount = 0;
+		long start = System.nanoTime();
+		long end = start + MILLIS*1000*1000;
+		while (System.nanoTime()<end) {
+			if (batch) {
+				frames.clear();
+				frameCount += t.readFrames(frames, lengths);
+			} else {
+				if (t.read(b)>0) frameCount++;
+			}
+		}
+		return frameCount / ((System.nanoTime()-start) / 1e9);
+	}
+
+	/**
+	 * Write frames to another host for MILLIS milliseconds.
+	 * @param t the adapter
+	 * @param batch use writeFrames?
+	 * @return frames per second
+	 */
+	static double write(TunTap t, boolean batch) {
+		int o = t.getVnetHeaderSize();	// an empty virtio_net_hdr
+		byte[] b = new byte[o+14+20+8+PAYLOAD];
+		b[o] = 0x02;
+		b[o+5] = 0x09;			// destination 02:00:00:00:00:09
+		b[o+6] = 0x02;
+		b[o+11] = 0x0a;			// source 02:00:00:00:00:0a
+		b[o+12] = 0x08;			// IPv4
+		ByteBuffer frames = ByteBuffer.allocateDirect(BATCH*b.length);
+		int[] lengths = new int[BATCH];
+		for(int i=0; i<BATCH; i++) {
+			frames.put(b);
+			lengths[i] = b.length;
+		}
+
+		long frameCount = 0;
+		long start = System.nanoTime();
+		long end = start + MILLIS*1000*1000;
+		while (System.nanoTime()<end) {
+			if (batch) {
+				frames.clear();
+				t.writeFrames(frames, lengths, BATCH);
+				frameCount += BATCH;
+			} else {
+				t.write(b, b.length);
+				frameCount++;
+			}
+		}
+		return frameCount / ((System.nanoTime()-start) / 1e9);
+	}
+}